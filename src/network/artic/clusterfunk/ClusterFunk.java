@@ -2,8 +2,11 @@ package network.artic.clusterfunk;
 
 import network.artic.clusterfunk.ClusterFunkOptions.Command;
 import network.artic.clusterfunk.commands.*;
+import network.artic.clusterfunk.io.TreeFileExporter;
+import network.artic.clusterfunk.metadata.MetadataCache;
 import org.apache.commons.cli.*;
 
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 import static network.artic.clusterfunk.ClusterFunkOptions.*;
@@ -67,7 +70,10 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(INDEX_FIELD);
                         options.addOption(HEADER_DELIMITER);
@@ -92,22 +98,32 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(OUTPUT_METADATA);
                         options.addOption(ATTRIBUTE);
                         options.addOption(VALUE);
                         options.addOption(CLUSTER_NAME);
                         options.addOption(CLUSTER_PREFIX);
+                        options.addOption(BURNIN);
+                        options.addOption(THIN);
+                        options.addOption(SAMPLE_TREES);
+                        options.addOption(SEED);
                         break;
                     case COLLAPSE:
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(BRANCH_THRESHOLD);
                         break;
                     case CONQUER:
                         options.addOption(INPUT_PATH);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         break;
                     case CONTEXT:
                         options.addOption(INPUT);
@@ -115,9 +131,12 @@ class ClusterFunk {
                         options.addOption(TAXA);
                         METADATA.setRequired(false);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(OUTPUT_PATH);
                         options.addOption(OUTPUT_PREFIX);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(OUTPUT_TAXA);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(INDEX_FIELD);
@@ -133,12 +152,17 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
+                        options.addOption(KEEP_ATTRIBUTES);
                         break;
                     case DIVIDE:
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_PATH);
                         options.addOption(OUTPUT_PREFIX);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         OptionGroup divideGroup = new OptionGroup();
                         divideGroup.addOption(MAX_SUBTREE_COUNT);
                         divideGroup.addOption(MIN_SUBTREE_SIZE);
@@ -158,8 +182,11 @@ class ClusterFunk {
                     case INSERT:
                         options.addOption(INPUT);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(INDEX_FIELD);
                         options.addOption(HEADER_DELIMITER);
@@ -170,6 +197,7 @@ class ClusterFunk {
                     case MERGE:
                         options.addOption(INPUT);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(ADD_COLUMNS);
@@ -182,8 +210,11 @@ class ClusterFunk {
                         options.addOption(TAXA);
                         METADATA.setRequired(false);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(OUTPUT_METADATA);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(INDEX_FIELD);
@@ -195,6 +226,8 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(ATTRIBUTE);
                         options.addOption(OUT_ATTRIBUTE);
                         options.addOption(ROOT_VALUE);
@@ -204,11 +237,14 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         METADATA.setRequired(false);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(INDEX_FIELD);
                         options.addOption(HEADER_DELIMITER);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         OptionGroup orderGroup = new OptionGroup();
                         orderGroup.addOption(INCREASING);
                         orderGroup.addOption(DECREASING);
@@ -219,6 +255,8 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(INDEX_FIELD);
                         options.addOption(HEADER_DELIMITER);
                         OptionGroup orderGroup2= new OptionGroup();
@@ -230,10 +268,13 @@ class ClusterFunk {
                     case SAMPLE:
                         options.addOption(INPUT);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(TAXA);
                         options.addOption(OUTPUT_PATH);
                         options.addOption(OUTPUT_PREFIX);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(INDEX_COLUMN);
                         options.addOption(INDEX_FIELD);
                         options.addOption(HEADER_DELIMITER);
@@ -249,6 +290,8 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         options.addOption(OUTPUT_FILE);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         OptionGroup scaleGroup = new OptionGroup();
                         scaleGroup.addOption(SCALE_FACTOR);
                         scaleGroup.addOption(ROOT_HEIGHT);
@@ -259,9 +302,12 @@ class ClusterFunk {
                         options.addOption(INPUT);
                         METADATA.setRequired(false);
                         options.addOption(METADATA);
+                        options.addOption(METADATA_CACHE);
                         options.addOption(OUTPUT_PATH);
                         options.addOption(OUTPUT_PREFIX);
                         options.addOption(OUTPUT_FORMAT);
+                        options.addOption(SIGNIFICANT_DIGITS);
+                        options.addOption(TRANSLATE);
                         options.addOption(OUTPUT_METADATA);
                         options.addOption(ATTRIBUTE);
                         break;
@@ -287,6 +333,10 @@ class ClusterFunk {
                         options.addOption(INDEX_FIELD);
                         options.addOption(HEADER_DELIMITER);
                         options.addOption(STEM);
+                        options.addOption(BURNIN);
+                        options.addOption(THIN);
+                        options.addOption(SAMPLE_TREES);
+                        options.addOption(SEED);
                         break;
                     default:
                         throw new IllegalArgumentException("Unknown enum value, " + command);
@@ -344,6 +394,27 @@ class ClusterFunk {
             }
         }
 
+        MetadataCache metadataCache = null;
+        if (commandLine.hasOption("metadata-cache")) {
+            String cachePath = commandLine.getOptionValue("metadata-cache");
+            metadataCache = new MetadataCache(cachePath != null ? Paths.get(cachePath) : null);
+        }
+
+        int significantDigits = TreeFileExporter.DEFAULT_SIGNIFICANT_DIGITS;
+        if (commandLine.hasOption("significant-digits")) {
+            significantDigits = Integer.parseInt(commandLine.getOptionValue("significant-digits"));
+            if (significantDigits < 0) {
+                System.err.println("Significant digits should be 0 or more\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+
+        long seed = System.currentTimeMillis();
+        if (commandLine.hasOption("seed")) {
+            seed = Long.parseLong(commandLine.getOptionValue("seed"));
+        }
+
         if (isVerbose) {
             System.out.println("Command: " + command);
         }
@@ -355,8 +426,11 @@ class ClusterFunk {
                 new Annotate(
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
@@ -387,12 +461,18 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("output-metadata"),
                         commandLine.getOptionValue("attribute"),
                         commandLine.getOptionValue("value"),
                         commandLine.getOptionValue("cluster-name"),
                         commandLine.getOptionValue("cluster-prefix"),
                         0,
+                        Integer.parseInt(commandLine.getOptionValue("burnin", "0")),
+                        Integer.parseInt(commandLine.getOptionValue("thin", "1")),
+                        Integer.parseInt(commandLine.getOptionValue("sample", "0")),
+                        seed,
                         isVerbose);
                 break;
             case COLLAPSE:
@@ -400,6 +480,8 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         Double.parseDouble(commandLine.getOptionValue("threshold", "0.0")),
                         isVerbose);
                 break;
@@ -409,9 +491,12 @@ class ClusterFunk {
                         commandLine.getOptionValue("taxon-file"),
                         commandLine.getOptionValues("taxa"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValue("prefix"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.hasOption("output-taxa"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
@@ -426,16 +511,13 @@ class ClusterFunk {
                         isVerbose);
                 break;
             case CONVERT:
-                new Reorder(
+                new Convert(
                         commandLine.getOptionValue("input"),
-                        null,
                         commandLine.getOptionValue("output"),
                         format,
-                        null,
-                        0,
-                        null,
-                        OrderType.UNCHANGED,
-                        null,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
+                        commandLine.getOptionValues("keep-attributes"),
                         isVerbose);
                 break;
             case DIVIDE:
@@ -444,6 +526,8 @@ class ClusterFunk {
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValue("prefix"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         Integer.parseInt(commandLine.getOptionValue("max-count", "0")),
                         Integer.parseInt(commandLine.getOptionValue("min-size", "0")),
                         commandLine.hasOption("require-outgroup"),
@@ -454,6 +538,8 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         isVerbose);
                 break;
             case EXTRACT:
@@ -474,8 +560,11 @@ class ClusterFunk {
                 new Insert(
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("destination-column", null),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
@@ -488,6 +577,7 @@ class ClusterFunk {
                 new Merge(
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValue("id-column", null),
                         commandLine.getOptionValues("columns"),
@@ -501,8 +591,11 @@ class ClusterFunk {
                         commandLine.getOptionValue("taxon-file"),
                         commandLine.getOptionValues("taxa"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("output-metadata"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
@@ -516,6 +609,8 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("attribute"),
                         commandLine.getOptionValue("out-attribute"),
                         commandLine.getOptionValue("root-value"),
@@ -529,8 +624,11 @@ class ClusterFunk {
                 new Reorder(
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
@@ -545,6 +643,8 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         Integer.parseInt(commandLine.getOptionValue("index-field", "0")),
                         commandLine.getOptionValue("field-delimeter", "\\|"),
                         rootType,
@@ -556,10 +656,13 @@ class ClusterFunk {
                 new Sample(
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("taxa"),
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValue("prefix"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
                         commandLine.getOptionValue("field-delimeter", "\\|"),
@@ -584,6 +687,8 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         Double.parseDouble(commandLine.getOptionValue("factor", "1.0")),
                         Double.parseDouble(commandLine.getOptionValue("threshold", "-1.0")),
                         commandLine.hasOption("height"),
@@ -594,9 +699,12 @@ class ClusterFunk {
                 new Split(
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("metadata"),
+                        metadataCache,
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValue("prefix"),
                         format,
+                        significantDigits,
+                        commandLine.hasOption("translate"),
                         commandLine.getOptionValue("output-metadata"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
@@ -633,6 +741,10 @@ class ClusterFunk {
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         commandLine.hasOption("stem"),
                         commandLine.hasOption("ignore-missing"),
+                        Integer.parseInt(commandLine.getOptionValue("burnin", "0")),
+                        Integer.parseInt(commandLine.getOptionValue("thin", "1")),
+                        Integer.parseInt(commandLine.getOptionValue("sample", "0")),
+                        seed,
                         isVerbose);
                 break;
             default:
@@ -89,6 +89,29 @@ class ClusterFunkOptions {
             .desc("input metadata file")
             .type(String.class).build();
 
+    final static Option METADATA_CACHE = Option.builder()
+            .longOpt("metadata-cache")
+            .argName("path")
+            .hasArg()
+            .optionalArg(true)
+            .required(false)
+            .desc("cache parsed metadata files in this directory (or next to each file if no path is given)")
+            .type(String.class).build();
+
+    final static Option SIGNIFICANT_DIGITS = Option.builder()
+            .longOpt("significant-digits")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("the number of significant digits for branch lengths in NEXUS and Newick output (default = 6, 0 = in full)")
+            .type(Integer.class).build();
+
+    final static Option TRANSLATE = Option.builder()
+            .longOpt("translate")
+            .required(false)
+            .desc("write a translate table in NEXUS tree files and number the tips")
+            .type(String.class).build();
+
     final static Option LINEAGE_FILE = Option.builder()
             .longOpt("lineages")
             .argName("file")
@@ -163,10 +186,10 @@ class ClusterFunkOptions {
 
     final static Option OUTPUT_FORMAT = Option.builder("f")
             .longOpt("format")
-            .argName("nexus|newick")
+            .argName("nexus|newick|binary")
             .hasArg()
             .required(false)
-            .desc("output file format (nexus or newick)")
+            .desc("output file format (nexus, newick or binary)")
             .type(String.class).build();
 
     final static Option OUTPUT_METADATA = Option.builder("d")
@@ -255,6 +278,14 @@ class ClusterFunkOptions {
             .desc("a list of metadata columns to add as tip attributes")
             .type(String.class).build();
 
+    final static Option KEEP_ATTRIBUTES = Option.builder()
+            .longOpt("keep-attributes")
+            .argName("names")
+            .hasArgs()
+            .required(false)
+            .desc("a list of node attributes to keep (default all of them)")
+            .type(String.class).build();
+
     final static Option ADD_COLUMNS = Option.builder("a")
             .longOpt("add-columns")
             .argName("columns")
@@ -483,5 +514,36 @@ class ClusterFunkOptions {
             .desc("minimum number of tips in a subcluster (default = 10)")
             .type(Integer.class).build();
 
-}
+    final static Option BURNIN = Option.builder()
+            .longOpt("burnin")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("number of trees to skip at the start of the file (default = 0)")
+            .type(Integer.class).build();
+
+    final static Option THIN = Option.builder()
+            .longOpt("thin")
+            .argName("n")
+            .hasArg()
+            .required(false)
+            .desc("keep every nth tree after the burn-in (default = 1)")
+            .type(Integer.class).build();
 
+    final static Option SAMPLE_TREES = Option.builder()
+            .longOpt("sample")
+            .argName("number")
+            .hasArg()
+            .required(false)
+            .desc("randomly sample this number of trees after the burn-in and thinning (default = all)")
+            .type(Integer.class).build();
+
+    final static Option SEED = Option.builder()
+            .longOpt("seed")
+            .argName("seed")
+            .hasArg()
+            .required(false)
+            .desc("random number seed for sampling trees (default = the time)")
+            .type(Long.class).build();
+
+}
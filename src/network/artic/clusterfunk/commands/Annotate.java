@@ -4,7 +4,8 @@ import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVRecord;
+import network.artic.clusterfunk.metadata.MetadataCache;
+import network.artic.clusterfunk.metadata.MetadataTable;
 
 import java.util.*;
 
@@ -15,8 +16,11 @@ import java.util.*;
 public class Annotate extends Command {
     public Annotate(String treeFileName,
                     String metadataFileName,
+                    MetadataCache metadataCache,
                     String outputFileName,
                     FormatType outputFormat,
+                    int significantDigits,
+                    boolean isUsingTranslateTable,
                     String indexColumn,
                     int indexHeader,
                     String headerDelimiter,
@@ -26,15 +30,25 @@ public class Annotate extends Command {
                     boolean ignoreMissing,
                     boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, metadataCache, null, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
         Map<Taxon, String> taxonMap = getTaxonMap(tree);
 
+        // only read the columns being used for the tips in the tree
+        List<String> columnNames = new ArrayList<>();
+        if (annotationColumns != null) {
+            columnNames.addAll(Arrays.asList(annotationColumns));
+        }
+        if (labelColumns != null) {
+            columnNames.addAll(Arrays.asList(labelColumns));
+        }
+        readMetadataTable(metadataFileName, columnNames.toArray(new String[0]), new HashSet<>(taxonMap.values()));
+
         if (annotationColumns != null && annotationColumns.length > 0) {
-            if (outputFormat != FormatType.NEXUS) {
-                errorStream.println("Tip annotations are only compatible with NEXUS output format");
+            if (outputFormat == FormatType.NEWICK) {
+                errorStream.println("Tip annotations are only compatible with NEXUS or BINARY output format");
                 System.exit(1);
             }
 
@@ -72,7 +86,7 @@ public class Annotate extends Command {
      */
     private void annotateTips(RootedTree tree,
                               Map<Taxon, String> taxonMap,
-                              Map<String, CSVRecord> metadata,
+                              MetadataTable metadata,
                               String[] columnNames,
                               boolean replace,
                               boolean ignoreMissing) {
@@ -80,18 +94,21 @@ public class Annotate extends Command {
             clearExternalAttributes(tree);
         }
 
+        int[] columns = getMetadataColumns(columnNames);
+
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
-            CSVRecord record = metadata.get(key);
-            if (record == null) {
+            int row = metadata.getRow(key);
+            if (row == -1) {
                 if (!ignoreMissing) {
                     errorStream.println("Tip index, " + key + ", not found in metadata table");
                     System.exit(1);
                 }
             } else {
-                for (String name : columnNames) {
-                    if (!record.get(name).isEmpty()) {
-                        tip.setAttribute(name, record.get(name));
+                for (int i = 0; i < columns.length; i++) {
+                    String value = metadata.get(row, columns[i]);
+                    if (!value.isEmpty()) {
+                        tip.setAttribute(columnNames[i], value);
                     }
                 }
             }
@@ -108,15 +125,17 @@ public class Annotate extends Command {
      */
     private void relabelTips(RootedTree tree,
                              Map<Taxon, String> taxonMap,
-                             Map<String, CSVRecord> metadata,
+                             MetadataTable metadata,
                              String[] columnNames,
                              String headerDelimiter,
                              boolean replace,
                              boolean ignoreMissing) {
+        int[] columns = getMetadataColumns(columnNames);
+
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
-            CSVRecord record = metadata.get(key);
-            if (record == null) {
+            int row = metadata.getRow(key);
+            if (row == -1) {
                 if (!ignoreMissing) {
                     errorStream.println("Tip index, " + key + ", not found in metadata table");
                     System.exit(1);
@@ -129,14 +148,14 @@ public class Annotate extends Command {
                     first = false;
                 }
 
-                for (String name : columnNames) {
+                for (int column : columns) {
                     if (!first) {
                         tipLabel.append(headerDelimiter);
                         first = false;
                     }
-                    tipLabel.append(record.get(name));
+                    tipLabel.append(metadata.get(row, column));
                 }
-                tree.renameTaxa(tree.getTaxon(tip), Taxon.getTaxon(tipLabel.toString()));
+                tree.renameTaxa(tree.getTaxon(tip), taxonPool.getTaxon(tipLabel.toString()));
             }
         }
     }
@@ -4,6 +4,8 @@ import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.SubtreeTips;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -11,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -34,15 +37,17 @@ public class Assign extends Command {
                   boolean ignoreMissing,
                   boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
         Map<Taxon, String> taxonMap = getTaxonMap(tree);
 
+        readMetadataTable(metadataFileName, new String[] { lineageName }, new HashSet<>(taxonMap.values()));
+
         annotateTips(tree, taxonMap, lineageName, ignoreMissing);
 
-        assignNodeLineages(tree, tree.getRootNode(), lineageName);
+        assignNodeLineages(tree, lineageName);
 
         assignLineages(tree, tree.getRootNode(), lineageName, null, outputLineageName);
         
@@ -71,40 +76,47 @@ public class Assign extends Command {
 
     }
 
-    private Map<String, Integer> assignNodeLineages(RootedTree tree, Node node, String lineageName) {
-        if (tree.isExternal(node)) {
-            Object value = node.getAttribute(lineageName);
-            if (value != null) {
-                return Collections.singletonMap((String) value, 1);
-            } else {
-                return Collections.singletonMap("", 1);
+    /**
+     * Gives each internal node the most common lineage of the tips below it. The counts for each node come from
+     * the tip lineages indexed once (before any internal node is given one) rather than from the subtree.
+     * @param tree
+     * @param lineageName
+     */
+    private void assignNodeLineages(RootedTree tree, String lineageName) {
+        SubtreeTips subtreeTips = new SubtreeTips(tree);
+        TreeTraversal nodes = subtreeTips.getTraversal();
+
+        for (int i = 0; i < nodes.getNodeCount(); i++) {
+            if (nodes.isExternal(i)) {
+                continue;
             }
-        }
 
-        Map<String, Integer> contentsMap = new HashMap<>();
-        for (Node child : tree.getChildren(node)) {
-            Map<String, Integer> contents = assignNodeLineages(tree, child, lineageName);
-            for (String key: contents.keySet()) {
-                contentsMap.put(key, contentsMap.getOrDefault(key, 0) + contents.get(key));
+            // tips without a lineage are counted as ""
+            Map<String, Integer> contentsMap = new HashMap<>();
+            int count = 0;
+            for (Map.Entry<Object, Integer> entry : subtreeTips.getValueCounts(i, lineageName).entrySet()) {
+                contentsMap.put((String)entry.getKey(), entry.getValue());
+                count += entry.getValue();
+            }
+            if (count < subtreeTips.getTipCount(i)) {
+                contentsMap.put("", subtreeTips.getTipCount(i) - count);
             }
-        }
 
-        Map<String, Integer> sortedMap =
-                contentsMap.entrySet().stream()
-                        .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                        .collect(Collectors.toMap(
-                                Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
+            Map<String, Integer> sortedMap =
+                    contentsMap.entrySet().stream()
+                            .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
+                            .collect(Collectors.toMap(
+                                    Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
 
-        String lineage = "";
-        for (String key: sortedMap.keySet()) {
-            if (lineage.equals("")) {
-                lineage = key;
+            String lineage = "";
+            for (String key: sortedMap.keySet()) {
+                if (lineage.equals("")) {
+                    lineage = key;
+                }
             }
-        }
 
-        node.setAttribute(lineageName, lineage);
-
-        return contentsMap;
+            nodes.getNode(i).setAttribute(lineageName, lineage);
+        }
     }
 
     private void assignLineages(RootedTree tree, Node node, String lineageName, String parentLineage, String newAttributeName) {
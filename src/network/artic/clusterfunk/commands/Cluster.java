@@ -19,18 +19,24 @@ public class Cluster extends Command {
     public Cluster(String treeFileName,
                    String outputFileName,
                    FormatType outputFormat,
+                   int significantDigits,
+                   boolean isUsingTranslateTable,
                    String outputMetadataFileName,
                    String annotationName,
                    String annotationValue,
                    String clusterName,
                    String clusterPrefix,
                    final int maxChildLevel,
+                   int burnin,
+                   int thin,
+                   int sampleCount,
+                   long seed,
                    boolean isVerbose) {
 
-        super(null, null, null, 0, null, isVerbose);
+        super(significantDigits, isUsingTranslateTable, isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Tree annotations are only compatible with NEXUS output format");
+        if (outputFormat == FormatType.NEWICK) {
+            errorStream.println("Tree annotations are only compatible with NEXUS or BINARY output format");
             System.exit(1);
         }
 
@@ -63,9 +69,11 @@ public class Cluster extends Command {
 
         }
 
-        processTrees(treeFileName, outputFileName, outputFormat, tree -> {
-            Map<Object, Double> tmrcaMap = annotateClusters(tree, annotationName, annotationValue, clusterName, clusterPrefix, maxChildLevel);
+        TreeSelection selection = getTreeSelection(burnin, thin, sampleCount, seed);
 
+        // the clusters are annotated in parallel and the metadata written in the order of the trees
+        processTrees(treeFileName, outputFileName, outputFormat, selection, tree ->
+                annotateClusters(tree, annotationName, annotationValue, clusterName, clusterPrefix, maxChildLevel), (tree, tmrcaMap) -> {
             if (outputMetadataWriter != null) {
                 for (Node tip : tree.getExternalNodes()) {
                     Object value = tip.getAttribute(annotationName);
@@ -12,10 +12,12 @@ public class Collapse extends Command {
     public Collapse(String treeFileName,
                     String outputPath,
                     FormatType outputFormat,
+                    int significantDigits,
+                    boolean isUsingTranslateTable,
                     double branchThreshold,
                     boolean isVerbose) {
 
-        super(isVerbose);
+        super(significantDigits, isUsingTranslateTable, isVerbose);
 
         if (branchThreshold <= 0.0) {
             errorStream.println("Branch length threshold value should be > 0.0");
@@ -6,16 +6,30 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SimpleRootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
+import network.artic.clusterfunk.io.BinaryTreeExporter;
+import network.artic.clusterfunk.io.CloseableTreeImporter;
+import network.artic.clusterfunk.io.CompressedFiles;
+import network.artic.clusterfunk.io.DelimitedFileReader;
+import network.artic.clusterfunk.io.TreeFileExporter;
+import network.artic.clusterfunk.io.TreeFileImporter;
+import network.artic.clusterfunk.io.TreeIndex;
+import network.artic.clusterfunk.metadata.FieldExtractor;
+import network.artic.clusterfunk.metadata.MetadataCache;
+import network.artic.clusterfunk.metadata.MetadataTable;
+import network.artic.clusterfunk.metadata.NameSet;
+import network.artic.clusterfunk.trees.ArrayRootedTree;
+import network.artic.clusterfunk.trees.SubtreeTips;
+import network.artic.clusterfunk.trees.TaxonPool;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static java.util.stream.Collectors.toMap;
 
@@ -30,11 +44,25 @@ abstract class Command {
     final String indexColumn;
     final int indexHeader;
     final String headerDelimiter;
+    // extracts the index values from the tip names if indexHeader is set
+    private final FieldExtractor fieldExtractor;
 
-    Map<String, CSVRecord> metadata = null;
-    CSVRecord headerRecord = null;
+    // the taxa made by the command (so new tip names only go to jebl's taxon registry once)
+    final TaxonPool taxonPool = new TaxonPool();
+
+    // the cache for parsed metadata files (null if they are not to be cached)
+    final MetadataCache metadataCache;
+    // the number of significant digits for branch lengths in NEXUS and Newick tree files (0 for in full)
+    final int significantDigits;
+    // whether NEXUS tree files have a translate table
+    final boolean isUsingTranslateTable;
+
+    MetadataTable metadata = null;
     Set<String> taxa = null;
 
+    // the node attributes read from the trees by processTrees (null for all of them)
+    Set<String> treeAttributeNames = null;
+
     /**
      * Simple constructor
      * @param isVerbose
@@ -43,6 +71,25 @@ abstract class Command {
         this(null, null, null, 0, null, isVerbose);
     }
 
+    /**
+     * Constructor for commands that write tree files
+     * @param significantDigits the number of significant digits for branch lengths or 0 to write them in full
+     * @param isUsingTranslateTable whether NEXUS tree files have a translate table
+     * @param isVerbose
+     */
+    Command(int significantDigits, boolean isUsingTranslateTable, boolean isVerbose) {
+        this(null, null, null, null, 0, null, significantDigits, isUsingTranslateTable, isVerbose);
+    }
+
+    /**
+     * Constructor for commands that read metadata files but not with the constructor
+     * @param metadataCache the cache for parsed metadata files or null to not cache them
+     * @param isVerbose
+     */
+    Command(MetadataCache metadataCache, boolean isVerbose) {
+        this(null, metadataCache, null, null, 0, null, TreeFileExporter.DEFAULT_SIGNIFICANT_DIGITS, false, isVerbose);
+    }
+
     /**
      * Constructor
      * @param metadataFileName
@@ -53,6 +100,27 @@ abstract class Command {
      * @param isVerbose
      */
     Command(String metadataFileName, String taxaFileName, String indexColumn, int indexHeader, String headerDelimiter, boolean isVerbose) {
+        this(metadataFileName, null, taxaFileName, indexColumn, indexHeader, headerDelimiter,
+                TreeFileExporter.DEFAULT_SIGNIFICANT_DIGITS, false, isVerbose);
+    }
+
+    /**
+     * Constructor
+     * @param metadataFileName
+     * @param metadataCache the cache for parsed metadata files or null to not cache them
+     * @param taxaFileName
+     * @param indexColumn
+     * @param indexHeader
+     * @param headerDelimiter
+     * @param significantDigits the number of significant digits for branch lengths or 0 to write them in full
+     * @param isUsingTranslateTable whether NEXUS tree files have a translate table
+     * @param isVerbose
+     */
+    Command(String metadataFileName, MetadataCache metadataCache, String taxaFileName, String indexColumn, int indexHeader, String headerDelimiter,
+            int significantDigits, boolean isUsingTranslateTable, boolean isVerbose) {
+        this.metadataCache = metadataCache;
+        this.significantDigits = significantDigits;
+        this.isUsingTranslateTable = isUsingTranslateTable;
         this.indexColumn = indexColumn;
         this.indexHeader = indexHeader;
         if ("|".equals(headerDelimiter)) {
@@ -61,10 +129,12 @@ abstract class Command {
             this.headerDelimiter = headerDelimiter;
         }
 
+        this.fieldExtractor = (indexHeader > 0 ? new FieldExtractor(this.headerDelimiter, indexHeader) : null);
+
         this.isVerbose = isVerbose;
 
         if (metadataFileName != null) {
-            readMetadataTable(metadataFileName, indexColumn);
+            readMetadataTable(metadataFileName, null, null);
         }
 
         if (taxaFileName != null) {
@@ -72,39 +142,48 @@ abstract class Command {
         }
     }
 
-    private void readMetadataTable(String metadataFileName, String indexColumn) {
-        metadata = readCSV(metadataFileName, indexColumn);
-        taxa = metadata.keySet();
+    /**
+     * Reads the metadata table keeping only the columns and rows that are needed. Commands that know this (e.g.,
+     * once they have read the tree) should pass a null metadata file name to the constructor and call this.
+     * @param metadataFileName
+     * @param columnNames the columns to keep (the index column is always kept) or null for all of them
+     * @param keys the index values of the rows to keep (e.g., the tip ids of the tree) or null for all of them
+     */
+    protected void readMetadataTable(String metadataFileName, String[] columnNames, Set<String> keys) {
+        metadata = readCSV(metadataFileName, indexColumn, columnNames, keys);
+        if (taxa == null) {
+            taxa = metadata.keySet();
+        }
 
         if (isVerbose) {
             outStream.println("Read metadata table: " + metadataFileName);
-            outStream.println("               Rows: " + metadata.size());
-            outStream.println("       Index column: " + (indexColumn == null ? headerRecord.getParser().getHeaderNames().get(0) : indexColumn));
+            outStream.println("               Rows: " + metadata.getRowCount());
+            outStream.println("       Index column: " + metadata.getIndexColumnName());
             outStream.println();
         }
     }
 
+    /**
+     * Reads the set of taxa from a tree file (just the tip names are read) or from the index column of a CSV
+     * (or tab delimited) file
+     * @param taxaFileName
+     * @param indexColumn
+     */
     protected void readTaxa(String taxaFileName, String indexColumn) {
 
-        try {
-            TreeImporter importer = null;
-
-            FormatType format = getTreeFileType(new FileReader(taxaFileName));
+        // returns null if not a tree file...
+        try (CloseableTreeImporter importer = TreeFileImporter.open(taxaFileName)) {
 
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(taxaFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(taxaFileName), false);
-            } else {
-                // not a tree file - do nothing...
-            }
-
-            if (importer != null) {
+            NameSet names = new NameSet();
+            if (importer instanceof TreeFileImporter) {
+                ((TreeFileImporter) importer).readTaxonNames(name -> names.add(getTaxonIndex(name)));
+            } else if (importer != null) {
                 RootedTree tree = (RootedTree) importer.importNextTree();
-                taxa = new HashSet<>(getTaxonMap(tree).values());
+                names.addAll(getTaxonMap(tree).values());
             } else {
-                taxa = readCSV(taxaFileName, indexColumn).keySet();
+                readCSVIndex(taxaFileName, indexColumn, names);
             }
+            taxa = names;
 
         } catch (IOException ioe) {
             errorStream.println("Error reading taxon file, " + taxaFileName + ": " + ioe.getMessage());
@@ -133,16 +212,9 @@ abstract class Command {
             outStream.println("Reading treefile: " + treeFileName);
         }
 
-        try {
-            TreeImporter importer = null;
-
-            FormatType format = getTreeFileType(new FileReader(treeFileName));
+        try (CloseableTreeImporter importer = TreeFileImporter.open(treeFileName)) {
 
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(treeFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(treeFileName), false);
-            } else {
+            if (importer == null) {
                 errorStream.println("Unrecognised tree format in file, " + treeFileName);
                 System.exit(1);
             }
@@ -175,63 +247,109 @@ abstract class Command {
     }
 
     final void processTrees(String treeFileName, String outputFileName, FormatType outputFormat, TreeFunction function) {
+        processTrees(treeFileName, outputFileName, outputFormat, null, function::processTree, (tree, result) -> result);
+    }
+
+    final <T> void processTrees(String treeFileName, TreeSelection selection, TreeAnalysis<T> analysis, TreeResultHandler<T> handler) {
+        processTrees(treeFileName, null, null, selection, analysis, handler);
+    }
+
+    /**
+     * Reads the trees in a file and analyses each one. This is a pipeline - a thread reads the text of the trees,
+     * a pool of threads parses and analyses them and the results are handled (and the trees written) on this
+     * thread in the order they were read. Only a few trees are in the pipeline at once so the memory used doesn't
+     * grow with the number of trees.
+     * @param treeFileName
+     * @param outputFileName the file to write the trees to or null
+     * @param outputFormat
+     * @param selection the trees to process or null for all of them. Trees that aren't selected aren't parsed.
+     * @param analysis
+     * @param handler returns the tree to write out
+     */
+    final <T> void processTrees(String treeFileName, String outputFileName, FormatType outputFormat,
+                                TreeSelection selection, TreeAnalysis<T> analysis, TreeResultHandler<T> handler) {
 
         if (isVerbose) {
             outStream.println("  Reading treefile: " + treeFileName);
         }
 
-        TreeImporter importer = null;
+        TreeSource trees = null;
         TreeExporter exporter = null;
 
         try {
-
-            FormatType format = getTreeFileType(new FileReader(treeFileName));
-
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(treeFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(treeFileName), false);
-            } else {
-                errorStream.println("Unrecognised tree format in file, " + treeFileName);
-                System.exit(1);
-            }
+            trees = openTreeSource(treeFileName, selection);
         } catch (IOException ioe) {
             errorStream.println("Error reading tree file: " + ioe.getMessage());
             System.exit(1);
+        } catch (ImportException ie) {
+            errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+            System.exit(1);
         }
 
-        FileWriter writer = null;
-
         if (outputFileName != null) {
             try {
                 if (isVerbose) {
                     outStream.println("  Writing treefile: " + outputFileName);
                 }
-                writer = new FileWriter(outputFileName);
-
-                switch (outputFormat) {
-                    case NEXUS:
-                        exporter = new NexusExporter(writer);
-                        break;
-                    case NEWICK:
-                        exporter = new NewickExporter(writer);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Unknown format: " + outputFormat);
-                }
+                exporter = createTreeExporter(outputFileName, outputFormat);
 
             } catch (IOException ioe) {
                 errorStream.println("Error writing tree file: " + ioe.getMessage());
                 System.exit(1);
             }
+
+            if (exporter instanceof TreeFileExporter && ((TreeFileExporter) exporter).isUsingTranslateTable()) {
+                // the translate table comes before the trees so the file is read through once to find the taxa
+                try {
+                    ((TreeFileExporter) exporter).setTranslateTaxa(readAllTaxa(treeFileName));
+                } catch (IOException ioe) {
+                    errorStream.println("Error reading tree file: " + ioe.getMessage());
+                    System.exit(1);
+                } catch (ImportException ie) {
+                    errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+                    System.exit(1);
+                }
+            }
         }
 
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = null;
+        Thread reader = null;
+
         try {
+            BlockingQueue<Future<AnalysedTree<T>>> analysedTrees;
+            if (threadCount > 1) {
+                executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+                    Thread thread = new Thread(runnable, "processTrees");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                // the reader blocks when this is full so only a few trees are read ahead
+                analysedTrees = new ArrayBlockingQueue<>(threadCount * 2);
+                reader = startTreeReader(trees, analysis, executor, analysedTrees);
+            } else {
+                analysedTrees = null;
+            }
+
             int count = 0;
-            while (importer.hasTree()) {
-                RootedTree tree = function.processTree((RootedTree) importer.importNextTree());
+            while (true) {
+                AnalysedTree<T> analysedTree = null;
+                if (analysedTrees != null) {
+                    analysedTree = getAnalysedTree(analysedTrees.take());
+                } else {
+                    Callable<RootedTree> parser = trees.nextTree();
+                    if (parser != null) {
+                        RootedTree tree = parseTree(parser);
+                        analysedTree = new AnalysedTree<>(tree, analysis.analyseTree(tree));
+                    }
+                }
+                if (analysedTree == null) {
+                    break;
+                }
 
-                if (exporter != null) {
+                RootedTree tree = handler.handleResult(analysedTree.tree, analysedTree.result);
+
+                if (exporter != null && tree != null) {
                     exporter.exportTree(tree);
                 }
                 count++;
@@ -243,6 +361,7 @@ abstract class Command {
             if (exporter != null) {
                 exporter.close();
             }
+            trees.close();
 
             if (isVerbose) {
                 outStream.println("Total trees processed: " + count);
@@ -255,74 +374,405 @@ abstract class Command {
         } catch (IOException ioe) {
             errorStream.println("Error processing tree file: " + ioe.getMessage());
             System.exit(1);
+        } catch (UncheckedIOException uioe) {
+            errorStream.println("Error writing tree file: " + uioe.getCause().getMessage());
+            System.exit(1);
+        } catch (InterruptedException ie) {
+            errorStream.println("Interrupted processing tree file");
+            System.exit(1);
+        } finally {
+            if (reader != null) {
+                reader.interrupt();
+            }
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+    }
+
+    /**
+     * Checks the options that select which trees to process
+     * @param burnin the number of trees to skip at the start
+     * @param thin keep every nth tree after the burn-in
+     * @param sampleCount the number of trees to randomly sample from those left (0 keeps all)
+     * @param seed the seed for the random sample
+     * @return the selection
+     */
+    final TreeSelection getTreeSelection(int burnin, int thin, int sampleCount, long seed) {
+        if (burnin < 0) {
+            errorStream.println("Burn-in must be 0 or more");
+            System.exit(1);
+        }
+        if (thin < 1) {
+            errorStream.println("Thinning must be 1 or more");
+            System.exit(1);
+        }
+        if (sampleCount < 0) {
+            errorStream.println("Number of trees to sample must be 0 or more");
+            System.exit(1);
+        }
+        if (isVerbose && sampleCount > 0) {
+            outStream.println("Sampling " + sampleCount + " trees with random number seed: " + seed);
+            outStream.println();
+        }
+        return new TreeSelection(burnin, thin, sampleCount, seed);
+    }
+
+    /**
+     * Reads the taxa of all the trees in a file (only the tip names are read from NEXUS and Newick files)
+     * @return the taxa in the order they are first found
+     */
+    private Collection<Taxon> readAllTaxa(String treeFileName) throws IOException, ImportException {
+        Set<Taxon> taxa = new LinkedHashSet<>();
+        try (CloseableTreeImporter importer = TreeFileImporter.open(treeFileName)) {
+            if (importer instanceof TreeFileImporter) {
+                ((TreeFileImporter) importer).readAllTaxonNames(name -> taxa.add(taxonPool.getTaxon(name)));
+            } else if (importer != null) {
+                while (importer.hasTree()) {
+                    taxa.addAll(importer.importNextTree().getTaxa());
+                }
+            }
         }
+        return taxa;
+    }
 
+    /**
+     * The trees to process in order
+     */
+    private interface TreeSource extends Closeable {
+        /**
+         * @return a task that parses the next tree or null if there are no more
+         */
+        Callable<RootedTree> nextTree() throws IOException, ImportException;
+
+        /**
+         * Called once all the trees have been parsed (or processing has stopped)
+         */
+        @Override
+        void close() throws IOException;
     }
 
+    /**
+     * Opens the trees in a file. If only some are selected then an index of the file (see TreeIndex) is used to
+     * go straight to them. If the file can't be indexed (e.g., it is compressed) then it is read through but only
+     * the selected trees are parsed.
+     */
+    private TreeSource openTreeSource(String treeFileName, TreeSelection selection) throws IOException, ImportException {
+        if (selection == null || selection.isAll()) {
+            final UnparsedTreeReader reader = openTreeImporter(treeFileName);
+            return new TreeSource() {
+                @Override
+                public Callable<RootedTree> nextTree() throws IOException, ImportException {
+                    return reader.nextTree();
+                }
 
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
 
-    private FormatType getTreeFileType(Reader reader) throws IOException {
-//        String line = bufferedReader.readLine();
-//        while (line != null && line.length() == 0) {
-//            line = bufferedReader.readLine();
-//        }
+        final TreeIndex index = TreeIndex.open(Paths.get(treeFileName));
+        if (index != null) {
+            index.setAttributeNames(treeAttributeNames);
+        }
+        final int treeCount;
+        final int[] selected;
+        TreeSource trees;
+        if (index != null) {
+            treeCount = index.getTreeCount();
+            selected = selection.select(treeCount);
+            trees = new TreeSource() {
+                @Override
+                public Callable<RootedTree> nextTree() {
+                    if (next == selected.length) {
+                        return null;
+                    }
+                    return index.getTree(selected[next++]);
+                }
 
-        char[] head = new char[1024];
+                @Override
+                public void close() throws IOException {
+                    index.close();
+                }
 
-        int charsRead = reader.read(head, 0, head.length);
-        String headString = new String(head).trim().toUpperCase();
+                private int next = 0;
+            };
+            if (isVerbose) {
+                Path indexFile = TreeIndex.getIndexFile(Paths.get(treeFileName));
+                if (index.isFromIndexFile()) {
+                    outStream.println("   Read tree index: " + indexFile);
+                } else if (Files.exists(indexFile)) {
+                    outStream.println("  Wrote tree index: " + indexFile);
+                }
+            }
+        } else {
+            if (selection.isSample()) {
+                // the file is read through once to count the trees
+                int count = 0;
+                try (UnparsedTreeReader counter = openTreeImporter(treeFileName)) {
+                    while (counter.nextTree() != null) {
+                        count++;
+                    }
+                }
+                treeCount = count;
+                selected = selection.select(treeCount);
+            } else {
+                treeCount = -1;
+                selected = null;
+            }
+            final UnparsedTreeReader reader = openTreeImporter(treeFileName);
+            trees = new TreeSource() {
+                @Override
+                public Callable<RootedTree> nextTree() throws IOException, ImportException {
+                    while (true) {
+                        Callable<RootedTree> tree = reader.nextTree();
+                        if (tree == null) {
+                            return null;
+                        }
+                        int index = current++;
+                        if (selected != null) {
+                            if (next < selected.length && selected[next] == index) {
+                                next++;
+                                return tree;
+                            }
+                        } else if (selection.isSelected(index)) {
+                            return tree;
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
 
-        if (headString.startsWith("#NEXUS")) {
-            return FormatType.NEXUS;
+                private int current = 0;
+                private int next = 0;
+            };
         }
-        if (headString.startsWith("(")) {
-            return FormatType.NEWICK;
+
+        if (isVerbose && treeCount >= 0) {
+            outStream.println("   Number of trees: " + treeCount);
+            outStream.println("    Selected trees: " + selected.length);
         }
+        return trees;
+    }
 
-        return null;
+    /**
+     * Reads the trees of a file in order leaving the parsing to the returned tasks where possible
+     */
+    private static class UnparsedTreeReader implements Closeable {
+        UnparsedTreeReader(CloseableTreeImporter importer) {
+            this.importer = importer;
+        }
+
+        /**
+         * @return a task that parses the next tree or null if there are no more. Only TreeFileImporter can leave
+         * the parsing to the task.
+         */
+        Callable<RootedTree> nextTree() throws IOException, ImportException {
+            if (importer instanceof TreeFileImporter) {
+                return ((TreeFileImporter) importer).readNextUnparsedTree();
+            }
+            if (!importer.hasTree()) {
+                return null;
+            }
+            final RootedTree tree = (RootedTree) importer.importNextTree();
+            return () -> tree;
+        }
+
+        @Override
+        public void close() throws IOException {
+            importer.close();
+        }
+
+        private final CloseableTreeImporter importer;
     }
 
-    final Map<Taxon, String> getTaxonMap(RootedTree tree) {
-        Map<Taxon, String> taxonMap = new HashMap<>();
+    private UnparsedTreeReader openTreeImporter(String treeFileName) throws IOException {
+        CloseableTreeImporter importer = TreeFileImporter.open(treeFileName);
+        if (importer == null) {
+            errorStream.println("Unrecognised tree format in file, " + treeFileName);
+            System.exit(1);
+        }
+        if (importer instanceof TreeFileImporter) {
+            ((TreeFileImporter)importer).setAttributeNames(treeAttributeNames);
+        }
+        return new UnparsedTreeReader(importer);
+    }
 
-        for (Node tip : tree.getExternalNodes()) {
-            Taxon taxon = tree.getTaxon(tip);
-            String index = taxon.getName();
-            if (indexHeader > 0) { // index header indexed from 1
-                // if an index header field has been specified then split it out (otherwise use the entire name)
-                String[] headers = taxon.getName().split(headerDelimiter);
-                if (indexHeader > headers.length) {
-                    errorStream.println("Tip name, " + taxon.getName() + ", doesn't have enough fields (index-header = " + indexHeader + ")");
-                    System.exit(1);
+    /**
+     * Starts a thread that reads the trees and submits the parsing and analysis of each one to the executor. The
+     * futures are put in the queue in the order of the trees followed by one with a null result at the end (or
+     * one with the exception if reading fails).
+     */
+    private <T> Thread startTreeReader(TreeSource trees, TreeAnalysis<T> analysis, ExecutorService executor,
+                                       BlockingQueue<Future<AnalysedTree<T>>> analysedTrees) {
+        Thread reader = new Thread(() -> {
+            try {
+                try {
+                    Callable<RootedTree> parser;
+                    while ((parser = trees.nextTree()) != null) {
+                        final Callable<RootedTree> treeParser = parser;
+                        analysedTrees.put(executor.submit(() -> {
+                            RootedTree tree = treeParser.call();
+                            return new AnalysedTree<>(tree, analysis.analyseTree(tree));
+                        }));
+                    }
+                    analysedTrees.put(completedFuture(() -> null));
+                } catch (IOException | ImportException | RuntimeException e) {
+                    analysedTrees.put(completedFuture(() -> {
+                        throw e;
+                    }));
                 }
-                index = headers[indexHeader - 1];
+            } catch (InterruptedException ie) {
+                // processing has stopped
             }
-            taxonMap.put(taxon, index);
+        }, "processTrees reader");
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+
+    private static RootedTree parseTree(Callable<RootedTree> parser) throws IOException, ImportException {
+        try {
+            return parser.call();
+        } catch (IOException | ImportException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static <T> Future<T> completedFuture(Callable<T> callable) {
+        FutureTask<T> future = new FutureTask<>(callable);
+        future.run();
+        return future;
+    }
+
+    private static <T> AnalysedTree<T> getAnalysedTree(Future<AnalysedTree<T>> future) throws IOException, ImportException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ImportException) {
+                throw (ImportException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static class AnalysedTree<T> {
+        AnalysedTree(RootedTree tree, T result) {
+            this.tree = tree;
+            this.result = result;
         }
 
-        return taxonMap;
+        final RootedTree tree;
+        final T result;
     }
 
+    /**
+     * @return the index value for a tip name - the field given by indexHeader if it was set or else the whole name
+     */
+    final String getTaxonIndex(String name) {
+        if (fieldExtractor != null) {
+            // if an index header field has been specified then extract it (otherwise use the entire name)
+            String index = fieldExtractor.getKey(name);
+            if (index == null) {
+                errorStream.println("Tip name, " + name + ", doesn't have enough fields (index-header = " + indexHeader + ")");
+                System.exit(1);
+            }
+            return index;
+        }
+        return name;
+    }
+
+    /**
+     * The index values of the tips of one tree. Commands that need both maps should index the tree once and keep
+     * this rather than asking for each map (the tree shouldn't be changed while it is in use).
+     */
+    static final class TipIndex {
+        private TipIndex(Map<Taxon, String> taxonMap, Map<String, Node> tipMap) {
+            this.taxonMap = Collections.unmodifiableMap(taxonMap);
+            this.tipMap = Collections.unmodifiableMap(tipMap);
+        }
+
+        // the index value of each taxon of the tree
+        final Map<Taxon, String> taxonMap;
+        // the tip for each index value in the tree
+        final Map<String, Node> tipMap;
+    }
+
+    /**
+     * @return the index value of each taxon of the tree (don't change the map)
+     */
+    final Map<Taxon, String> getTaxonMap(RootedTree tree) {
+        return indexTips(tree).taxonMap;
+    }
 
+    /**
+     * @return the tip for each index value in the tree (don't change the map)
+     */
     final Map<String, Node> getTipMap(RootedTree tree) {
-        Map<String, Node> tipMap = new HashMap<>();
+        return indexTips(tree).tipMap;
+    }
 
-        for (Node tip : tree.getExternalNodes()) {
+    /**
+     * Finds the index values of the tips of a tree. Nothing is kept in the command so trees can be indexed on
+     * several threads at once.
+     */
+    final TipIndex indexTips(RootedTree tree) {
+        Set<Node> tips = tree.getExternalNodes();
+        Map<Taxon, String> taxonMap = new HashMap<>();
+        Map<String, Node> tipMap = new HashMap<>();
+        for (Node tip : tips) {
             Taxon taxon = tree.getTaxon(tip);
-            String index = taxon.getName();
-            if (indexHeader > 0) { // index header indexed from 1
-                // if an index header field has been specified then split it out (otherwise use the entire name)
-                String[] headers = taxon.getName().split(headerDelimiter);
-                if (indexHeader > headers.length) {
-                    errorStream.println("Tip name, " + taxon.getName() + ", doesn't have enough fields (index-header = " + indexHeader + ")");
-                    System.exit(1);
-                }
-                index = headers[indexHeader - 1];
-            }
+            String index = getTaxonIndex(taxon.getName());
+            taxonMap.put(taxon, index);
             tipMap.put(index, tip);
         }
+        return new TipIndex(taxonMap, tipMap);
+    }
 
-        return tipMap;
+    /**
+     * @return the taxa given on the command line followed by those read from the taxon file as a set (without
+     * duplicates) so that checking whether a tip is one of them is a hash lookup rather than a search of a list
+     */
+    final Set<String> getTargetTaxa(String[] targetTaxa) {
+        Set<String> targetTaxaSet = new NameSet((targetTaxa != null ? targetTaxa.length : 0) + (taxa != null ? taxa.size() : 0));
+        if (targetTaxa != null) {
+            Collections.addAll(targetTaxaSet, targetTaxa);
+        }
+        if (taxa != null) {
+            targetTaxaSet.addAll(taxa);
+        }
+        return targetTaxaSet;
+    }
+
+    /**
+     * Checks that the index values are all in a tree's tip map. All the missing ones are reported before exiting.
+     */
+    final void checkTaxaInTree(Map<String, Node> tipMap, Collection<String> keys) {
+        int missingCount = 0;
+        for (String key : keys) {
+            if (!tipMap.containsKey(key)) {
+                errorStream.println("Taxon, " + key + ", not found in tree");
+                missingCount++;
+            }
+        }
+        if (missingCount > 0) {
+            System.exit(1);
+        }
     }
 
     static void clearExternalAttributes(RootedTree tree) {
@@ -347,8 +797,8 @@ abstract class Command {
     }
 
     /**
-     * Recursively sets an attribute. If oldAttributeName and oldAttributeValue are give then only sets the new attribute
-     * if the old attribute exists and has the given value.
+     * Sets an attribute on a node and all its descendants. If oldAttributeName and oldAttributeValue are give then
+     * only sets the new attribute if the old attribute exists and has the given value.
      * @param tree
      * @param node
      * @param oldAttributeName
@@ -357,18 +807,17 @@ abstract class Command {
      * @param newAttributeValue
      */
     static void propagateAttribute(RootedTree tree, Node node, String oldAttributeName, Object oldAttributeValue, String newAttributeName, String newAttributeValue) {
-        if (!tree.isExternal(node)) {
-            for (Node child : tree.getChildren(node)) {
-                propagateAttribute(tree, child, oldAttributeName, oldAttributeValue, newAttributeName, newAttributeValue);
-            }
-        }
-        if (oldAttributeName != null) {
-            Object value = node.getAttribute(oldAttributeName);
-            if (value != null && (oldAttributeValue == null || value.equals(oldAttributeValue))) {
-                node.setAttribute(newAttributeName, newAttributeValue);
+        TreeTraversal nodes = new TreeTraversal(tree, node);
+        for (int i = 0; i < nodes.getNodeCount(); i++) {
+            Node descendant = nodes.getNode(i);
+            if (oldAttributeName != null) {
+                Object value = descendant.getAttribute(oldAttributeName);
+                if (value != null && (oldAttributeValue == null || value.equals(oldAttributeValue))) {
+                    descendant.setAttribute(newAttributeName, newAttributeValue);
+                }
+            } else {
+                descendant.setAttribute(newAttributeName, newAttributeValue);
             }
-        } else {
-            node.setAttribute(newAttributeName, newAttributeValue);
         }
     }
 
@@ -399,14 +848,16 @@ abstract class Command {
                       String[] columnNames,
                       boolean ignoreMissing) {
 
+        int[] columns = getMetadataColumns(columnNames);
+
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
             String value = null;
             int i = 0;
             do {
-                value = getTipAnnotation(key, columnNames[i], ignoreMissing);
+                value = getTipAnnotation(key, columns[i], ignoreMissing);
                 i++;
-            } while (value == null && i < columnNames.length);
+            } while (value == null && i < columns.length);
 
             if (value != null) {
                 tip.setAttribute(annotationName, value);
@@ -414,11 +865,19 @@ abstract class Command {
         }
     }
 
-    String getTipAnnotation(String tipIndex, String columnName, boolean ignoreMissing) {
-        CSVRecord record = metadata.get(tipIndex);
-        if (record != null) {
-            if (!record.get(columnName).isEmpty()) {
-                return record.get(columnName);
+    /**
+     * Gets the value of a column of the metadata table for a tip
+     * @param tipIndex the index value of the tip
+     * @param column the column number (see getMetadataColumns)
+     * @param ignoreMissing
+     * @return the value or null if it is empty or the tip is missing
+     */
+    String getTipAnnotation(String tipIndex, int column, boolean ignoreMissing) {
+        int row = metadata.getRow(tipIndex);
+        if (row != -1) {
+            String value = metadata.get(row, column);
+            if (!value.isEmpty()) {
+                return value;
             }
         } else if (!ignoreMissing) {
             errorStream.println("Tip index, " + tipIndex + ", not found in metadata table");
@@ -428,40 +887,64 @@ abstract class Command {
         return null;
     }
 
+    /**
+     * Looks up the column numbers for a set of metadata table column names. Exits with an error if any are not
+     * in the table.
+     * @param columnNames
+     * @return the column numbers
+     */
+    int[] getMetadataColumns(String[] columnNames) {
+        int[] columns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columns[i] = metadata.getColumnIndex(columnNames[i]);
+            if (columns[i] == -1) {
+                errorStream.println("Column, " + columnNames[i] + ", not found in metadata table");
+                System.exit(1);
+            }
+        }
+        return columns;
+    }
+
     static int countTips(RootedTree tree, Node node) {
+        if (tree instanceof ArrayRootedTree) {
+            return ((ArrayRootedTree)tree).getExternalNodeCount(node);
+        }
         if (tree.isExternal(node)) {
             return 1;
         }
 
+        TreeTraversal nodes = new TreeTraversal(tree, node);
         int count = 0;
-        for (Node child : tree.getChildren(node)) {
-            count += countTips(tree, child);
+        for (int i = 0; i < nodes.getNodeCount(); i++) {
+            if (nodes.isExternal(i)) {
+                count++;
+            }
         }
         return count;
     }
 
-    static int countTips(RootedTree tree, Node node, String attributeName, Object value) {
-        if (tree.isExternal(node)) {
-            return value.equals(node.getAttribute(attributeName)) ? 1 : 0;
-        }
-
-        int count = 0;
-        for (Node child : tree.getChildren(node)) {
-            count += countTips(tree, child, attributeName, value);
-        }
-        return count;
+    /**
+     * Counts the tips below a node from the tips cached for the tree
+     * @param tips
+     * @param node
+     * @return
+     */
+    static int countTips(SubtreeTips tips, Node node) {
+        return tips.getTipCount(tips.getIndex(node));
     }
 
-    static Set<Node> collectTips(RootedTree tree, Node node) {
-        if (tree.isExternal(node)) {
-            return Collections.singleton(node);
-        }
+    static int countTips(SubtreeTips tips, Node node, String attributeName, Object value) {
+        return tips.getValueCount(tips.getIndex(node), attributeName, value);
+    }
 
-        Set<Node> tips = new HashSet<>();
-        for (Node child : tree.getChildren(node)) {
-            tips.addAll(collectTips(tree, child));
-        }
-        return tips;
+    /**
+     * Gets the tips below a node from the tips cached for the tree
+     * @param tips
+     * @param node
+     * @return the tips in pre-order
+     */
+    static List<Node> collectTips(SubtreeTips tips, Node node) {
+        return tips.getTips(tips.getIndex(node));
     }
 
     /**
@@ -474,20 +957,54 @@ abstract class Command {
     static Set<String> collectContent(RootedTree tree, Node node) {
         if (!tree.isExternal(node)) {
             Set<String> content = new TreeSet<>();
+            TreeTraversal nodes = new TreeTraversal(tree, node);
+            collectContent(nodes, 0, content);
+            return content;
+        } else {
+            return Collections.singleton(tree.getTaxon(node).getName());
+        }
+    }
 
-            for (Node child : tree.getChildren(node)) {
-                String subtree = (String)child.getAttribute("subtree");
-                if (subtree != null) {
-                    content.add(subtree);
-                } else {
-                    content.addAll(collectContent(tree, child));
+    /**
+     * Adds the taxa subtended by an internal node of a TreeTraversal to a set - if a descendant is a subtree
+     * then it just adds that label.
+     * @param nodes
+     * @param node
+     * @param content
+     */
+    static void collectContent(TreeTraversal nodes, int node, Set<String> content) {
+        int i = node + 1;
+        while (i < nodes.getSubtreeEnd(node)) {
+            Node descendant = nodes.getNode(i);
+            String subtree = (String)descendant.getAttribute("subtree");
+            if (subtree != null) {
+                content.add(subtree);
+                i = nodes.getSubtreeEnd(i);
+            } else {
+                if (nodes.isExternal(i)) {
+                    content.add(nodes.getTree().getTaxon(descendant).getName());
                 }
+                i++;
             }
+        }
+    }
 
-            return content;
-        } else {
-            return Collections.singleton(tree.getTaxon(node).getName());
+    /**
+     * Copies the attributes and height of a node to its copy in a new tree
+     * @param tree
+     * @param node
+     * @param newNode
+     * @param newTree
+     * @return the new node
+     */
+    static Node copyNode(RootedTree tree, Node node, Node newNode, SimpleRootedTree newTree) {
+        for( Map.Entry<String, Object> e : node.getAttributeMap().entrySet() ) {
+            newNode.setAttribute(e.getKey(), e.getValue());
         }
+
+        newTree.setHeight(newNode, tree.getHeight(node));
+
+        return newNode;
     }
 
     /**
@@ -508,16 +1025,15 @@ abstract class Command {
         return attributeValues;
     }
 
-    static Map<Object, Integer> getTipAttributes(RootedTree tree, Node node, String attributeName) {
-        Set<Node> tips = collectTips(tree, node);
-        Map<Object, Integer> attributeCounts = new HashMap<>();
-        for (Node tip: tips) {
-            String lineage = (String)tip.getAttribute(attributeName);
-            if (lineage != null) {
-                int count = attributeCounts.getOrDefault(lineage, 0);
-                attributeCounts.put(lineage, count + 1);
-            }
-        }
+    /**
+     * Counts the values of an attribute for the tips below a node from the tips cached for the tree
+     * @param tips
+     * @param node
+     * @param attributeName
+     * @return the number of tips with each value, the most common first
+     */
+    static Map<Object, Integer> getTipAttributes(SubtreeTips tips, Node node, String attributeName) {
+        Map<Object, Integer> attributeCounts = tips.getValueCounts(tips.getIndex(node), attributeName);
         Map<Object, Integer> sortedCounts = attributeCounts
                 .entrySet()
                 .stream()
@@ -527,23 +1043,8 @@ abstract class Command {
         return sortedCounts;
     }
 
-    static String getMostCommonAttribute(RootedTree tree, Node node, String attributeName) {
-        Set<Node> tips = collectTips(tree, node);
-        Map<String, Integer> lineageCounts = new HashMap<>();
-        for (Node tip: tips) {
-            String lineage = (String)tip.getAttribute(attributeName);
-            if (lineage != null) {
-                int count = lineageCounts.computeIfAbsent(lineage, k -> 0);
-                lineageCounts.put(lineage, count + 1);
-            }
-        }
-        Map<String, Integer> sortedCounts = lineageCounts
-                .entrySet()
-                .stream()
-                .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                .collect(
-                        toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e2, LinkedHashMap::new));
-        return sortedCounts.keySet().iterator().next();
+    static String getMostCommonAttribute(SubtreeTips tips, Node node, String attributeName) {
+        return (String)getTipAttributes(tips, node, attributeName).keySet().iterator().next();
     }
 
 
@@ -563,57 +1064,157 @@ abstract class Command {
         return strings;
     }
 
-    protected Map<String, CSVRecord> readCSV(String fileName, String indexColumn) {
-        Map<String, CSVRecord> csv = new HashMap<>();
-        try {
-            Reader in = new FileReader(fileName);
-            CSVParser parser = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in);
-            if (indexColumn != null) {
-                // a particular column is used to index - check it is there for the first record
-                // and use it to key the records
-
-                boolean first = true;
-                for (CSVRecord record : parser) {
-                    if (first) {
-                        headerRecord = record;
-                        if (record.get(indexColumn) == null) {
-                            errorStream.println("Index column, " + indexColumn + " not found in metadata table");
-                            System.exit(1);
-                        }
-                        first = false;
+    /**
+     * Reads a CSV (or tab delimited) file into a metadata table
+     * @param fileName
+     * @param indexColumn the name of the column to index the rows by (or the first column if null)
+     * @return the table
+     */
+    protected MetadataTable readCSV(String fileName, String indexColumn) {
+        return readCSV(fileName, indexColumn, null, null);
+    }
+
+    /**
+     * Reads some of the columns and rows of a CSV (or tab delimited) file into a metadata table. If a metadata
+     * cache was given to the constructor then the table is read from the cache file if it matches the file or the
+     * whole file is read and cached.
+     * @param fileName
+     * @param indexColumn the name of the column to index the rows by (or the first column if null)
+     * @param columnNames the columns to keep (the index column is always kept) or null for all of them
+     * @param keys the index values of the rows to keep or null for all of them
+     * @return the table
+     */
+    protected MetadataTable readCSV(String fileName, String indexColumn, String[] columnNames, Set<String> keys) {
+        if (metadataCache != null) {
+            Path path = Paths.get(fileName);
+            try {
+                MetadataCache.CachedTable cached = metadataCache.open(path);
+                if (cached == null || cached.getIndexColumn() != getIndexColumn(cached.getHeaderNames(), indexColumn)) {
+                    MetadataTable table = parseCSV(fileName, indexColumn, null, null);
+                    metadataCache.write(path, table);
+                    if (isVerbose) {
+                        outStream.println("Wrote metadata cache: " + metadataCache.getCacheFile(path));
                     }
-                    String key = record.get(indexColumn);
-                    if (!key.isEmpty()) {
-                        if (csv.containsKey(key)) {
-                            errorStream.println("Duplicate index value, " + key + " in metadata table");
-//                        System.exit(1);
-                        }
-                        csv.put(key, record);
+                    if (columnNames == null && keys == null) {
+                        return table;
                     }
+                    cached = metadataCache.open(path);
+                } else if (isVerbose) {
+                    outStream.println("Read metadata cache: " + metadataCache.getCacheFile(path));
                 }
-            } else {
-                // key the records against the first column
-                boolean first = true;
-                for (CSVRecord record : parser) {
-                    if (first) {
-                        headerRecord = record;
-                        first = false;
-                    }
-                    String key = record.get(0);
-                    if (!key.isEmpty()) {
-                        if (csv.containsKey(key)) {
-                            errorStream.println("Duplicate index value, " + key + " in metadata table");
+                if (cached != null) {
+                    List<String> headerNames = cached.getHeaderNames();
+                    int index = getIndexColumn(headerNames, indexColumn);
+                    return cached.getTable(getKeptColumns(headerNames, index, columnNames), keys);
+                }
+            } catch (IOException e) {
+                errorStream.println("Error using metadata cache: " + e.getMessage());
+            }
+        }
+        return parseCSV(fileName, indexColumn, columnNames, keys);
+    }
+
+    /**
+     * Parses some of the columns and rows of a CSV (or tab delimited) file into a metadata table
+     */
+    private MetadataTable parseCSV(String fileName, String indexColumn, String[] columnNames, Set<String> keys) {
+        MetadataTable table = null;
+        try (DelimitedFileReader reader = new DelimitedFileReader(Paths.get(fileName))) {
+            List<String> headerNames = reader.getHeaderNames();
+            int index = getIndexColumn(headerNames, indexColumn);
+            int[] keptColumns = getKeptColumns(headerNames, index, columnNames);
+
+            List<String> keptNames = new ArrayList<>();
+            int keptIndex = 0;
+            for (int column : keptColumns) {
+                if (column == index) {
+                    keptIndex = keptNames.size();
+                }
+                keptNames.add(headerNames.get(column));
+            }
+            final MetadataTable keptTable = new MetadataTable(keptNames, keptIndex);
+            final int keyIndex = keptIndex;
+
+            reader.readRecords(keptColumns, index, keys, values -> {
+                String key = values[keyIndex];
+                if (!key.isEmpty()) {
+                    if (keptTable.getRow(key) != -1) {
+                        errorStream.println("Duplicate index value, " + key + " in metadata table");
 //                        System.exit(1);
-                        }
-                        csv.put(key, record);
                     }
+                    keptTable.addRow(values);
                 }
-            }
+            });
+            table = keptTable;
         } catch (IOException e) {
             errorStream.println("Error reading metadata file: " + e.getMessage());
             System.exit(1);
         }
-        return csv;
+        return table;
+    }
+
+    /**
+     * Reads just the values of the index column of a CSV (or tab delimited) file
+     * @param fileName
+     * @param indexColumn the name of the index column (or the first column if null)
+     * @param keys given the index values
+     */
+    private void readCSVIndex(String fileName, String indexColumn, Set<String> keys) {
+        try (DelimitedFileReader reader = new DelimitedFileReader(Paths.get(fileName))) {
+            int index = getIndexColumn(reader.getHeaderNames(), indexColumn);
+            reader.readRecords(new int[] { index }, index, null, values -> {
+                if (!values[0].isEmpty() && !keys.add(values[0])) {
+                    errorStream.println("Duplicate index value, " + values[0] + " in metadata table");
+                }
+            });
+        } catch (IOException e) {
+            errorStream.println("Error reading metadata file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the column number of the index column (the first column if indexColumn is null)
+     */
+    private int getIndexColumn(List<String> headerNames, String indexColumn) {
+        int index = 0;
+        if (indexColumn != null) {
+            // a particular column is used to index - check it is there
+            index = headerNames.indexOf(indexColumn);
+            if (index == -1) {
+                errorStream.println("Index column, " + indexColumn + " not found in metadata table");
+                System.exit(1);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the column numbers of the columns to keep in the order of the file (always including the index
+     * column)
+     */
+    private int[] getKeptColumns(List<String> headerNames, int index, String[] columnNames) {
+        boolean[] isKept = new boolean[headerNames.size()];
+        if (columnNames != null) {
+            isKept[index] = true;
+            for (String name : columnNames) {
+                int column = headerNames.indexOf(name);
+                if (column == -1) {
+                    errorStream.println("Column, " + name + ", not found in metadata table");
+                    System.exit(1);
+                }
+                isKept[column] = true;
+            }
+        } else {
+            Arrays.fill(isKept, true);
+        }
+        List<Integer> keptColumns = new ArrayList<>();
+        for (int i = 0; i < headerNames.size(); i++) {
+            if (isKept[i]) {
+                keptColumns.add(i);
+            }
+        }
+        return keptColumns.stream().mapToInt(Integer::intValue).toArray();
     }
 
     /**
@@ -632,60 +1233,69 @@ abstract class Command {
      */
     void writeTreeFile(List<RootedTree> trees, String fileName, FormatType format) {
         try {
-            FileWriter writer = new FileWriter(fileName);
-
-            TreeExporter exporter;
-
-            switch (format) {
-                case NEXUS:
-                    exporter = new NexusExporter(writer);
-                    break;
-                case NEWICK:
-                    exporter = new NewickExporter(writer);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown format: " + format);
-            }
-
+            TreeExporter exporter = createTreeExporter(fileName, format);
             exporter.exportTrees(trees);
             exporter.close();
         } catch (IOException e) {
             errorStream.println("Error writing tree file: " + e.getMessage());
             System.exit(1);
+        } catch (UncheckedIOException e) {
+            errorStream.println("Error writing tree file: " + e.getCause().getMessage());
+            System.exit(1);
         }
     }
 
     /**
-     * Writes a csv file
-     * @param records
+     * Creates an exporter to write a tree file in the given format
+     * @param fileName
+     * @param format
+     * @return the exporter
+     * @throws IOException
+     */
+    TreeExporter createTreeExporter(String fileName, FormatType format) throws IOException {
+        // compressed if the file name ends in '.gz'
+        OutputStream out = CompressedFiles.openOutputStream(Paths.get(fileName));
+        switch (format) {
+            case NEXUS:
+            case NEWICK:
+                TreeFileExporter treeFileExporter = new TreeFileExporter(out, format, significantDigits);
+                treeFileExporter.setUsingTranslateTable(isUsingTranslateTable);
+                return treeFileExporter;
+            case BINARY:
+                return new BinaryTreeExporter(out);
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    /**
+     * Writes a csv file with some rows of the metadata table
+     * @param rows
      * @param fileName
      */
-    void writeMetadataFile(List<CSVRecord> records, String fileName) {
-        writeCSVFile(records, fileName);
+    void writeMetadataFile(List<Integer> rows, String fileName) {
+        writeCSVFile(metadata, rows, fileName);
     }
 
     /**
      * Writes a csv file
-     * @param records
+     * @param table
+     * @param rows
      * @param fileName
      */
-    private static void writeCSVFile(List<CSVRecord> records, String fileName) {
+    private static void writeCSVFile(MetadataTable table, List<Integer> rows, String fileName) {
         try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
-
-            List<String> headerNames = records.get(0).getParser().getHeaderNames();
-            writer.println(String.join(",", headerNames));
-
-            for (CSVRecord record : records) {
-                boolean first = true;
-                for (String value : record) {
-                    if (first) {
-                        writer.print(value);
-                        first = false;
-                    } else {
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    CompressedFiles.openOutputStream(Paths.get(fileName)), StandardCharsets.UTF_8)));
+
+            writer.println(String.join(",", table.getHeaderNames()));
+
+            for (int row : rows) {
+                for (int i = 0; i < table.getColumnCount(); i++) {
+                    if (i > 0) {
                         writer.print(",");
-                        writer.print(value);
                     }
+                    writer.print(table.get(row, i));
                 }
                 writer.println();
             }
@@ -704,7 +1314,8 @@ abstract class Command {
      */
     static void writeTextFile(List<String> lines, String fileName) {
         try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    CompressedFiles.openOutputStream(Paths.get(fileName)), StandardCharsets.UTF_8)));
 
             for (String line : lines) {
                 writer.println(line);
@@ -727,26 +1338,22 @@ abstract class Command {
     void splitSubtrees(RootedTree tree, String attributeName, Object attributeValue, boolean includeNested,
                        String outputPath, String outputFileStem, boolean labelWithValue, FormatType outputFormat) {
 
-        splitSubtrees(tree, tree.getRootNode(), attributeName, attributeValue,
-                null, includeNested, outputPath, outputFileStem, labelWithValue, outputFormat,
-                new HashMap<Object, Integer>());
-    }
+        Map<Object, Integer> prunedMap = new HashMap<>();
 
-    /**
-     * recursive version
-     * @param tree
-     * @param node
-     * @param attributeName
-     * @param parentValue
-     * @param outputFileStem
-     */
-    private void splitSubtrees(RootedTree tree, Node node, String attributeName, Object attributeValue, Object parentValue, boolean includeNested,
-                               String outputPath, String outputFileStem, boolean labelWithValue, FormatType outputFormat, Map<Object, Integer> prunedMap) {
-        if (!tree.isExternal(node)) {
+        TreeTraversal nodes = new TreeTraversal(tree);
+        int i = 0;
+        while (i < nodes.getNodeCount()) {
+            if (nodes.isExternal(i)) {
+                i++;
+                continue;
+            }
+
+            Node node = nodes.getNode(i);
             boolean wasSplit = false;
 
             Object value = node.getAttribute(attributeName);
             if (attributeValue.equals(value)) {
+                Object parentValue = (i > 0 ? nodes.getNode(nodes.getParent(i)).getAttribute(attributeName) : null);
                 if (!value.equals(parentValue)) {
                     SimpleRootedTree subtree = new SimpleRootedTree();
                     subtree.createNodes(tree, node);
@@ -768,12 +1375,8 @@ abstract class Command {
                 }
             }
 
-            if (!wasSplit || includeNested) {
-                for (Node child : tree.getChildren(node)) {
-                    splitSubtrees(tree, child, attributeName, attributeValue, value, includeNested, outputPath, outputFileStem, labelWithValue, outputFormat, prunedMap);
-                }
-            }
-
+            // carry on into the children or skip over the subtree that was written
+            i = (!wasSplit || includeNested ? i + 1 : nodes.getSubtreeEnd(i));
         }
     }
 
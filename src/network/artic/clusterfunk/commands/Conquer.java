@@ -21,14 +21,16 @@ import java.util.Map;
  * The reverse of Divide - reconstructs a supertree from a set of subtrees
  */
 public class Conquer extends Command {
-    private static final String[] TREE_EXTENSIONS = {".tree", ".nexus", ".nex", ".newick", ".nwk"};
+    private static final String[] TREE_EXTENSIONS = {".tree", ".nexus", ".nex", ".newick", ".nwk", ".binary"};
 
     public Conquer(String inputPath,
                    String outputFileName,
                    FormatType outputFormat,
+                   int significantDigits,
+                   boolean isUsingTranslateTable,
                    boolean isVerbose) {
 
-        super(isVerbose);
+        super(significantDigits, isUsingTranslateTable, isVerbose);
 
         String path = checkOutputPath(inputPath);
 
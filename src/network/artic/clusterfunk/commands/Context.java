@@ -3,9 +3,11 @@ package network.artic.clusterfunk.commands;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
-import jebl.evolution.trees.RootedTreeUtils;
 import jebl.evolution.trees.SimpleRootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.metadata.MetadataCache;
+import network.artic.clusterfunk.trees.IndexSet;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -25,9 +27,12 @@ public class Context extends Command {
                    String taxaFileName,
                    String[] targetTaxa,
                    String metadataFileName,
+                   MetadataCache metadataCache,
                    String outputPath,
                    String outputFileStem,
                    FormatType outputFormat,
+                   int significantDigits,
+                   boolean isUsingTranslateTable,
                    boolean outputTaxa,
                    String indexColumn,
                    int indexHeader,
@@ -41,17 +46,26 @@ public class Context extends Command {
                    boolean ignoreMissing,
                    boolean isVerbose) {
 
-        super(metadataFileName, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, metadataCache, taxaFileName, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
-        List<String> targetTaxaList = (targetTaxa != null ? Arrays.asList(targetTaxa) : Collections.emptyList());
+        if (metadataFileName != null) {
+            // all the rows are needed if the metadata provides the taxa
+            readMetadataTable(metadataFileName,
+                    collapseBy != null ? new String[] { collapseBy } : new String[0],
+                    null);
+        }
+
+        Set<String> targetTaxaSet = getTargetTaxa(targetTaxa);
 
-        if (taxa == null && targetTaxaList.size() == 0) {
+        if (taxa == null && targetTaxaSet.size() == 0) {
             throw new IllegalArgumentException("context command requires a taxon list and/or additional target taxa");
         }
 
         RootedTree tree = readTree(treeFileName);
 
-        Map<Taxon, String> taxonMap = getTaxonMap(tree);
+        TipIndex tipIndex = indexTips(tree);
+
+        Map<Taxon, String> taxonMap = tipIndex.taxonMap;
 
         if (collapseBy != null) {
             annotateTips(tree, taxonMap, collapseBy, ignoreMissing);
@@ -60,44 +74,36 @@ public class Context extends Command {
         String path = checkOutputPath(outputPath);
 
         if (!ignoreMissing && taxa != null) {
-                for (String key : taxa) {
-                    if (!taxonMap.containsValue(key)) {
-                        errorStream.println("Taxon, " + key + ", not found in tree");
-                        System.exit(1);
-                    }
-                }
-
-            for (String key : targetTaxaList) {
-                if (!taxonMap.containsValue(key)) {
-                    errorStream.println("Taxon, " + key + ", not found in tree");
-                    System.exit(1);
-                }
-            }
+            checkTaxaInTree(tipIndex.tipMap, targetTaxaSet);
         }
 
-        Set<Node> targetTips = new HashSet<>();
+        TreeTraversal nodes = new TreeTraversal(tree);
 
-        for (Node tip : tree.getExternalNodes()) {
-            Taxon taxon = tree.getTaxon(tip);
-            String index = taxonMap.get(taxon);
-            if ((taxa != null && taxa.contains(index)) || targetTaxaList.contains(index)) {
-                targetTips.add(tip);
+        // the target tips by their numbers in the traversal
+        IndexSet targetTips = new IndexSet();
+        for (int i = 0; i < nodes.getNodeCount(); i++) {
+            if (nodes.isExternal(i)) {
+                Taxon taxon = tree.getTaxon(nodes.getNode(i));
+                String index = taxonMap.get(taxon);
+                if (targetTaxaSet.contains(index)) {
+                    targetTips.add(i);
+                }
             }
         }
 
         Map<Node, Subtree> subtreeMap = new HashMap<>();
 
         if (!mrca) {
-            annotateContext(tree, targetTips, maxParentLevel);
+            annotateContext(nodes, targetTips, maxParentLevel);
         } else {
-            Node node = RootedTreeUtils.getCommonAncestorNode(tree, targetTips);
+            Node node = nodes.getNode(nodes.getMRCA(targetTips));
             node.setAttribute("include", true);
         }
 
-        collectSubtrees(tree, tree.getRootNode(), false, subtreeMap);
+        collectSubtrees(nodes, subtreeMap);
 
-        for (Node node : subtreeMap.keySet()) {
-            collapseSubtrees(tree, node, 0, maxChildLevel, tipBudget);
+        for (Subtree subtree : subtreeMap.values()) {
+            collapseSubtrees(nodes, subtree.index, maxChildLevel, tipBudget);
         }
 
         Map<String, Set<String>> collapsedNodeMap = new HashMap<>();
@@ -109,59 +115,81 @@ public class Context extends Command {
         writeCollapsedNodes(collapsedNodeMap, path, outputFileStem);
     }
 
-    private void annotateContext(RootedTree tree, Set<Node> targetTips, int maxParentLevel) {
-        for (Node tip : tree.getExternalNodes()) {
-            if (targetTips.contains(tip)) {
-                Node node = tip;
-                int parentLevel = 0;
-                do {
-                    node = tree.getParent(node);
-                    parentLevel += 1;
-                    node.setAttribute("include", true);
-                } while (maxParentLevel > 0 && parentLevel < maxParentLevel && !tree.isRoot(node));
-            }
+    private void annotateContext(TreeTraversal nodes, IndexSet targetTips, int maxParentLevel) {
+        PrimitiveIterator.OfInt tips = targetTips.intIterator();
+        while (tips.hasNext()) {
+            int node = tips.nextInt();
+            int parentLevel = 0;
+            do {
+                node = nodes.getParent(node);
+                parentLevel += 1;
+                nodes.getNode(node).setAttribute("include", true);
+            } while (maxParentLevel > 0 && parentLevel < maxParentLevel && node != 0);
         }
     }
 
     /**
      * Finds the nodes which transition from not included to included as the root of a subtree.
-     * @param tree
-     * @param node
-     * @param parentIncluded
+     * @param nodes
      * @param subtreeMap
      */
-    private void collectSubtrees(RootedTree tree, Node node, boolean parentIncluded, Map<Node, Subtree> subtreeMap) {
-        if (!tree.isExternal(node)) {
-            boolean included = node.getAttribute("include") == Boolean.TRUE;
-            if (!parentIncluded && included) {
-                String name = "subtree_" + (subtreeMap.size() + 1);
-                node.setAttribute("subtree", name);
-                subtreeMap.put(node, new Subtree(node, name));
-            }
-            for (Node child : tree.getChildren(node)) {
-                collectSubtrees(tree, child, included, subtreeMap);
+    private void collectSubtrees(TreeTraversal nodes, Map<Node, Subtree> subtreeMap) {
+        for (int i = 0; i < nodes.getNodeCount(); i++) {
+            if (!nodes.isExternal(i)) {
+                Node node = nodes.getNode(i);
+                boolean included = node.getAttribute("include") == Boolean.TRUE;
+                boolean parentIncluded = i > 0 && nodes.getNode(nodes.getParent(i)).getAttribute("include") == Boolean.TRUE;
+                if (!parentIncluded && included) {
+                    String name = "subtree_" + (subtreeMap.size() + 1);
+                    node.setAttribute("subtree", name);
+                    subtreeMap.put(node, new Subtree(node, i, name));
+                }
             }
         }
     }
 
-    private void collapseSubtrees(RootedTree tree, Node node, int childLevel, int maxChildLevel, int maxTreeSize) {
-        if (!tree.isExternal(node)) {
+    /**
+     * Collapses the nodes more than maxChildLevel levels below an included node into a content set
+     * @param nodes
+     * @param node the root of the subtree
+     * @param maxChildLevel
+     * @param maxTreeSize
+     */
+    private void collapseSubtrees(TreeTraversal nodes, int node, int maxChildLevel, int maxTreeSize) {
+        int end = nodes.getSubtreeEnd(node);
+        // the number of levels each node is below an included node (indexed from the subtree root)
+        int[] childLevels = new int[end - node];
+
+        int i = node;
+        while (i < end) {
+            if (nodes.isExternal(i)) {
+                i++;
+                continue;
+            }
+
+            int childLevel = childLevels[i - node];
             if (maxChildLevel > 0 && childLevel > maxChildLevel) {
                 Set<String> content = new TreeSet<>();
-                for (Node child : tree.getChildren(node)) {
-                    content.addAll(collectContent(tree, child));
+                for (int child = nodes.getFirstChild(i); child != -1; child = nodes.getNextSibling(child)) {
+                    if (nodes.isExternal(child)) {
+                        content.add(nodes.getTree().getTaxon(nodes.getNode(child)).getName());
+                    } else {
+                        collectContent(nodes, child, content);
+                    }
                 }
                 // collapse the node
-                node.setAttribute("content", content);
+                nodes.getNode(i).setAttribute("content", content);
+                i = nodes.getSubtreeEnd(i);
             } else {
-                for (Node child : tree.getChildren(node)) {
-                    if (child.getAttribute("include") == Boolean.TRUE) {
+                for (int child = nodes.getFirstChild(i); child != -1; child = nodes.getNextSibling(child)) {
+                    if (nodes.getNode(child).getAttribute("include") == Boolean.TRUE) {
                         // this child has a target tip in it so should not be collapsed - reset the child level count
-                        collapseSubtrees(tree, child, 0, maxChildLevel, maxTreeSize);
+                        childLevels[child - node] = 0;
                     } else {
-                        collapseSubtrees(tree, child, childLevel + 1, maxChildLevel, maxTreeSize);
+                        childLevels[child - node] = childLevel + 1;
                     }
                 }
+                i++;
             }
         }
     }
@@ -182,40 +210,27 @@ public class Context extends Command {
     }
 
     /**
-     * Clones the entire tree structure from the given RootedTree.
+     * Clones the entire tree structure from the given RootedTree. A stack of the internal nodes being copied
+     * is kept rather than recursing.
      * @param tree
      * @param node
      * @return
      */
     private Node createNodes(RootedTree tree, Node node, SimpleRootedTree newTree, int maxPolytomySize, String collapseBy, Map<String, Set<String>> collapsedNodeMap) {
-
-        Node newNode;
         if (tree.isExternal(node)) {
-            newNode = newTree.createExternalNode(tree.getTaxon(node));
-        } else {
-            List<Node> children = new ArrayList<Node>();
+            return copyNode(tree, node, newTree.createExternalNode(tree.getTaxon(node)), newTree);
+        }
 
-            boolean collapsePolytomy = maxPolytomySize > 1 && tree.getChildren(node).size() > maxPolytomySize;
+        Deque<CopyFrame> stack = new ArrayDeque<>();
+        stack.push(new CopyFrame(tree, node, maxPolytomySize, collapseBy));
 
-            Set<String> collapsedContentSet = new TreeSet<String>();
+        while (true) {
+            CopyFrame frame = stack.peek();
 
-            Map<String, Set<String>> collapseByValues = new HashMap<>();
-            if (collapseBy != null) {
-                for (Node child : tree.getChildren(node)) {
-                    if (tree.isExternal(child) && tree.getLength(child) < ZERO_BRANCH_THRESHOLD) {
-                        String collapseByValue = (String)child.getAttribute(collapseBy);
-                        if (collapseByValue != null) {
-                            Set<String> contents = collapseByValues.getOrDefault(collapseByValue, new HashSet<>());
-                            contents.add(tree.getTaxon(child).getName());
-                            collapseByValues.put(collapseByValue, contents);
-                        }
-                    }
-                }
-            }
-
-            Set<String> alreadyCollapsed = new HashSet<>();
+            if (frame.nextChild < frame.children.size()) {
+                Node child = frame.children.get(frame.nextChild);
+                frame.nextChild++;
 
-            for (Node child : tree.getChildren(node)) {
                 String subtree = (String) child.getAttribute("subtree");
                 String collapsedLabel = "collapsed_" + (collapsedNodeMap.size() + 1);
                 Set<String> contentSet = (Set<String>) child.getAttribute("content");
@@ -226,12 +241,12 @@ public class Context extends Command {
 
                 if (contentSet == null && collapseByValue != null) {
                     // alreadyCollapsed contains the collapseByValues that have already been added
-                    if (!alreadyCollapsed.contains(collapseByValue)) {
-                        Set<String> contents = collapseByValues.get(collapseByValue);
+                    if (!frame.alreadyCollapsed.contains(collapseByValue)) {
+                        Set<String> contents = frame.collapseByValues.get(collapseByValue);
                         if (contents != null && contents.size() > 1 && contents.contains(tree.getTaxon(child).getName())) {
                             contentSet = contents;
                             collapsedLabel += "|" + collapseByValue + "-" + contentSet.size();
-                            alreadyCollapsed.add(collapseByValue);
+                            frame.alreadyCollapsed.add(collapseByValue);
                         }
                     } else {
                         // if already added then just hide this tip
@@ -242,47 +257,49 @@ public class Context extends Command {
                 if (!hide) {
                     if (subtree != null) {
                         // is the root of a subtree - replace with a tip labelled as the subtree
-                        Node newChild = newTree.createExternalNode(Taxon.getTaxon(subtree));
-                        children.add(newChild);
+                        Node newChild = newTree.createExternalNode(taxonPool.getTaxon(subtree));
+                        frame.newChildren.add(newChild);
                         newTree.setHeight(newChild, tree.getHeight(child));
                     } else if (contentSet != null) {
-                        if (collapsePolytomy) {
-                            collapsedContentSet.addAll(contentSet);
+                        if (frame.collapsePolytomy) {
+                            frame.collapsedContentSet.addAll(contentSet);
                         } else {
                             // this child has been collapsed so replace it with a content set
                             collapsedNodeMap.put(collapsedLabel, contentSet);
-                            Node newChild = newTree.createExternalNode(Taxon.getTaxon(collapsedLabel));
-                            children.add(newChild);
+                            Node newChild = newTree.createExternalNode(taxonPool.getTaxon(collapsedLabel));
+                            frame.newChildren.add(newChild);
                             newTree.setHeight(newChild, tree.getHeight(child));
                         }
                     } else {
-                        if (include || !collapsePolytomy) {
-                            children.add(createNodes(tree, child, newTree, maxPolytomySize, collapseBy, collapsedNodeMap));
+                        if (include || !frame.collapsePolytomy) {
+                            if (tree.isExternal(child)) {
+                                frame.newChildren.add(copyNode(tree, child, newTree.createExternalNode(tree.getTaxon(child)), newTree));
+                            } else {
+                                // copy the child's subtree before carrying on with this node's children
+                                stack.push(new CopyFrame(tree, child, maxPolytomySize, collapseBy));
+                            }
                         } else {
-                            collapsedContentSet.addAll(collectContent(tree, child));
+                            frame.collapsedContentSet.addAll(collectContent(tree, child));
                         }
                     }
                 }
-            }
-            
-            if (collapsedContentSet.size() > 0) {
-                String label = "collapsed_" + (collapsedNodeMap.size() + 1);
-                collapsedNodeMap.put(label, collapsedContentSet);
-                Node newChild = newTree.createExternalNode(Taxon.getTaxon(label));
-                children.add(newChild);
-                newTree.setHeight(newChild, tree.getHeight(node));
-            }
-
-            newNode = newTree.createInternalNode(children);
-        }
+            } else {
+                if (frame.collapsedContentSet.size() > 0) {
+                    String label = "collapsed_" + (collapsedNodeMap.size() + 1);
+                    collapsedNodeMap.put(label, frame.collapsedContentSet);
+                    Node newChild = newTree.createExternalNode(taxonPool.getTaxon(label));
+                    frame.newChildren.add(newChild);
+                    newTree.setHeight(newChild, tree.getHeight(frame.node));
+                }
 
-        for( Map.Entry<String, Object> e : node.getAttributeMap().entrySet() ) {
-            newNode.setAttribute(e.getKey(), e.getValue());
+                stack.pop();
+                Node newNode = copyNode(tree, frame.node, newTree.createInternalNode(frame.newChildren), newTree);
+                if (stack.isEmpty()) {
+                    return newNode;
+                }
+                stack.peek().newChildren.add(newNode);
+            }
         }
-
-        newTree.setHeight(newNode, tree.getHeight(node));
-
-        return newNode;
     }
 
     /**
@@ -345,13 +362,50 @@ public class Context extends Command {
 
     }
 
+    /**
+     * An internal node being copied by createNodes with the copies of the children done so far
+     */
+    private static class CopyFrame {
+        CopyFrame(RootedTree tree, Node node, int maxPolytomySize, String collapseBy) {
+            this.node = node;
+            this.children = tree.getChildren(node);
+
+            collapsePolytomy = maxPolytomySize > 1 && children.size() > maxPolytomySize;
+
+            if (collapseBy != null) {
+                for (Node child : children) {
+                    if (tree.isExternal(child) && tree.getLength(child) < ZERO_BRANCH_THRESHOLD) {
+                        String collapseByValue = (String)child.getAttribute(collapseBy);
+                        if (collapseByValue != null) {
+                            Set<String> contents = collapseByValues.getOrDefault(collapseByValue, new HashSet<>());
+                            contents.add(tree.getTaxon(child).getName());
+                            collapseByValues.put(collapseByValue, contents);
+                        }
+                    }
+                }
+            }
+        }
+
+        final Node node;
+        final List<Node> children;
+        final List<Node> newChildren = new ArrayList<>();
+        int nextChild = 0;
+
+        final boolean collapsePolytomy;
+        final Set<String> collapsedContentSet = new TreeSet<String>();
+        final Map<String, Set<String>> collapseByValues = new HashMap<>();
+        final Set<String> alreadyCollapsed = new HashSet<>();
+    }
+
     private static class Subtree {
-        public Subtree(Node root, String name) {
+        public Subtree(Node root, int index, String name) {
             this.root = root;
+            this.index = index;
             this.name = name;
         }
 
         Node root;
+        int index;
         String name;
         SimpleRootedTree tree;
     }
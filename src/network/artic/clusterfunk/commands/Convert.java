@@ -0,0 +1,83 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.io.ImportException;
+import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.io.CompressedFiles;
+import network.artic.clusterfunk.io.TreeFileExporter;
+import network.artic.clusterfunk.io.TreeFileImporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Converts a tree file to another format. NEXUS and Newick files are copied a token at a time without building
+ * the trees so the memory used doesn't depend on the size of the trees (unless a translate table is written).
+ */
+public class Convert extends Command {
+    public Convert(String treeFileName,
+                   String outputFileName,
+                   FormatType outputFormat,
+                   int significantDigits,
+                   boolean isUsingTranslateTable,
+                   String[] attributeNames,
+                   boolean isVerbose) {
+
+        super(significantDigits, isUsingTranslateTable, isVerbose);
+
+        if (attributeNames != null) {
+            treeAttributeNames = new HashSet<>(Arrays.asList(attributeNames));
+        }
+
+        FormatType inputFormat = null;
+        try {
+            inputFormat = TreeFileImporter.getFormatType(treeFileName);
+        } catch (IOException ioe) {
+            errorStream.println("Error reading tree file: " + ioe.getMessage());
+            System.exit(1);
+        }
+        if (inputFormat == null) {
+            errorStream.println("Unrecognised tree format in file, " + treeFileName);
+            System.exit(1);
+        }
+
+        if (inputFormat == FormatType.BINARY || outputFormat == FormatType.BINARY ||
+                (outputFormat == FormatType.NEXUS && isUsingTranslateTable)) {
+            // binary files are read and written a tree at a time (as are NEXUS files with a translate table
+            // which needs the taxa of the first tree)
+            processTrees(treeFileName, outputFileName, outputFormat, tree -> tree);
+            return;
+        }
+
+        if (isVerbose) {
+            outStream.println("Converting tree file, " + treeFileName + ", to " + outputFormat.name().toLowerCase() + " format: " + outputFileName);
+        }
+
+        int count = 0;
+        try (InputStream in = CompressedFiles.openInputStream(Paths.get(treeFileName))) {
+            TreeFileImporter importer = new TreeFileImporter(in, inputFormat);
+            importer.setAttributeNames(treeAttributeNames);
+            TreeFileExporter exporter = new TreeFileExporter(CompressedFiles.openOutputStream(Paths.get(outputFileName)), outputFormat,
+                    significantDigits);
+            count = importer.transcodeTrees(exporter);
+            exporter.close();
+        } catch (IOException ioe) {
+            errorStream.println("Error reading tree file: " + ioe.getMessage());
+            System.exit(1);
+        } catch (UncheckedIOException e) {
+            errorStream.println("Error writing tree file: " + e.getCause().getMessage());
+            System.exit(1);
+        } catch (ImportException ie) {
+            errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+            System.exit(1);
+        }
+
+        if (isVerbose) {
+            outStream.println(" Number of trees: " + count);
+            outStream.println();
+        }
+    }
+}
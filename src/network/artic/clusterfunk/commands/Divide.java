@@ -5,6 +5,7 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SimpleRootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -21,16 +22,19 @@ public class Divide extends Command {
                   String outputPath,
                   String outputFileStem,
                   FormatType outputFormat,
+                  int significantDigits,
+                  boolean isUsingTranslateTable,
                   int maxSubtreeCount,
                   int minSubtreeSize,
                   boolean requireOutgroup,
                   boolean isVerbose) {
 
-        super(isVerbose);
+        super(significantDigits, isUsingTranslateTable, isVerbose);
 
         String path = checkOutputPath(outputPath);
 
         RootedTree tree = readTree(treeFileName);
+        TreeTraversal nodes = new TreeTraversal(tree);
 
         Map<Node, Subtree> subtreeMap = new HashMap<>();
 
@@ -42,13 +46,13 @@ public class Divide extends Command {
             }
 
             int minSize = 2;
-            collectSubtrees(tree, tree.getRootNode(), minSize, subtreeMap, requireOutgroup);
+            collectSubtrees(nodes, minSize, subtreeMap, requireOutgroup);
 
             while (subtreeMap.keySet().size() > maxSubtreeCount) {
                 minSize *= 2;
                 subtreeMap.clear();
                 clearInternalAttributes(tree);
-                collectSubtrees(tree, tree.getRootNode(), minSize, subtreeMap, requireOutgroup);
+                collectSubtrees(nodes, minSize, subtreeMap, requireOutgroup);
 
                 if (subtreeMap.size() == 1) {
                     errorStream.println("Failed to divide tree with specified options.");
@@ -64,7 +68,7 @@ public class Divide extends Command {
             if (isVerbose) {
                 outStream.println("Finding a subtrees of " + minSubtreeSize + " minimum size");
             }
-            collectSubtrees(tree, tree.getRootNode(), minSubtreeSize, subtreeMap, requireOutgroup);
+            collectSubtrees(nodes, minSubtreeSize, subtreeMap, requireOutgroup);
         } else {
             errorStream.println("Specify one or other of max-size and max-count");
             System.exit(1);
@@ -83,56 +87,65 @@ public class Divide extends Command {
     }
 
     /**
-     * Finds the nodes which transition from not included to included as the root of a subtree.
-     * @param tree
-     * @param node
+     * Finds the nodes which have more than maxSubtreeSize tips (or subtrees) below them as the roots of subtrees.
+     * The nodes are visited in post-order so each node has the counts of its children.
+     * @param nodes
+     * @param maxSubtreeSize
      * @param subtreeMap
+     * @param requireOutgroup
      */
-    private int collectSubtrees(RootedTree tree, Node node, int maxSubtreeSize, Map<Node, Subtree> subtreeMap, boolean requireOutgroup) {
-        if (!tree.isExternal(node)) {
-            int count = 0;
+    private void collectSubtrees(TreeTraversal nodes, int maxSubtreeSize, Map<Node, Subtree> subtreeMap, boolean requireOutgroup) {
+        RootedTree tree = nodes.getTree();
+        // the number of tips (a subtree counts as one) below each node
+        int[] counts = new int[nodes.getNodeCount()];
+        // the tip used to represent the root of each node's subtree and its distance in nodes (see findRootRepresentative)
+        int[] representatives = new int[nodes.getNodeCount()];
+        int[] distances = new int[nodes.getNodeCount()];
+
+        for (int i = nodes.getFirstPostOrder(); i != -1; i = nodes.getNextPostOrder(i)) {
+            if (nodes.isExternal(i)) {
+                counts[i] = 1;
+                continue;
+            }
 
-            for (Node child : tree.getChildren(node)) {
-                count += collectSubtrees(tree, child, maxSubtreeSize, subtreeMap, requireOutgroup);
+            int count = 0;
+            for (int child = nodes.getFirstChild(i); child != -1; child = nodes.getNextSibling(child)) {
+                count += counts[child];
             }
+            counts[i] = count;
+            findRootRepresentative(nodes, i, representatives, distances, requireOutgroup);
 
+            Node node = nodes.getNode(i);
             if (count > maxSubtreeSize || tree.isRoot(node)) {
 
                 if (!tree.isRoot(node)) {
-                    Map<Integer, List<Taxon>> tipMap = findRootRepresentative(tree, node, 0, requireOutgroup);
-                    if (tipMap.size() > 0) {
+                    if (representatives[i] != -1) {
                         String name = "subtree_" + (subtreeMap.size() + 1);
                         node.setAttribute("subtree", name);
 
                         Subtree subtree = new Subtree(node, name, count);
 
-                        int distance = tipMap.keySet().iterator().next();
-                        subtree.rootRepresentitive = tipMap.get(distance).get(0);
-                        subtree.rootLength = distance;
+                        subtree.rootRepresentitive = tree.getTaxon(nodes.getNode(representatives[i]));
+                        subtree.rootLength = distances[i];
 
                         subtreeMap.put(node, subtree);
+                        counts[i] = 1;
                     } else {
 //                        if (isVerbose) {
 //                            outStream.println("  No outgroup compatible representitive for subtree");
 //                        }
-                        return count;
                     }
                 } else {
                     String name = "subtree_0";
                     node.setAttribute("subtree", name);
 
                     subtreeMap.put(node, new Subtree(node, name, count));
+                    counts[i] = 1;
                 }
-                return 1;
             }
-
-            return count;
         }
-
-        return 1;
     }
 
-
     void createSubtrees(RootedTree tree, Map<Node, Subtree> subtreeMap) {
 
         for (Node key : subtreeMap.keySet()) {
@@ -149,42 +162,57 @@ public class Divide extends Command {
     }
 
     /**
-     * Returns a map of all taxa and their distance from a node.
-     * @param tree
+     * Finds the closest tip to an internal node (the first of its children that is a tip or, if there are none
+     * and an outgroup isn't required, the closest representative of its children - the last if there is a tie)
+     * from those already found for its children.
+     * @param nodes
      * @param node
-     * @return
+     * @param representatives the representative tip of each node or -1 if there isn't one
+     * @param distances the distance of each representative in nodes
+     * @param requireOutgroup
      */
-    private Map<Integer, List<Taxon>> findRootRepresentative(RootedTree tree, Node node, int distance, boolean requireOutgroup) {
-        Map<Integer, List<Taxon>> tipMap  = new TreeMap<>();
-        
-        for (Node child: tree.getChildren(node)) {
-            if (tree.isExternal(child)) {
-                List<Taxon> taxa = tipMap.getOrDefault(distance, new ArrayList<>());
-                taxa.add(tree.getTaxon(child));
-                tipMap.put(distance, taxa);
-            } else if (!requireOutgroup) {
-                tipMap.putAll(findRootRepresentative(tree, child, distance + 1, requireOutgroup));
+    private void findRootRepresentative(TreeTraversal nodes, int node, int[] representatives, int[] distances, boolean requireOutgroup) {
+        int representative = -1;
+        int distance = Integer.MAX_VALUE;
+
+        for (int child = nodes.getFirstChild(node); child != -1; child = nodes.getNextSibling(child)) {
+            if (nodes.isExternal(child)) {
+                if (distance > 0) {
+                    representative = child;
+                    distance = 0;
+                }
+            } else if (!requireOutgroup && representatives[child] != -1 && distances[child] + 1 <= distance) {
+                representative = representatives[child];
+                distance = distances[child] + 1;
             }
         }
 
-        return tipMap;
+        representatives[node] = representative;
+        distances[node] = distance;
     }
 
     /**
-     * Clones the entire tree structure from the given RootedTree.
+     * Clones the entire tree structure from the given RootedTree. A stack of the internal nodes being copied
+     * is kept rather than recursing.
      * @param tree
      * @param node
      * @return
      */
     private Node createNodes(RootedTree tree, Node node, Map<Node, Subtree> subtreeMap, SimpleRootedTree newTree) {
-
-        Node newNode;
         if (tree.isExternal(node)) {
-            newNode = newTree.createExternalNode(tree.getTaxon(node));
-        } else {
-            List<Node> children = new ArrayList<Node>();
+            return copyNode(tree, node, newTree.createExternalNode(tree.getTaxon(node)), newTree);
+        }
+
+        Deque<CopyFrame> stack = new ArrayDeque<>();
+        stack.push(new CopyFrame(tree, node));
+
+        while (true) {
+            CopyFrame frame = stack.peek();
+
+            if (frame.nextChild < frame.children.size()) {
+                Node child = frame.children.get(frame.nextChild);
+                frame.nextChild++;
 
-            for (Node child : tree.getChildren(node)) {
                 String subtreeName = (String)child.getAttribute("subtree");
 
                 if (subtreeName != null) {
@@ -198,25 +226,24 @@ public class Divide extends Command {
                     }
 
                     Node newChild = newTree.createExternalNode(taxon);
-                    children.add(newChild);
+                    frame.newChildren.add(newChild);
                     newTree.setHeight(newChild, tree.getHeight(child));
                     newChild.setAttribute("subtree", subtreeName);
 
+                } else if (tree.isExternal(child)) {
+                    frame.newChildren.add(copyNode(tree, child, newTree.createExternalNode(tree.getTaxon(child)), newTree));
                 } else {
-                    children.add(createNodes(tree, child, subtreeMap, newTree));
+                    stack.push(new CopyFrame(tree, child));
                 }
+            } else {
+                stack.pop();
+                Node newNode = copyNode(tree, frame.node, newTree.createInternalNode(frame.newChildren), newTree);
+                if (stack.isEmpty()) {
+                    return newNode;
+                }
+                stack.peek().newChildren.add(newNode);
             }
-
-            newNode = newTree.createInternalNode(children);
         }
-
-        for( Map.Entry<String, Object> e : node.getAttributeMap().entrySet() ) {
-            newNode.setAttribute(e.getKey(), e.getValue());
-        }
-
-        newTree.setHeight(newNode, tree.getHeight(node));
-
-        return newNode;
     }
 
     /**
@@ -270,6 +297,21 @@ public class Divide extends Command {
 
     }
 
+    /**
+     * An internal node being copied by createNodes with the copies of the children done so far
+     */
+    private static class CopyFrame {
+        CopyFrame(RootedTree tree, Node node) {
+            this.node = node;
+            this.children = tree.getChildren(node);
+        }
+
+        final Node node;
+        final List<Node> children;
+        final List<Node> newChildren = new ArrayList<>();
+        int nextChild = 0;
+    }
+
     private static class Subtree {
         public Subtree(Node root, String name, int count) {
             this.root = root;
@@ -31,22 +31,15 @@ public class Extract extends Command {
         if (indexColumn == null) {
             indexColumn = "name";
         }
-        List<String> targetTaxaList = new ArrayList<>(targetTaxa != null ? Arrays.asList(targetTaxa) : Collections.emptyList());
-        if (taxa != null) {
-            targetTaxaList.addAll(taxa);
-        }
+        Set<String> targetTaxaSet = getTargetTaxa(targetTaxa);
 
         if (treeFileName != null) {
             RootedTree tree = readTree(treeFileName);
-            Map<Taxon, String> taxonMap = getTaxonMap(tree);
+            TipIndex tipIndex = indexTips(tree);
+            Map<Taxon, String> taxonMap = tipIndex.taxonMap;
 
-            if (!ignoreMissing && !targetTaxaList.isEmpty()) {
-                for (String key : targetTaxaList) {
-                    if (!taxonMap.containsValue(key)) {
-                        errorStream.println("Taxon, " + key + ", not found in tree");
-                        System.exit(1);
-                    }
-                }
+            if (!ignoreMissing) {
+                checkTaxaInTree(tipIndex.tipMap, targetTaxaSet);
             }
 
             PrintWriter writer = null;
@@ -58,7 +51,7 @@ public class Extract extends Command {
 
                 for (Node tip : tree.getExternalNodes()) {
                     String name = taxonMap.get(tree.getTaxon(tip));
-                    if (targetTaxaList.isEmpty() || targetTaxaList.contains(name)) {
+                    if (targetTaxaSet.isEmpty() || targetTaxaSet.contains(name)) {
                         writer.print(name);
                         for (String attributeName : attributeNames) {
                             writer.print(",");
@@ -5,6 +5,7 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.metadata.MetadataCache;
 
 import java.util.*;
 
@@ -19,8 +20,11 @@ public class Insert extends Command {
 
     public Insert(String treeFileName,
                   String metadataFileName,
+                  MetadataCache metadataCache,
                   String outputFileName,
                   FormatType outputFormat,
+                  int significantDigits,
+                  boolean isUsingTranslateTable,
                   String destinationColumn,
                   String indexColumn,
                   int indexHeader,
@@ -29,7 +33,10 @@ public class Insert extends Command {
                   boolean ignoreMissing,
                   boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, metadataCache, null, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
+
+        // the rows to insert are those not in the tree so all rows are read
+        readMetadataTable(metadataFileName, new String[] { destinationColumn }, null);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -41,9 +48,11 @@ public class Insert extends Command {
 
         int insertionCount = 0;
 
-        for (String key : metadata.keySet()) {
+        int column = metadata.getColumnIndex(destinationColumn);
 
-            String destination = metadata.get(key).get(destinationColumn);
+        for (int row = 0; row < metadata.getRowCount(); row++) {
+            String key = metadata.getKey(row);
+            String destination = metadata.get(row, column);
             if (!destination.isEmpty()) {
                 Node tip = tipMap.get(destination);
 
@@ -102,7 +111,7 @@ public class Insert extends Command {
                 List<Taxon> taxaToInsert = new ArrayList<>();
 
                 for (String insertion : insertions) {
-                    taxaToInsert.add(Taxon.getTaxon(insertion));
+                    taxaToInsert.add(taxonPool.getTaxon(insertion));
                 }
 
                 if (!taxaToInsert.isEmpty()) {
@@ -1,6 +1,7 @@
 package network.artic.clusterfunk.commands;
 
-import org.apache.commons.csv.CSVRecord;
+import network.artic.clusterfunk.metadata.MetadataCache;
+import network.artic.clusterfunk.metadata.MetadataTable;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -8,7 +9,6 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Merges two metadata tables based on an index column (usually taxon names).
@@ -16,6 +16,7 @@ import java.util.Map;
 public class Merge extends Command {
     public Merge(String metadataFileName1,
                  String metadataFileName2,
+                 MetadataCache metadataCache,
                  String outputFileName,
                  String indexColumn,
                  String[] addColumns,
@@ -23,12 +24,12 @@ public class Merge extends Command {
                  boolean extractMatches,
                  boolean isVerbose) {
 
-        super(isVerbose);
+        super(metadataCache, isVerbose);
 
-        Map<String, CSVRecord> metadata1 = readCSV(metadataFileName1, null);
-        List<String> headerNames1 = headerRecord.getParser().getHeaderNames();
-        Map<String, CSVRecord> metadata2 = readCSV(metadataFileName2, indexColumn);
-        List<String> headerNames2 = headerRecord.getParser().getHeaderNames();
+        MetadataTable metadata1 = readCSV(metadataFileName1, null);
+        List<String> headerNames1 = metadata1.getHeaderNames();
+        MetadataTable metadata2 = readCSV(metadataFileName2, indexColumn);
+        List<String> headerNames2 = metadata2.getHeaderNames();
 
         indexColumn = (indexColumn == null ? headerNames2.get(0) : indexColumn);
 
@@ -39,10 +40,10 @@ public class Merge extends Command {
 
         if (isVerbose) {
             outStream.println("Read metadata table 1: " + metadataFileName1);
-            outStream.println("                 Rows: " + metadata1.size());
+            outStream.println("                 Rows: " + metadata1.getRowCount());
             outStream.println();
             outStream.println("Read metadata table 2: " + metadataFileName2);
-            outStream.println("                 Rows: " + metadata2.size());
+            outStream.println("                 Rows: " + metadata2.getRowCount());
             outStream.println("         Index column: " + indexColumn);
             outStream.println();
         }
@@ -62,34 +63,38 @@ public class Merge extends Command {
             int rowCount = 0;
             int valueCount = 0;
 
+            // the column numbers in each table of the output columns (or -1 if not in that table)
+            int indexColumn1 = metadata1.getColumnIndex(indexColumn);
+            int[] columns1 = new int[headerNames.size()];
+            int[] columns2 = new int[headerNames.size()];
+            for (int i = 0; i < headerNames.size(); i++) {
+                columns1[i] = metadata1.getColumnIndex(headerNames.get(i));
+                columns2[i] = (headerNames.get(i).equals(indexColumn) ? -1 : metadata2.getColumnIndex(headerNames.get(i)));
+            }
+
             try {
                 PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
 
                 writer.println(String.join(",", headerNames));
 
-                for (String key : metadata1.keySet()) {
-                    CSVRecord record1 = metadata1.get(key);
-                    String index = record1.get(indexColumn);
-                    CSVRecord record2 = metadata2.get(index);
-                    if (record2 != null) {
+                for (int row1 = 0; row1 < metadata1.getRowCount(); row1++) {
+                    String index = metadata1.get(row1, indexColumn1);
+                    int row2 = metadata2.getRow(index);
+                    if (row2 != -1) {
                         rowCount += 1;
                     }
-                    if (!extractMatches || record2 != null) {
-                        boolean first = true;
-                        for (String name : headerNames) {
+                    if (!extractMatches || row2 != -1) {
+                        for (int i = 0; i < columns1.length; i++) {
                             String value = "";
-                            if (headerNames1.contains(name)) {
-                                value = record1.get(name);
+                            if (columns1[i] != -1) {
+                                value = metadata1.get(row1, columns1[i]);
                             }
-                            if (record2 != null && (value.isEmpty() || overwriteExisting) && !name.equals(indexColumn)) {
-                                if (headerNames2.contains(name)) {
-                                    value = record2.get(name);
-                                    valueCount += 1;
-                                }
+                            if (row2 != -1 && (value.isEmpty() || overwriteExisting) && columns2[i] != -1) {
+                                value = metadata2.get(row2, columns2[i]);
+                                valueCount += 1;
                             }
-                            writer.print(first ? "" : ",");
+                            writer.print(i > 0 ? "," : "");
                             writer.print(value);
-                            first = false;
                         }
                         writer.println();
                     }
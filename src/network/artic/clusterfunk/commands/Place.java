@@ -8,7 +8,7 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVRecord;
+import network.artic.clusterfunk.trees.IndexSet;
 
 import java.util.*;
 
@@ -30,7 +30,9 @@ public class Place extends Command {
                  boolean ignoreMissing,
                  boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+
+        readMetadataTable(metadataFileName, new String[] { "differences", "ambiguities" }, null);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -38,10 +40,12 @@ public class Place extends Command {
 
         List<Branch> branches = new ArrayList<>();
 
-        for (String name : metadata.keySet()) {
-            CSVRecord record = metadata.get(name);
+        int[] columns = getMetadataColumns(new String[] { "differences", "ambiguities" });
+
+        for (int row = 0; row < metadata.getRowCount(); row++) {
+            String name = metadata.getKey(row);
             if (!tipMap.containsKey(name)) {
-                branches.add(new Branch(name, record.get("differences"), record.get("ambiguities")));
+                branches.add(new Branch(name, metadata.get(row, columns[0]), metadata.get(row, columns[1])));
             } else {
                 if (isVerbose) {
                     outStream.println("Tip, " + name + ", is already in the tree, skipping");
@@ -72,28 +76,28 @@ public class Place extends Command {
      * @param branchMap
      * @return
      */
-    private Set<Integer> annotateSubstitutions(RootedTree tree, Node node, Map<String, Branch> branchMap) {
-        Set<Integer> substitutions;
+    private IndexSet annotateSubstitutions(RootedTree tree, Node node, Map<String, Branch> branchMap) {
+        IndexSet substitutions;
 
         if (!tree.isExternal(node)) {
-            substitutions = new HashSet<>();
-            Set<Integer> intersection = null;
+            substitutions = new IndexSet();
+            IndexSet intersection = null;
 
             for (Node child: tree.getChildren(node)) {
-                Set<Integer> childSubstitutions = annotateSubstitutions(tree, child, branchMap);
+                IndexSet childSubstitutions = annotateSubstitutions(tree, child, branchMap);
                 if (intersection == null) {
-                    intersection = new HashSet<>(childSubstitutions);
+                    intersection = childSubstitutions;
                 } else {
-                    intersection.retainAll(childSubstitutions);
+                    intersection = intersection.and(childSubstitutions);
                 }
             }
 
             for (Node child: tree.getChildren(node)) {
-                Set<Integer> childSubstitutions = (Set<Integer>)child.getAttribute("substitutions");
+                IndexSet childSubstitutions = (IndexSet)child.getAttribute("substitutions");
                 if (intersection == null) {
-                    intersection = new HashSet<>(childSubstitutions);
+                    intersection = childSubstitutions;
                 } else {
-                    intersection.retainAll(childSubstitutions);
+                    intersection = intersection.and(childSubstitutions);
                 }
             }
 
@@ -136,16 +140,15 @@ public class Place extends Command {
     private class Branch {
 
         public Branch(String name, String mutationString, String ambiguityString) {
-            substitutions = new HashSet<>(getSubstitutions(mutationString));
-            ambiguities = new HashSet<>();
+            substitutions = new IndexSet();
+            substitutions.addAll(getSubstitutions(mutationString));
+            ambiguities = new IndexSet();
 
             String[] ambs = ambiguityString.split("\\|");
             for (String ambiguity : ambs) {
                 String[] locs = ambiguity.split("-");
                 if (locs.length > 1) {
-                    for (int location = Integer.parseInt(locs[0]); location <= Integer.parseInt(locs[1]); location++) {
-                        ambiguities.add(location);
-                    }
+                    ambiguities.addRange(Integer.parseInt(locs[0]), Integer.parseInt(locs[1]) + 1);
                 } else {
                     int location = Integer.parseInt(locs[0]);
                     ambiguities.add(location);
@@ -155,8 +158,8 @@ public class Place extends Command {
             this.name = name;
         }
 
-        final Set<Integer> substitutions;
-        final Set<Integer> ambiguities;
+        final IndexSet substitutions;
+        final IndexSet ambiguities;
         final String name;
     }
 
@@ -5,7 +5,7 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedSubtree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVRecord;
+import network.artic.clusterfunk.metadata.MetadataCache;
 
 import java.util.*;
 
@@ -17,8 +17,11 @@ public class Prune extends Command {
                  String taxaFileName,
                  String[] targetTaxa,
                  String metadataFileName,
+                 MetadataCache metadataCache,
                  String outputFileName,
                  FormatType outputFormat,
+                 int significantDigits,
+                 boolean isUsingTranslateTable,
                  String outputMetadataFileName,
                  String indexColumn,
                  int indexHeader,
@@ -27,28 +30,22 @@ public class Prune extends Command {
                  boolean ignoreMissing,
                  boolean isVerbose) {
 
-        super(metadataFileName, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, metadataCache, taxaFileName, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
-        List<String> targetTaxaList = new ArrayList<>(targetTaxa != null ? Arrays.asList(targetTaxa) : Collections.emptyList());
-        if (taxa != null) {
-            targetTaxaList.addAll(taxa);
-        }
+        Set<String> targetTaxaSet = getTargetTaxa(targetTaxa);
 
-        if (targetTaxaList.size() == 0) {
+        if (targetTaxaSet.size() == 0) {
             throw new IllegalArgumentException("prune command requires a taxon list and/or additional target taxa");
         }
 
         RootedTree tree = readTree(treeFileName);
 
-        Map<Taxon, String> taxonMap = getTaxonMap(tree);
+        TipIndex tipIndex = indexTips(tree);
+
+        Map<Taxon, String> taxonMap = tipIndex.taxonMap;
 
         if (!ignoreMissing) {
-            for (String key : targetTaxaList) {
-                if (!taxonMap.containsValue(key)) {
-                    errorStream.println("Taxon, " + key + ", not found in tree");
-                    System.exit(1);
-                }
-            }
+            checkTaxaInTree(tipIndex.tipMap, targetTaxaSet);
         }
 
         // subtree option in JEBL requires the taxa that are to be included
@@ -57,7 +54,7 @@ public class Prune extends Command {
         for (Node tip : tree.getExternalNodes()) {
             Taxon taxon = tree.getTaxon(tip);
             String index = taxonMap.get(taxon);
-            if (targetTaxaList.contains(index) == keepTaxa) {
+            if (targetTaxaSet.contains(index) == keepTaxa) {
                 includedTaxa.add(taxon);
             }
         }
@@ -83,9 +80,12 @@ public class Prune extends Command {
         writeTreeFile(outTree, outputFileName, outputFormat);
 
         if (outputMetadataFileName != null) {
-            List<CSVRecord> metadataRows = new ArrayList<>();
+            List<Integer> metadataRows = new ArrayList<>();
             for (Taxon taxon : includedTaxa) {
-                metadataRows.add(metadata.get(taxonMap.get(taxon)));
+                int row = metadata.getRow(taxonMap.get(taxon));
+                if (row != -1) {
+                    metadataRows.add(row);
+                }
             }
             if (isVerbose) {
                 outStream.println("Writing metadata file, " + outputMetadataFileName);
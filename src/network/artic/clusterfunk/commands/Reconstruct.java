@@ -3,9 +3,14 @@ package network.artic.clusterfunk.commands;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.IndexSet;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -16,16 +21,18 @@ public class Reconstruct extends Command {
     public Reconstruct(String treeFileName,
                        String outputFileName,
                        FormatType outputFormat,
+                       int significantDigits,
+                       boolean isUsingTranslateTable,
                        String tipStateAttibuteName,
                        String reconstructedStateAttributeName,
                        String rootState,
                        boolean deltran,
                        boolean isVerbose) {
 
-        super(isVerbose);
+        super(significantDigits, isUsingTranslateTable, isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Annotations are only compatible with NEXUS output format");
+        if (outputFormat == FormatType.NEWICK) {
+            errorStream.println("Annotations are only compatible with NEXUS or BINARY output format");
             System.exit(1);
         }
 
@@ -71,73 +78,94 @@ public class Reconstruct extends Command {
      * @param tipAttributeName
      */
     private void parsimonyReconstruction(RootedTree tree, String tipAttributeName, String nodeAttributeName, Object parentState, boolean deltran) {
-        fitchParsimony(tree, tree.getRootNode(), tipAttributeName, nodeAttributeName);
-        parsimonyReconstruction(tree, tree.getRootNode(), nodeAttributeName, parentState, deltran);
+        TreeTraversal nodes = new TreeTraversal(tree);
+        fitchParsimony(nodes, tipAttributeName, nodeAttributeName);
+        parsimonyReconstruction(nodes, nodeAttributeName, parentState, deltran);
     }
 
     /**
-     * recursive version
-     * @param tree
-     * @param node
+     * Finds the state sets of the internal nodes from the tips up
+     * @param nodes
      * @param tipAttributeName
-     * @return
+     * @param nodeAttributeName
      */
-    private Set<Object> fitchParsimony(RootedTree tree, Node node, String tipAttributeName, String nodeAttributeName) {
-        if (tree.isExternal(node)) {
-            Object value = node.getAttribute(tipAttributeName);
-            return Collections.singleton(value);
-        }
+    private void fitchParsimony(TreeTraversal nodes, String tipAttributeName, String nodeAttributeName) {
+        // the states are numbered in the order they are found so the sets of them are IndexSets
+        List<Object> states = new ArrayList<>();
+        Map<Object, Integer> stateCodes = new HashMap<>();
+
+        // the union of the states of each node's children (only kept until its parent has used it)
+        IndexSet[] unions = new IndexSet[nodes.getNodeCount()];
+
+        for (int i = nodes.getNodeCount() - 1; i >= 0; i--) {
+            Node node = nodes.getNode(i);
+            if (nodes.isExternal(i)) {
+                Object value = node.getAttribute(tipAttributeName);
+                Integer code = stateCodes.get(value);
+                if (code == null) {
+                    code = states.size();
+                    stateCodes.put(value, code);
+                    states.add(value);
+                }
+                unions[i] = IndexSet.range(code, code + 1);
+                continue;
+            }
 
-        Set<Object> union = null;
-        Set<Object> intersection = null;
-        for (Node child : tree.getChildren(node)) {
-            Set<Object> childSet = fitchParsimony(tree, child, tipAttributeName, nodeAttributeName);
-            if (union == null) {
-                union = new HashSet<>(childSet);
-                intersection = new HashSet<>(childSet);
-            } else {
-                union.addAll(childSet);
-                intersection.retainAll(childSet);
+            IndexSet union = null;
+            IndexSet intersection = null;
+            for (int child = nodes.getFirstChild(i); child != -1; child = nodes.getNextSibling(child)) {
+                IndexSet childSet = unions[child];
+                unions[child] = null;
+                if (union == null) {
+                    union = childSet;
+                    intersection = childSet;
+                } else {
+                    union = union.or(childSet);
+                    intersection = intersection.and(childSet);
+                }
             }
-        }
 
-        if (intersection.size() > 0) {
-            node.setAttribute(nodeAttributeName + "_states", intersection);
-        } else {
-            node.setAttribute(nodeAttributeName + "_states", union);
-        }
+            Set<Object> nodeStates = new HashSet<>();
+            for (int code : (intersection.size() > 0 ? intersection : union)) {
+                nodeStates.add(states.get(code));
+            }
+            node.setAttribute(nodeAttributeName + "_states", nodeStates);
 
-        return union;
+            unions[i] = union;
+        }
     }
 
     /**
-     * recursive version
-     * @param tree
-     * @param node
+     * Picks the state of the internal nodes from the root down
+     * @param nodes
      * @param nodeAttributeName
-     * @return
+     * @param rootParentState
+     * @param deltran
      */
-    private void parsimonyReconstruction(RootedTree tree, Node node, String nodeAttributeName, Object parentState, boolean deltran) {
-        if (!tree.isExternal(node)) {
-            Set<Object> states = (Set<Object>)node.getAttribute(nodeAttributeName + "_states");
-
-            Object nodeState = null;
-            if (parentState != null && states.contains(parentState)) {
-                nodeState = parentState;
-            } else {
-                nodeState = states.stream().findFirst();
-            }
-
-            if (deltran) {
-                node.setAttribute(nodeAttributeName, nodeState);
-            } else {
-                node.setAttribute(nodeAttributeName, parentState);
+    private void parsimonyReconstruction(TreeTraversal nodes, String nodeAttributeName, Object rootParentState, boolean deltran) {
+        Object[] nodeStates = new Object[nodes.getNodeCount()];
+
+        for (int i = 0; i < nodes.getNodeCount(); i++) {
+            if (!nodes.isExternal(i)) {
+                Node node = nodes.getNode(i);
+                Set<Object> states = (Set<Object>)node.getAttribute(nodeAttributeName + "_states");
+                Object parentState = (i > 0 ? nodeStates[nodes.getParent(i)] : rootParentState);
+
+                Object nodeState = null;
+                if (parentState != null && states.contains(parentState)) {
+                    nodeState = parentState;
+                } else {
+                    nodeState = states.stream().findFirst();
+                }
+
+                if (deltran || i > 0) {
+                    node.setAttribute(nodeAttributeName, nodeState);
+                } else {
+                    node.setAttribute(nodeAttributeName, parentState);
+                }
+
+                nodeStates[i] = nodeState;
             }
-
-            for (Node child : tree.getChildren(node)) {
-                parsimonyReconstruction(tree, child, nodeAttributeName, nodeState, true);
-            }
-
         }
     }
 
@@ -4,6 +4,7 @@ import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.SortedRootedTree;
 import network.artic.clusterfunk.FormatType;
 import network.artic.clusterfunk.OrderType;
+import network.artic.clusterfunk.metadata.MetadataCache;
 
 /**
  *
@@ -11,8 +12,11 @@ import network.artic.clusterfunk.OrderType;
 public class Reorder extends Command {
     public Reorder(String treeFileName,
                    String metadataFileName,
+                   MetadataCache metadataCache,
                    String outputPath,
                    FormatType outputFormat,
+                   int significantDigits,
+                   boolean isUsingTranslateTable,
                    String indexColumn,
                    int indexHeader,
                    String headerDelimiter,
@@ -20,7 +24,7 @@ public class Reorder extends Command {
                    String[] sortColumns,
                    boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, metadataCache, null, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
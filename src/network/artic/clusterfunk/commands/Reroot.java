@@ -5,9 +5,9 @@ import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.ReRootedTree;
 import jebl.evolution.trees.RootedTree;
-import jebl.evolution.trees.RootedTreeUtils;
 import network.artic.clusterfunk.FormatType;
 import network.artic.clusterfunk.RootType;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.util.HashSet;
 import java.util.Map;
@@ -20,6 +20,8 @@ public class Reroot extends Command {
     public Reroot(String treeFileName,
            String outputPath,
            FormatType outputFormat,
+           int significantDigits,
+           boolean isUsingTranslateTable,
            int indexHeader,
            String headerDelimiter,
            RootType rootType,
@@ -27,7 +29,7 @@ public class Reroot extends Command {
            String[] outgroups,
            boolean isVerbose) {
 
-        super(null, null, null, indexHeader, headerDelimiter, isVerbose);
+        super(null, null, null, null, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
         if (rootLocation < 0.0 || rootLocation > 1.0) {
             errorStream.println("root-location option should be between 0.0 and 1.0 ");
@@ -51,7 +53,7 @@ public class Reroot extends Command {
 
                 Set<Node> outgroupTips = new HashSet<>();
                 for (String outgroup : outgroups) {
-                    Node tip = tree.getNode(Taxon.getTaxon(outgroup));
+                    Node tip = tree.getNode(taxonPool.getTaxon(outgroup));
                     if (tip == null) {
                         errorStream.println("Outgroup, " + outgroup + ", not found in the tree");
                         System.exit(1);
@@ -59,7 +61,7 @@ public class Reroot extends Command {
                     outgroupTips.add(tip);
                 }
 
-                Node outgroupNode = RootedTreeUtils.getCommonAncestorNode(tree, outgroupTips);
+                Node outgroupNode = new TreeTraversal(tree).getMRCA(outgroupTips);
                 Node ingroupNode = tree.getParent(outgroupNode);
                 double ingroupBranchLength = tree.getLength(outgroupNode) * rootLocation;
                 try {
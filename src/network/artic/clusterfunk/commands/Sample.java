@@ -5,6 +5,9 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.metadata.MetadataCache;
+import network.artic.clusterfunk.trees.SubtreeTips;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -38,10 +41,13 @@ public class Sample extends Command {
 
     public Sample(String treeFileName,
                   String metadataFileName,
+                  MetadataCache metadataCache,
                   String protectTaxa,
                   String outputPath,
                   String outputFileStem,
                   FormatType outputFormat,
+                  int significantDigits,
+                  boolean isUsingTranslateTable,
                   String indexColumn,
                   int indexHeader,
                   String headerDelimiter,
@@ -56,7 +62,7 @@ public class Sample extends Command {
                   boolean ignoreMissing,
                   boolean isVerbose) {
 
-                super(metadataFileName, protectTaxa, indexColumn, indexHeader, headerDelimiter, isVerbose);
+                super(null, metadataCache, protectTaxa, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
         String path = checkOutputPath(outputPath);
 
@@ -72,6 +78,16 @@ public class Sample extends Command {
 
         Map<Taxon, String> taxonMap = getTaxonMap(sampledTree);
 
+        // only read the columns being used for the tips in the tree
+        List<String> columnNames = new ArrayList<>();
+        if (collapseBy != null) {
+            columnNames.add(collapseBy);
+        }
+        if (clumpBy != null) {
+            columnNames.add(clumpBy);
+        }
+        readMetadataTable(metadataFileName, columnNames.toArray(new String[0]), new HashSet<>(taxonMap.values()));
+
 //        String collapseAttributeName = "location";
 //        String[] metadataFields = new String[] {"location", "adm1", "country"};
 //        annotateTips(sampledTree, taxonMap, collapseAttributeName, metadataFields, ignoreMissing);
@@ -240,7 +256,7 @@ public class Sample extends Command {
                     Node clump;
                     if (externalNodes.size() > maxSoftClumpSize) {
                         // Either replace the clumped tips with a single tip (if larger than the threshold)
-                        clump = tree.createExternalNode(Taxon.getTaxon(taxonName));
+                        clump = tree.createExternalNode(taxonPool.getTaxon(taxonName));
                     } else {
                         // or replace with an internal node flagged as 'clumped'
 
@@ -267,49 +283,54 @@ public class Sample extends Command {
         }
     }
 
-    private void clusterByAttribute(MutableRootedTree tree, Node node, String attributeName,
+    private void clusterByAttribute(MutableRootedTree tree, Node root, String attributeName,
                                         int maxSoftCollapseSize, int minCollapseSize, Map<String, Subtree> subtrees) {
-        if (!tree.isExternal(node)) {
-            Set<Object> attributes = getTipAttributes(tree, node, attributeName).keySet();
-            if (attributes.size() == 1) {
-                String value = (String)attributes.iterator().next();
-                String name = getUniqueHexCode();
-                List<Node> externalNodes = tree.getExternalNodes(node);
-
-                double minDivergence = Double.MAX_VALUE;
-                double maxDivergence = 0.0;
-                for (Node tip : externalNodes) {
-                    double d = tree.getHeight(node) - tree.getHeight(tip);
-                    if (d < minDivergence) {
-                        minDivergence = d;
-                    }
-                    if (d > maxDivergence) {
-                        maxDivergence = d;
-                    }
+        // the tips (and their values) below every node are found in one pass before any subtree is collapsed -
+        // the nodes below a collapsed node aren't visited again so the changes don't matter
+        SubtreeTips subtreeTips = new SubtreeTips(tree, root);
+        TreeTraversal nodes = subtreeTips.getTraversal();
+
+        int i = 0;
+        while (i < nodes.getNodeCount()) {
+            String value = (String)subtreeTips.getUniqueValue(i, attributeName);
+            if (nodes.isExternal(i) || value == null) {
+                i++;
+                continue;
+            }
+
+            Node node = nodes.getNode(i);
+            String name = getUniqueHexCode();
+            List<Node> externalNodes = collectTips(subtreeTips, node);
+
+            double minDivergence = Double.MAX_VALUE;
+            double maxDivergence = 0.0;
+            for (Node tip : externalNodes) {
+                double d = tree.getHeight(node) - tree.getHeight(tip);
+                if (d < minDivergence) {
+                    minDivergence = d;
                 }
-                List<String> tips = externalNodes.stream().map(node1 -> tree.getTaxon(node1).getName()).collect(Collectors.toList());
-                String taxonName = name + "|" + value + "|" + tips.size();
-
-                    node.setAttribute("!collapse", new Object[] {CollapseType.COLLAPSED, maxDivergence, minDivergence, tips.size()});
-                    node.setAttribute("Name", taxonName);
-                    node.setAttribute(attributeName, value);
-                    node.setAttribute("tip_count", tips.size());
-
-                if (externalNodes.size() > maxSoftCollapseSize) {
-                    Node parent = tree.getParent(node);
-                    tree.removeChild(node, parent);
-                    Node tip = tree.createExternalNode(Taxon.getTaxon(taxonName));
-                    tree.addChild(tip, parent);
-                    tree.setLength(tip, minDivergence);
+                if (d > maxDivergence) {
+                    maxDivergence = d;
                 }
-                subtrees.put(name, new Subtree(CollapseType.COLLAPSED, name, node, attributeName, value, tips, minDivergence, maxDivergence));
+            }
+            List<String> tips = externalNodes.stream().map(node1 -> tree.getTaxon(node1).getName()).collect(Collectors.toList());
+            String taxonName = name + "|" + value + "|" + tips.size();
 
-            } else {
+            node.setAttribute("!collapse", new Object[] {CollapseType.COLLAPSED, maxDivergence, minDivergence, tips.size()});
+            node.setAttribute("Name", taxonName);
+            node.setAttribute(attributeName, value);
+            node.setAttribute("tip_count", tips.size());
 
-                for (Node child : tree.getChildren(node)) {
-                    clusterByAttribute(tree, child, attributeName, maxSoftCollapseSize, minCollapseSize, subtrees);
-                }
+            if (externalNodes.size() > maxSoftCollapseSize) {
+                Node parent = tree.getParent(node);
+                tree.removeChild(node, parent);
+                Node tip = tree.createExternalNode(taxonPool.getTaxon(taxonName));
+                tree.addChild(tip, parent);
+                tree.setLength(tip, minDivergence);
             }
+            subtrees.put(name, new Subtree(CollapseType.COLLAPSED, name, node, attributeName, value, tips, minDivergence, maxDivergence));
+
+            i = nodes.getSubtreeEnd(i);
         }
     }
 
@@ -13,13 +13,15 @@ public class Scale extends Command {
     public Scale(String treeFileName,
                  String outputPath,
                  FormatType outputFormat,
+                 int significantDigits,
+                 boolean isUsingTranslateTable,
                  double scaleFactor,
                  double branchThreshold,
                  boolean scaleRootHeight,
                  double rootHeight,
                  boolean isVerbose) {
 
-        super(isVerbose);
+        super(significantDigits, isUsingTranslateTable, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
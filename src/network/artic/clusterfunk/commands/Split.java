@@ -4,6 +4,7 @@ import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.metadata.MetadataCache;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -17,9 +18,12 @@ public class Split extends Command {
 
     public Split(String treeFileName,
                  String metadataFileName,
+                 MetadataCache metadataCache,
                  String outputPath,
                  String outputFileStem,
                  FormatType outputFormat,
+                 int significantDigits,
+                 boolean isUsingTranslateTable,
                  String outputMetadataFileName,
                  String indexColumn,
                  int indexHeader,
@@ -27,7 +31,7 @@ public class Split extends Command {
                  String attributeName,
                  boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, metadataCache, null, indexColumn, indexHeader, headerDelimiter, significantDigits, isUsingTranslateTable, isVerbose);
 
         String path = checkOutputPath(outputPath);
 
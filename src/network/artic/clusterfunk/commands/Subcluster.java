@@ -3,6 +3,7 @@ package network.artic.clusterfunk.commands;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.SubtreeTips;
 
 import java.util.*;
 
@@ -22,8 +23,8 @@ public class Subcluster extends Command {
 
         super(isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Annotations are only compatible with NEXUS output format");
+        if (outputFormat == FormatType.NEWICK) {
+            errorStream.println("Annotations are only compatible with NEXUS or BINARY output format");
             System.exit(1);
         }
 
@@ -47,9 +48,10 @@ public class Subcluster extends Command {
      */
     private void numberSubLineages(RootedTree tree, Node node, String lineage, String newLineageName, int minSublineageSize) {
         if (!tree.isExternal(node)) {
+            SubtreeTips subtreeTips = new SubtreeTips(tree, node);
             List<Pair> childSizes = new ArrayList<>();
             for (Node child : tree.getChildren(node)) {
-                childSizes.add(new Pair(child, countTips(tree, child)));
+                childSizes.add(new Pair(child, countTips(subtreeTips, child)));
             }
             childSizes.sort(Comparator.comparing(k -> -k.count));
 
@@ -5,11 +5,13 @@ import jebl.evolution.taxa.MissingTaxonException;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.trees.RootedTreeUtils;
+import network.artic.clusterfunk.trees.TreeTraversal;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -26,6 +28,10 @@ public class TMRCA extends Command {
                  String headerDelimiter,
                  boolean isStem,
                  boolean ignoreMissing,
+                 int burnin,
+                 int thin,
+                 int sampleCount,
+                 long seed,
                  boolean isVerbose) {
 
         super(null, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
@@ -37,12 +43,12 @@ public class TMRCA extends Command {
 
         final Set<Taxon> taxonSet = new HashSet<>();
         for (String taxonName : taxa) {
-            taxonSet.add(Taxon.getTaxon(taxonName));
+            taxonSet.add(taxonPool.getTaxon(taxonName));
         }
 
         if (targetTaxa != null) {
             for (String taxonName : targetTaxa) {
-                taxonSet.add(Taxon.getTaxon(taxonName));
+                taxonSet.add(taxonPool.getTaxon(taxonName));
             }
         }
 
@@ -66,7 +72,13 @@ public class TMRCA extends Command {
 
         }
 
-        processTrees(treeFileName, tree -> {
+        TreeSelection selection = getTreeSelection(burnin, thin, sampleCount, seed);
+
+        // no node attributes are needed to find the TMRCAs
+        treeAttributeNames = Collections.emptySet();
+
+        // the TMRCAs are found in parallel and written in the order of the trees
+        processTrees(treeFileName, selection, tree -> {
             double tmrca = 0;
 
             try {
@@ -76,7 +88,8 @@ public class TMRCA extends Command {
                 errorStream.println("Tip missing: " + mte.getMessage());
                 System.exit(1);
             }
-
+            return tmrca;
+        }, (tree, tmrca) -> {
             if (outputMetadataWriter != null) {
                         outputMetadataWriter.print(tree.getAttribute("name"));
                         outputMetadataWriter.print("\t");
@@ -99,7 +112,7 @@ public class TMRCA extends Command {
      * @param tree
      */
     double findTMRCA(RootedTree tree, Set<Node> tips, boolean isStem) {
-        Node mrca = RootedTreeUtils.getCommonAncestorNode(tree, tips);
+        Node mrca = new TreeTraversal(tree).getMRCA(tips);
         if (isStem && tree.getParent(mrca) != null) {
             return tree.getHeight(tree.getParent(mrca));
         }
@@ -0,0 +1,11 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.trees.RootedTree;
+
+/**
+ * Analyses each tree read by Command.processTrees. This may be called on several threads at once (for
+ * different trees) so any output should be left to a TreeResultHandler.
+ */
+public interface TreeAnalysis<T> {
+    T analyseTree(RootedTree tree);
+}
@@ -3,6 +3,8 @@ package network.artic.clusterfunk.commands;
 import jebl.evolution.trees.RootedTree;
 
 /**
+ * Processes each tree read by Command.processTrees. This may be called on several threads at once (for
+ * different trees).
  * @author Andrew Rambaut
  * @version $
  */
@@ -0,0 +1,16 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.trees.RootedTree;
+
+/**
+ * Handles the result of a TreeAnalysis. This is called on one thread with the trees in the order they were in
+ * the file.
+ */
+public interface TreeResultHandler<T> {
+    /**
+     * @param tree the tree that was analysed
+     * @param result the result of the analysis
+     * @return the tree to write to the output file (or null)
+     */
+    RootedTree handleResult(RootedTree tree, T result);
+}
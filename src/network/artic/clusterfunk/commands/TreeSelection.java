@@ -0,0 +1,77 @@
+package network.artic.clusterfunk.commands;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Which trees in a file to process - those after a burn-in, thinned to every nth tree and then optionally a random
+ * sample of these.
+ */
+class TreeSelection {
+
+    /**
+     * @param burnin the number of trees to skip at the start
+     * @param thin keep every nth tree after the burn-in (1 keeps all)
+     * @param sampleCount the number of trees to randomly sample from those left (0 keeps all)
+     * @param seed the seed for the random sample
+     */
+    TreeSelection(int burnin, int thin, int sampleCount, long seed) {
+        this.burnin = burnin;
+        this.thin = thin;
+        this.sampleCount = sampleCount;
+        this.seed = seed;
+    }
+
+    /**
+     * @return true if all the trees are selected
+     */
+    boolean isAll() {
+        return burnin == 0 && thin == 1 && sampleCount == 0;
+    }
+
+    /**
+     * @return true if the selection depends on the number of trees (i.e., there is a random sample)
+     */
+    boolean isSample() {
+        return sampleCount > 0;
+    }
+
+    /**
+     * @return true if the tree is kept by the burn-in and thinning (ignoring any sample)
+     */
+    boolean isSelected(int index) {
+        return index >= burnin && (index - burnin) % thin == 0;
+    }
+
+    /**
+     * @param treeCount the number of trees in the file
+     * @return the indices of the selected trees in order
+     */
+    int[] select(int treeCount) {
+        int count = Math.max((treeCount - burnin + thin - 1) / thin, 0);
+        int[] selected = new int[count];
+        for (int i = 0; i < count; i++) {
+            selected[i] = burnin + i * thin;
+        }
+        if (sampleCount == 0 || sampleCount >= count) {
+            return selected;
+        }
+
+        // a partial shuffle picks the sample without replacement
+        Random random = new Random(seed);
+        for (int i = 0; i < sampleCount; i++) {
+            int j = i + random.nextInt(count - i);
+            int tmp = selected[i];
+            selected[i] = selected[j];
+            selected[j] = tmp;
+        }
+        int[] sample = Arrays.copyOf(selected, sampleCount);
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    private final int burnin;
+    private final int thin;
+    private final int sampleCount;
+    private final long seed;
+}
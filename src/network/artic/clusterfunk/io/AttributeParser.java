@@ -0,0 +1,261 @@
+package network.artic.clusterfunk.io;
+
+import jebl.util.Attributable;
+import network.artic.clusterfunk.trees.AnnotationParser;
+
+import java.awt.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the contents of NEXUS meta comments ([&key=value,...]) into attributes. Follows the same rules as
+ * jebl's NexusImporter so the resulting values (Integer, Double, Boolean, String, Color or Object[]) are the
+ * same but works directly on the bytes and shares the String objects for repeated keys and values.
+ */
+public class AttributeParser implements AnnotationParser {
+
+    public AttributeParser() {
+    }
+
+    /**
+     * Parses all the key/value pairs in a meta comment and sets them as attributes
+     * @param bytes
+     * @param start
+     * @param end
+     * @param item
+     */
+    public void parseMetaComment(byte[] bytes, int start, int end, Attributable item) {
+        scanMetaComment(bytes, start, end, (key, valueStart, valueEnd) ->
+                item.setAttribute(key, valueEnd > valueStart ? parseValue(bytes, valueStart, valueEnd) : Boolean.TRUE));
+    }
+
+    @Override
+    public void scanMetaComment(byte[] bytes, int start, int end, KeyHandler handler) {
+        int i = start;
+        while (i < end) {
+            int c = bytes[i];
+            if (c == ',' || c == '=' || isSpace(c)) {
+                i++;
+                continue;
+            }
+
+            String key;
+            if (c == '"') {
+                int close = indexOf(bytes, '"', i + 1, end);
+                if (close < 0) {
+                    // no closing quote so just take the rest as the key
+                    key = strings.get(bytes, i + 1, end);
+                    i = end;
+                } else {
+                    key = strings.get(bytes, i + 1, close);
+                    i = close + 1;
+                    while (i < end && bytes[i] == '"') {
+                        i++;
+                    }
+                }
+            } else {
+                int keyStart = i;
+                while (i < end && bytes[i] != ',' && bytes[i] != '=' && !isSpace(bytes[i])) {
+                    i++;
+                }
+                key = strings.get(bytes, keyStart, i);
+            }
+
+            int j = i;
+            while (j < end && isSpace(bytes[j])) {
+                j++;
+            }
+
+            if (j < end && bytes[j] == '=') {
+                j++;
+                while (j < end && isSpace(bytes[j])) {
+                    j++;
+                }
+                int valueStart = j;
+                if (j < end && bytes[j] == '{') {
+                    int depth = 0;
+                    while (j < end) {
+                        if (bytes[j] == '{') {
+                            depth++;
+                        } else if (bytes[j] == '}') {
+                            depth--;
+                            if (depth == 0) {
+                                j++;
+                                break;
+                            }
+                        }
+                        j++;
+                    }
+                } else if (j < end && bytes[j] == '"') {
+                    int close = indexOf(bytes, '"', j + 1, end);
+                    j = (close < 0 ? end : close + 1);
+                    while (j < end && bytes[j] == '"') {
+                        j++;
+                    }
+                } else {
+                    while (j < end && bytes[j] != ',') {
+                        j++;
+                    }
+                }
+                handler.key(key, valueStart, j);
+                i = j;
+            } else {
+                handler.key(key, i, i);
+            }
+        }
+    }
+
+    /**
+     * Parses a value in the same way as jebl's NexusImporter.parseValue
+     * @param bytes
+     * @param start
+     * @param end
+     * @return
+     */
+    @Override
+    public Object parseValue(byte[] bytes, int start, int end) {
+        while (start < end && isSpace(bytes[start])) {
+            start++;
+        }
+        while (end > start && isSpace(bytes[end - 1])) {
+            end--;
+        }
+        if (start == end) {
+            return strings.get(bytes, start, end);
+        }
+
+        int first = bytes[start];
+        if (first == '{') {
+            // strip the braces and split either at '},{' for nested arrays or at commas
+            int from = start + 1;
+            int to = end - 1;
+            List<Object> values = new ArrayList<>();
+            if (from < to && bytes[from] == '{') {
+                int elementStart = from;
+                for (int i = from; i < to; i++) {
+                    if (bytes[i] == '}' && i + 2 < to && bytes[i + 1] == ',' && bytes[i + 2] == '{') {
+                        values.add(parseValue(bytes, elementStart, i + 1));
+                        elementStart = i + 2;
+                    }
+                }
+                values.add(parseValue(bytes, elementStart, to));
+            } else {
+                int elementStart = from;
+                for (int i = from; i < to; i++) {
+                    if (bytes[i] == ',') {
+                        values.add(parseValue(bytes, elementStart, i));
+                        elementStart = i + 1;
+                    }
+                }
+                if (elementStart < to || values.isEmpty()) {
+                    values.add(parseValue(bytes, elementStart, to));
+                }
+            }
+            return values.toArray();
+        }
+
+        if (first == '#') {
+            String colour = new String(bytes, start + 1, end - start - 1, StandardCharsets.UTF_8);
+            try {
+                return Color.decode(colour.startsWith("-") ? colour : "0x" + colour);
+            } catch (NumberFormatException nfe) {
+                if (!colour.startsWith("-")) {
+                    throw nfe;
+                }
+            }
+        }
+
+        if (first == '"' && end - start > 1 && bytes[end - 1] == '"') {
+            return strings.get(bytes, start + 1, end - 1);
+        }
+
+        int length = end - start;
+        if ((length == 4 || length == 5) && isBoolean(bytes, start, end)) {
+            return (bytes[start] == 't' || bytes[start] == 'T') ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        Integer integer = parseInteger(bytes, start, end);
+        if (integer != null) {
+            return integer;
+        }
+
+        double value = TreeTokenizer.parseDouble(bytes, start, end);
+        if (!Double.isNaN(value)) {
+            return value;
+        }
+
+        String text = strings.get(bytes, start, end);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException nfe) {
+            return text;
+        }
+    }
+
+    /**
+     * @return an Integer if the bytes would be accepted by Integer.parseInt or null
+     */
+    private static Integer parseInteger(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (bytes[i] == '-' || bytes[i] == '+') {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            return null;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) {
+                return null;
+            }
+            value = value * 10 + d;
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return null;
+        }
+        return (int)value;
+    }
+
+    private static boolean isBoolean(byte[] bytes, int start, int end) {
+        String word = (end - start == 4 ? "TRUE" : "FALSE");
+        for (int i = start; i < end; i++) {
+            int c = bytes[i];
+            if (c >= 'a' && c <= 'z') {
+                c -= 32;
+            }
+            if (c != word.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    /**
+     * @return the cache used to share the key and value strings
+     */
+    public StringCache getStringCache() {
+        return strings;
+    }
+
+    private final StringCache strings = new StringCache();
+}
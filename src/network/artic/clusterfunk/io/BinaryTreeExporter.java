@@ -0,0 +1,349 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.io.TreeExporter;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import network.artic.clusterfunk.trees.ArrayRootedTree;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+
+import static network.artic.clusterfunk.io.BinaryTreeFormat.*;
+
+/**
+ * Writes rooted trees in the binary tree format (see BinaryTreeFormat). Node attributes are written as columns
+ * with a type for all their values so, for example, a String attribute is written as a table of the distinct
+ * values and an int code per node. Values of types other than String, Integer, Double, Boolean, Float, Long,
+ * Color and arrays of these are written as Strings.
+ *
+ * TreeExporter's methods don't throw IOExceptions so any are thrown as UncheckedIOExceptions.
+ */
+public class BinaryTreeExporter implements TreeExporter {
+
+    public BinaryTreeExporter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        try {
+            this.out.write(MAGIC);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void exportTree(Tree tree) {
+        if (!(tree instanceof RootedTree)) {
+            throw new IllegalArgumentException("Only rooted trees can be written in the binary format");
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeTree(new DataOutputStream(bytes), (RootedTree)tree);
+            out.writeLong(bytes.size());
+            bytes.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void exportTrees(Collection<? extends Tree> trees) {
+        for (Tree tree : trees) {
+            exportTree(tree);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeTree(DataOutputStream out, RootedTree tree) throws IOException {
+        NodeList nodes = (tree instanceof ArrayRootedTree ?
+                new ArrayNodeList((ArrayRootedTree)tree) :
+                new TreeNodeList(tree));
+        int nodeCount = nodes.size();
+
+        int tipCount = 0;
+        int[] childCounts = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            childCounts[i] = nodes.getChildCount(i);
+            if (childCounts[i] == 0) {
+                tipCount++;
+            }
+        }
+
+        out.writeInt((tree.hasLengths() ? HAS_LENGTHS : 0) | (tree.conceptuallyUnrooted() ? UNROOTED : 0));
+        out.writeInt(nodeCount);
+        out.writeInt(tipCount);
+
+        Map<String, Object> treeAttributes = tree.getAttributeMap();
+        out.writeInt(treeAttributes.size());
+        for (Map.Entry<String, Object> entry : treeAttributes.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+
+        for (int childCount : childCounts) {
+            out.writeInt(childCount);
+        }
+        boolean hasLengths = tree.hasLengths();
+        for (int i = 0; i < nodeCount; i++) {
+            out.writeDouble(hasLengths ? nodes.getLength(i) : 0.0);
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            if (childCounts[i] == 0) {
+                writeString(out, nodes.getTaxonName(i));
+            }
+        }
+
+        // gather the attributes into columns (in the order the names are first seen)
+        Map<String, Integer> columnIndexes = new HashMap<>();
+        List<String> columnNames = new ArrayList<>();
+        List<List<Integer>> columnNodes = new ArrayList<>();
+        List<List<Object>> columnValues = new ArrayList<>();
+        Map<Integer, int[]> nodeOrders = new TreeMap<>();
+        for (int i = 0; i < nodeCount; i++) {
+            Map<String, Object> attributes = nodes.getAttributeMap(i);
+            int[] order = new int[attributes.size()];
+            boolean isInOrder = true;
+            int k = 0;
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                Integer column = columnIndexes.get(entry.getKey());
+                if (column == null) {
+                    column = columnNames.size();
+                    columnIndexes.put(entry.getKey(), column);
+                    columnNames.add(entry.getKey());
+                    columnNodes.add(new ArrayList<>());
+                    columnValues.add(new ArrayList<>());
+                }
+                columnNodes.get(column).add(i);
+                columnValues.get(column).add(entry.getValue());
+                if (k > 0 && order[k - 1] > column) {
+                    isInOrder = false;
+                }
+                order[k] = column;
+                k++;
+            }
+            if (!isInOrder) {
+                nodeOrders.put(i, order);
+            }
+        }
+
+        out.writeInt(columnNames.size());
+        for (int column = 0; column < columnNames.size(); column++) {
+            writeString(out, columnNames.get(column));
+            writeColumn(out, columnNodes.get(column), columnValues.get(column));
+        }
+
+        out.writeInt(nodeOrders.size());
+        for (Map.Entry<Integer, int[]> entry : nodeOrders.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            for (int column : entry.getValue()) {
+                out.writeInt(column);
+            }
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, List<Integer> nodes, List<Object> values) throws IOException {
+        byte type = getColumnType(values);
+        out.writeByte(type);
+        out.writeInt(nodes.size());
+        for (int node : nodes) {
+            out.writeInt(node);
+        }
+        switch (type) {
+            case STRING_COLUMN:
+                Map<Object, Integer> codes = new LinkedHashMap<>();
+                int[] valueCodes = new int[values.size()];
+                for (int i = 0; i < valueCodes.length; i++) {
+                    Integer code = codes.get(values.get(i));
+                    if (code == null) {
+                        code = codes.size();
+                        codes.put(values.get(i), code);
+                    }
+                    valueCodes[i] = code;
+                }
+                out.writeInt(codes.size());
+                for (Object value : codes.keySet()) {
+                    writeString(out, (String)value);
+                }
+                for (int code : valueCodes) {
+                    out.writeInt(code);
+                }
+                break;
+            case INTEGER_COLUMN:
+                for (Object value : values) {
+                    out.writeInt((Integer)value);
+                }
+                break;
+            case DOUBLE_COLUMN:
+                for (Object value : values) {
+                    out.writeDouble((Double)value);
+                }
+                break;
+            case BOOLEAN_COLUMN:
+                for (Object value : values) {
+                    out.writeByte((Boolean)value ? 1 : 0);
+                }
+                break;
+            default:
+                for (Object value : values) {
+                    writeValue(out, value);
+                }
+        }
+    }
+
+    /**
+     * @return the column type that will hold all the values
+     */
+    private static byte getColumnType(List<Object> values) {
+        Class<?> valueClass = values.get(0).getClass();
+        for (Object value : values) {
+            if (value.getClass() != valueClass) {
+                return MIXED_COLUMN;
+            }
+        }
+        if (valueClass == String.class) {
+            return STRING_COLUMN;
+        } else if (valueClass == Integer.class) {
+            return INTEGER_COLUMN;
+        } else if (valueClass == Double.class) {
+            return DOUBLE_COLUMN;
+        } else if (valueClass == Boolean.class) {
+            return BOOLEAN_COLUMN;
+        }
+        return MIXED_COLUMN;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Integer) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt((Integer)value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeByte((Boolean)value ? 1 : 0);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_VALUE);
+            out.writeFloat((Float)value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long)value);
+        } else if (value instanceof Color) {
+            out.writeByte(COLOR_VALUE);
+            out.writeInt(((Color)value).getRGB());
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[])value;
+            out.writeByte(ARRAY_VALUE);
+            out.writeInt(array.length);
+            for (Object element : array) {
+                writeValue(out, element);
+            }
+        } else {
+            out.writeByte(STRING_VALUE);
+            writeString(out, String.valueOf(value));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * The nodes of a tree in post order
+     */
+    private interface NodeList {
+        int size();
+        int getChildCount(int i);
+        double getLength(int i);
+        String getTaxonName(int i);
+        Map<String, Object> getAttributeMap(int i);
+    }
+
+    /**
+     * An ArrayRootedTree's nodes are already in post order so are used directly by index
+     */
+    private static class ArrayNodeList implements NodeList {
+        ArrayNodeList(ArrayRootedTree tree) {
+            this.tree = tree;
+        }
+
+        public int size() {
+            return tree.getNodeCount();
+        }
+
+        public int getChildCount(int i) {
+            return tree.getChildCount(i);
+        }
+
+        public double getLength(int i) {
+            return tree.getLength(i);
+        }
+
+        public String getTaxonName(int i) {
+            return tree.getTaxon(i).getName();
+        }
+
+        public Map<String, Object> getAttributeMap(int i) {
+            return tree.getNodeAttributes().getAttributeMap(i);
+        }
+
+        private final ArrayRootedTree tree;
+    }
+
+    private static class TreeNodeList implements NodeList {
+        TreeNodeList(RootedTree tree) {
+            this.tree = tree;
+
+            // post order without recursion
+            Deque<Node> stack = new ArrayDeque<>();
+            Deque<Node> reversed = new ArrayDeque<>();
+            stack.push(tree.getRootNode());
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                reversed.push(node);
+                for (Node child : tree.getChildren(node)) {
+                    stack.push(child);
+                }
+            }
+            nodes = new ArrayList<>(reversed);
+        }
+
+        public int size() {
+            return nodes.size();
+        }
+
+        public int getChildCount(int i) {
+            return tree.getChildren(nodes.get(i)).size();
+        }
+
+        public double getLength(int i) {
+            return tree.getLength(nodes.get(i));
+        }
+
+        public String getTaxonName(int i) {
+            return tree.getTaxon(nodes.get(i)).getName();
+        }
+
+        public Map<String, Object> getAttributeMap(int i) {
+            return nodes.get(i).getAttributeMap();
+        }
+
+        private final RootedTree tree;
+        private final List<Node> nodes;
+    }
+
+    private final DataOutputStream out;
+}
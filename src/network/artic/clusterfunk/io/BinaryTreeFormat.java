@@ -0,0 +1,48 @@
+package network.artic.clusterfunk.io;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The layout of the binary tree format (FormatType.BINARY) which is read by BinaryTreeImporter and written by
+ * BinaryTreeExporter. All numbers are big endian and strings are an int length followed by UTF-8 bytes.
+ *
+ * The file starts with MAGIC and then each tree is a long giving the length of the tree's block followed by:
+ * <pre>
+ *   int flags (HAS_LENGTHS, UNROOTED)
+ *   int node count, int tip count
+ *   int tree attribute count, then for each a name and a tagged value
+ *   int[node count] the number of children of each node (the nodes are in post order so the root is last)
+ *   double[node count] the branch lengths
+ *   string[tip count] the taxon names of the tips in post order
+ *   int column count, then for each a name, a column type, an int n, int[n] the nodes that have a value and
+ *       the n values (as given by the column type)
+ *   int node count, then for each an int node, an int k and int[k] the columns of the node's attributes in
+ *       the order they were set (only for nodes where this isn't the order of the columns)
+ * </pre>
+ */
+final class BinaryTreeFormat {
+    static final byte[] MAGIC = "CFTREES1".getBytes(StandardCharsets.US_ASCII);
+
+    static final int HAS_LENGTHS = 1;
+    static final int UNROOTED = 2;
+
+    // column types
+    static final byte STRING_COLUMN = 0; // int value count, string[value count], int[n] codes into the values
+    static final byte INTEGER_COLUMN = 1; // int[n]
+    static final byte DOUBLE_COLUMN = 2; // double[n]
+    static final byte BOOLEAN_COLUMN = 3; // byte[n]
+    static final byte MIXED_COLUMN = 4; // n tagged values
+
+    // value tags
+    static final byte STRING_VALUE = 0;
+    static final byte INTEGER_VALUE = 1;
+    static final byte DOUBLE_VALUE = 2;
+    static final byte BOOLEAN_VALUE = 3;
+    static final byte FLOAT_VALUE = 4;
+    static final byte LONG_VALUE = 5;
+    static final byte COLOR_VALUE = 6; // int ARGB
+    static final byte ARRAY_VALUE = 7; // int length and then tagged values
+
+    private BinaryTreeFormat() {
+    }
+}
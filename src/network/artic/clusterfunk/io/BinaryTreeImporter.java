@@ -0,0 +1,416 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.trees.Tree;
+import network.artic.clusterfunk.trees.ArrayRootedTree;
+import network.artic.clusterfunk.trees.TaxonPool;
+import network.artic.clusterfunk.trees.TreeBuilder;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+
+import static network.artic.clusterfunk.io.BinaryTreeFormat.*;
+
+/**
+ * Reads trees in the binary tree format (see BinaryTreeFormat). Each tree's block is memory mapped (or read
+ * whole from a stream) and the arrays are copied out of it in bulk. The trees are ArrayRootedTrees.
+ */
+public class BinaryTreeImporter implements CloseableTreeImporter {
+
+    public BinaryTreeImporter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.in = null;
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        while (magic.hasRemaining() && channel.read(magic) != -1) {
+            // keep reading
+        }
+        if (magic.hasRemaining() || !Arrays.equals(magic.array(), MAGIC)) {
+            channel.close();
+            throw new IOException("Not a binary tree file");
+        }
+        position = MAGIC.length;
+    }
+
+    /**
+     * Reads the trees from a stream (e.g., a compressed file) rather than mapping the file
+     * @param in
+     * @throws IOException
+     */
+    public BinaryTreeImporter(InputStream in) throws IOException {
+        this.channel = null;
+        this.in = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            this.in.readFully(magic);
+        } catch (EOFException e) {
+            // checked below
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            in.close();
+            throw new IOException("Not a binary tree file");
+        }
+    }
+
+    /**
+     * @return true if the bytes start with the binary tree format's magic number
+     */
+    public static boolean isBinaryTreeFile(byte[] head, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasTree() throws IOException, ImportException {
+        if (nextTree == null && !finished) {
+            ByteBuffer block = (channel != null ? mapNextBlock() : readNextBlock());
+            if (block == null) {
+                finished = true;
+                return false;
+            }
+            try {
+                nextTree = readTree(block);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new ImportException.BadFormatException("Corrupt tree in binary tree file");
+            }
+        }
+        return nextTree != null;
+    }
+
+    @Override
+    public Tree importNextTree() throws IOException, ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = nextTree;
+        nextTree = null;
+        return tree;
+    }
+
+    @Override
+    public List<Tree> importTrees() throws IOException, ImportException {
+        List<Tree> trees = new ArrayList<>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        return trees;
+    }
+
+    @Override
+    public Iterator<Tree> iterator() {
+        return new Iterator<Tree>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return hasTree();
+                } catch (IOException | ImportException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public Tree next() {
+                try {
+                    Tree tree = importNextTree();
+                    if (tree != null) {
+                        return tree;
+                    }
+                } catch (IOException | ImportException e) {
+                    // fall through
+                }
+                throw new NoSuchElementException("No more trees in this file");
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        } else {
+            in.close();
+        }
+    }
+
+    private ByteBuffer mapNextBlock() throws IOException, ImportException {
+        if (position + 8 > channel.size()) {
+            channel.close();
+            return null;
+        }
+        long blockLength = channel.map(FileChannel.MapMode.READ_ONLY, position, 8).getLong();
+        if (blockLength < 0 || position + 8 + blockLength > channel.size()) {
+            throw new ImportException.BadFormatException("Truncated binary tree file");
+        }
+        ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position + 8, blockLength);
+        position += 8 + blockLength;
+        return block;
+    }
+
+    private ByteBuffer readNextBlock() throws IOException, ImportException {
+        long blockLength;
+        try {
+            blockLength = in.readLong();
+        } catch (EOFException e) {
+            in.close();
+            return null;
+        }
+        if (blockLength < 0 || blockLength > Integer.MAX_VALUE) {
+            throw new ImportException.BadFormatException("Corrupt tree in binary tree file");
+        }
+        byte[] bytes = new byte[(int)blockLength];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            throw new ImportException.BadFormatException("Truncated binary tree file");
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private ArrayRootedTree readTree(ByteBuffer block) throws ImportException {
+        int flags = block.getInt();
+        int nodeCount = block.getInt();
+        int tipCount = block.getInt();
+
+        Map<String, Object> treeAttributes = new LinkedHashMap<>();
+        int treeAttributeCount = block.getInt();
+        for (int i = 0; i < treeAttributeCount; i++) {
+            String name = readString(block);
+            treeAttributes.put(name, readValue(block));
+        }
+
+        int[] childCounts = new int[nodeCount];
+        block.asIntBuffer().get(childCounts);
+        skip(block, nodeCount * 4);
+        double[] lengths = new double[nodeCount];
+        block.asDoubleBuffer().get(lengths);
+        skip(block, nodeCount * 8);
+        String[] tipNames = new String[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            tipNames[i] = readString(block);
+        }
+
+        int columnCount = block.getInt();
+        Column[] columns = new Column[columnCount];
+        for (int column = 0; column < columnCount; column++) {
+            columns[column] = readColumn(block, readString(block), nodeCount);
+        }
+
+        Map<Integer, int[]> nodeOrders = new HashMap<>();
+        int nodeOrderCount = block.getInt();
+        for (int i = 0; i < nodeOrderCount; i++) {
+            int node = block.getInt();
+            int[] order = new int[block.getInt()];
+            for (int j = 0; j < order.length; j++) {
+                order[j] = block.getInt();
+            }
+            nodeOrders.put(node, order);
+        }
+
+        // the nodes are in post order so the children of each internal node are the last nodes made
+        TreeBuilder builder = new TreeBuilder(nodeCount);
+        int[] stack = new int[nodeCount];
+        int stackSize = 0;
+        int tip = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int node;
+            if (childCounts[i] == 0) {
+                node = builder.createExternalNode(taxonPool.getTaxon(tipNames[tip]));
+                tip++;
+            } else {
+                if (childCounts[i] > stackSize) {
+                    throw new ImportException.BadFormatException("Corrupt tree in binary tree file");
+                }
+                stackSize -= childCounts[i];
+                node = builder.createInternalNode(stack, stackSize, stackSize + childCounts[i]);
+            }
+            stack[stackSize] = node;
+            stackSize++;
+
+            if ((flags & HAS_LENGTHS) != 0) {
+                builder.setLength(node, lengths[i]);
+            }
+            int[] order = nodeOrders.get(i);
+            if (order != null) {
+                for (int column : order) {
+                    columns[column].setAttribute(builder, node, i);
+                }
+            } else {
+                for (Column column : columns) {
+                    if (column.has(i)) {
+                        column.setAttribute(builder, node, i);
+                    }
+                }
+            }
+        }
+        if (stackSize != 1) {
+            throw new ImportException.BadFormatException("Corrupt tree in binary tree file");
+        }
+
+        ArrayRootedTree tree;
+        try {
+            tree = builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new ImportException.DuplicateTaxaException(e.getMessage());
+        }
+        for (Map.Entry<String, Object> entry : treeAttributes.entrySet()) {
+            tree.setAttribute(entry.getKey(), entry.getValue());
+        }
+        tree.setConceptuallyUnrooted((flags & UNROOTED) != 0);
+        return tree;
+    }
+
+    /**
+     * @return the values of the column for each node. Integer, Double and Boolean columns are kept unboxed.
+     */
+    private static Column readColumn(ByteBuffer block, String name, int nodeCount) throws ImportException {
+        byte type = block.get();
+        int n = block.getInt();
+        int[] nodes = new int[n];
+        block.asIntBuffer().get(nodes);
+        skip(block, n * 4);
+
+        Column column = new Column(name, type, nodeCount);
+        for (int node : nodes) {
+            column.present[node] = true;
+        }
+        switch (type) {
+            case STRING_COLUMN:
+                String[] strings = new String[block.getInt()];
+                for (int i = 0; i < strings.length; i++) {
+                    strings[i] = readString(block);
+                }
+                for (int node : nodes) {
+                    column.values[node] = strings[block.getInt()];
+                }
+                break;
+            case INTEGER_COLUMN:
+                for (int node : nodes) {
+                    column.intValues[node] = block.getInt();
+                }
+                break;
+            case DOUBLE_COLUMN:
+                for (int node : nodes) {
+                    column.doubleValues[node] = block.getDouble();
+                }
+                break;
+            case BOOLEAN_COLUMN:
+                for (int node : nodes) {
+                    column.booleanValues[node] = block.get() != 0;
+                }
+                break;
+            case MIXED_COLUMN:
+                for (int node : nodes) {
+                    column.values[node] = readValue(block);
+                }
+                break;
+            default:
+                throw new ImportException.BadFormatException("Unknown attribute column type in binary tree file");
+        }
+        return column;
+    }
+
+    /**
+     * The values of an attribute column read from a tree block
+     */
+    private static class Column {
+        Column(String name, byte type, int nodeCount) {
+            this.name = name;
+            this.type = type;
+            this.present = new boolean[nodeCount];
+            this.values = (type == STRING_COLUMN || type == MIXED_COLUMN ? new Object[nodeCount] : null);
+            this.intValues = (type == INTEGER_COLUMN ? new int[nodeCount] : null);
+            this.doubleValues = (type == DOUBLE_COLUMN ? new double[nodeCount] : null);
+            this.booleanValues = (type == BOOLEAN_COLUMN ? new boolean[nodeCount] : null);
+        }
+
+        boolean has(int i) {
+            return present[i];
+        }
+
+        void setAttribute(TreeBuilder builder, int node, int i) {
+            switch (type) {
+                case INTEGER_COLUMN:
+                    builder.setIntAttribute(node, name, intValues[i]);
+                    break;
+                case DOUBLE_COLUMN:
+                    builder.setDoubleAttribute(node, name, doubleValues[i]);
+                    break;
+                case BOOLEAN_COLUMN:
+                    builder.setBooleanAttribute(node, name, booleanValues[i]);
+                    break;
+                default:
+                    builder.setAttribute(node, name, values[i]);
+            }
+        }
+
+        final String name;
+        final byte type;
+        final boolean[] present;
+        final Object[] values;
+        final int[] intValues;
+        final double[] doubleValues;
+        final boolean[] booleanValues;
+    }
+
+    private static Object readValue(ByteBuffer block) throws ImportException {
+        byte tag = block.get();
+        switch (tag) {
+            case STRING_VALUE:
+                return readString(block);
+            case INTEGER_VALUE:
+                return block.getInt();
+            case DOUBLE_VALUE:
+                return block.getDouble();
+            case BOOLEAN_VALUE:
+                return block.get() != 0;
+            case FLOAT_VALUE:
+                return block.getFloat();
+            case LONG_VALUE:
+                return block.getLong();
+            case COLOR_VALUE:
+                return new Color(block.getInt(), true);
+            case ARRAY_VALUE:
+                Object[] array = new Object[block.getInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(block);
+                }
+                return array;
+            default:
+                throw new ImportException.BadFormatException("Unknown attribute value type in binary tree file");
+        }
+    }
+
+    private static String readString(ByteBuffer block) {
+        byte[] bytes = new byte[block.getInt()];
+        block.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skip(ByteBuffer block, int length) {
+        // cast so this calls Buffer.position(int) which exists in all Java versions
+        ((Buffer)block).position(block.position() + length);
+    }
+
+    private final FileChannel channel;
+    private final DataInputStream in;
+    private long position;
+    // the taxa of the trees read (so each tip name only goes to jebl's taxon registry once)
+    private final TaxonPool taxonPool = new TaxonPool();
+    private Tree nextTree = null;
+    private boolean finished = false;
+}
@@ -0,0 +1,187 @@
+package network.artic.clusterfunk.io;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a stream in the BGZF (bgzip) format - a series of gzip members each holding up to 64KB - which can be
+ * read by any gzip reader. As the blocks are independent they are compressed in parallel on all the available
+ * processors and written in order.
+ */
+public class BlockGzipOutputStream extends OutputStream {
+    // the maximum uncompressed block size used by bgzip
+    private static final int BLOCK_SIZE = 65280;
+    private static final int MAX_BLOCK_SIZE = 65536;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    private static final byte[] EMPTY_BLOCK = {
+            0x1F, (byte)0x8B, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte)0xFF, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+            0x1B, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    public BlockGzipOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param out
+     * @param threadCount the number of threads to compress with
+     */
+    public BlockGzipOutputStream(OutputStream out, int threadCount) {
+        this.out = out;
+        this.threadCount = Math.max(threadCount, 1);
+        this.executor = Executors.newFixedThreadPool(this.threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "BlockGzipOutputStream");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[length++] = (byte)b;
+        if (length == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        while (count > 0) {
+            int n = Math.min(count, BLOCK_SIZE - length);
+            System.arraycopy(bytes, offset, buffer, length, n);
+            length += n;
+            offset += n;
+            count -= n;
+            if (length == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes out the blocks that have been compressed. The current block isn't ended early (writers may flush
+     * after every line) so everything is only written by close().
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!blocks.isEmpty() && blocks.getFirst().isDone()) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (length > 0) {
+                submitBlock();
+            }
+            while (!blocks.isEmpty()) {
+                writeBlock();
+            }
+            out.write(EMPTY_BLOCK);
+            out.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = buffer;
+        final int dataLength = length;
+        blocks.add(executor.submit(() -> compressBlock(data, dataLength)));
+        buffer = new byte[BLOCK_SIZE];
+        length = 0;
+
+        // only a few blocks are compressed ahead of the one being written to limit the memory used
+        while (blocks.size() > threadCount * 2) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            out.write(blocks.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the block as a complete gzip member with the BGZF extra field giving its size
+     */
+    private static byte[] compressBlock(byte[] data, int dataLength) {
+        Deflater deflater = DEFLATERS.get();
+        byte[] compressed = new byte[MAX_BLOCK_SIZE];
+        int size = deflate(deflater, data, dataLength, compressed);
+        if (size == -1) {
+            // incompressible data - store it
+            deflater.setLevel(Deflater.NO_COMPRESSION);
+            size = deflate(deflater, data, dataLength, compressed);
+            deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        int blockSize = HEADER_SIZE + size + FOOTER_SIZE;
+        byte[] block = new byte[blockSize];
+        byte[] header = {
+                0x1F, (byte)0x8B, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte)0xFF, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+                (byte)(blockSize - 1), (byte)((blockSize - 1) >> 8)
+        };
+        System.arraycopy(header, 0, block, 0, HEADER_SIZE);
+        System.arraycopy(compressed, 0, block, HEADER_SIZE, size);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, dataLength);
+        putInt(block, HEADER_SIZE + size, (int)crc.getValue());
+        putInt(block, HEADER_SIZE + size + 4, dataLength);
+        return block;
+    }
+
+    /**
+     * @return the compressed size or -1 if it wouldn't fit in a block
+     */
+    private static int deflate(Deflater deflater, byte[] data, int dataLength, byte[] compressed) {
+        int capacity = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+        deflater.reset();
+        deflater.setInput(data, 0, dataLength);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < capacity) {
+            size += deflater.deflate(compressed, size, capacity - size);
+        }
+        return deflater.finished() ? size : -1;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        // little endian
+        bytes[offset] = (byte)value;
+        bytes[offset + 1] = (byte)(value >> 8);
+        bytes[offset + 2] = (byte)(value >> 16);
+        bytes[offset + 3] = (byte)(value >> 24);
+    }
+
+    private final OutputStream out;
+    private final int threadCount;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> blocks = new ArrayDeque<>();
+
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int length = 0;
+    private boolean closed = false;
+}
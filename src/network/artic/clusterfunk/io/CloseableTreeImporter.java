@@ -0,0 +1,12 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.io.TreeImporter;
+
+import java.io.Closeable;
+
+/**
+ * A tree importer that reads from a file so should be closed (e.g., to stop the thread decompressing it) when
+ * it isn't read to the end.
+ */
+public interface CloseableTreeImporter extends TreeImporter, Closeable {
+}
@@ -0,0 +1,80 @@
+package network.artic.clusterfunk.io;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens files that may be compressed. Compressed input is recognised by its first bytes (not the file name) and
+ * is decompressed on a separate thread (see ThreadedInputStream). Output is compressed if the file name ends in
+ * '.gz' (see BlockGzipOutputStream).
+ */
+public final class CompressedFiles {
+
+    public enum Compression {
+        NONE,
+        GZIP, // includes bgzip which is a series of gzip members
+        ZSTD
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CompressedFiles() {
+    }
+
+    /**
+     * @return the compression of a file from its first bytes
+     * @throws IOException if the file can't be read (the message gives the reason, as FileInputStream's do)
+     */
+    public static Compression getCompression(Path path) throws IOException {
+        byte[] head = new byte[4];
+        int length = 0;
+        try (InputStream in = new FileInputStream(path.toFile())) {
+            int n;
+            while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+                length += n;
+            }
+        }
+        if (length >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B) {
+            return Compression.GZIP;
+        }
+        if (length >= 4 && (head[0] & 0xFF) == 0x28 && (head[1] & 0xFF) == 0xB5 &&
+                (head[2] & 0xFF) == 0x2F && (head[3] & 0xFF) == 0xFD) {
+            return Compression.ZSTD;
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if it is compressed
+     * @param path
+     * @return the stream of (uncompressed) bytes
+     * @throws IOException if the file can't be opened or uses a compression that isn't supported
+     */
+    public static InputStream openInputStream(Path path) throws IOException {
+        switch (getCompression(path)) {
+            case GZIP:
+                // FileInputStream.available() is used by GZIPInputStream to find following members
+                return new ThreadedInputStream(new GZIPInputStream(new FileInputStream(path.toFile()), BUFFER_SIZE));
+            case ZSTD:
+                throw new IOException("File, " + path + ", is zstd compressed which is not supported " +
+                        "(decompress it with 'zstd -d' or recompress it with gzip or bgzip)");
+            default:
+                return new BufferedInputStream(new FileInputStream(path.toFile()), BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Opens a file for writing, compressing it in the BGZF (bgzip) format if the name ends in '.gz'
+     * @param path
+     * @return the stream
+     * @throws IOException
+     */
+    public static OutputStream openOutputStream(Path path) throws IOException {
+        // FileOutputStream's exceptions give the reason the file can't be opened (Files' only give the path)
+        if (path.getFileName().toString().endsWith(".gz")) {
+            return new BlockGzipOutputStream(new FileOutputStream(path.toFile()));
+        }
+        return new BufferedOutputStream(new FileOutputStream(path.toFile()), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,569 @@
+package network.artic.clusterfunk.io;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads a comma or tab delimited file with a header row (quoted as RFC 4180). The file is memory mapped and split
+ * into chunks at record boundaries which are parsed on all the available processors. The records are still
+ * given to the caller one at a time in the order of the file.
+ *
+ * A chunk boundary may fall inside a quoted field (which can contain delimiters and new lines) so the chunks are
+ * first scanned in parallel for the number of quotes and the first new line after an even and an odd number of
+ * quotes. Whether each chunk starts inside a quoted field then follows from the counts of the chunks before it
+ * and gives the first new line that ends a record.
+ *
+ * Compressed files (see CompressedFiles) can't be mapped so are read as a stream and cut into chunks at the last
+ * record boundary in each block read. The chunks are still parsed in parallel.
+ */
+public class DelimitedFileReader implements Closeable {
+
+    public interface RecordHandler {
+        /**
+         * @param values the values of the columns asked for (in the order asked for)
+         */
+        void handleRecord(String[] values);
+    }
+
+    private static final int CHUNK_SIZE = 1 << 23;
+
+    public DelimitedFileReader(Path path) throws IOException {
+        this(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Opens a file and reads the header row
+     * @param path
+     * @param threadCount the number of threads to parse with
+     * @throws IOException
+     */
+    public DelimitedFileReader(Path path, int threadCount) throws IOException {
+        // getCompression opens the file first so a file that can't be read is reported with the reason
+        if (CompressedFiles.getCompression(path) != CompressedFiles.Compression.NONE) {
+            this.channel = null;
+            this.fileSize = -1;
+            this.input = CompressedFiles.openInputStream(path);
+        } else {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.fileSize = channel.size();
+            this.input = null;
+        }
+        this.threadCount = Math.max(threadCount, 1);
+        readHeader();
+    }
+
+    public List<String> getHeaderNames() {
+        return headerNames;
+    }
+
+    /**
+     * @return the delimiter found in the header row (a tab if it has more tabs than commas)
+     */
+    public char getDelimiter() {
+        return (char)delimiter;
+    }
+
+    /**
+     * Reads all the records after the header
+     * @param columns the column numbers to give the values of
+     * @param keyColumn a column to filter the records on (it needn't be one of the columns above)
+     * @param keys the values of the key column of the records to keep or null for all records with a key
+     * @param handler
+     * @throws IOException
+     */
+    public void readRecords(int[] columns, int keyColumn, Set<String> keys, RecordHandler handler) throws IOException {
+        ChunkSource chunks;
+        if (input != null) {
+            chunks = () -> {
+                final byte[] data = readNextChunk();
+                return data != null ? () -> parseChunk(data, columns, keyColumn, keys) : null;
+            };
+        } else {
+            final long[] boundaries = findRecordBoundaries();
+            chunks = new ChunkSource() {
+                @Override
+                public Callable<List<String[]>> next() {
+                    if (chunk >= boundaries.length - 1) {
+                        return null;
+                    }
+                    final long start = boundaries[chunk];
+                    final long end = boundaries[chunk + 1];
+                    chunk++;
+                    return () -> parseChunk(map(start, (int)(end - start)), columns, keyColumn, keys);
+                }
+
+                private int chunk = 0;
+            };
+        }
+
+        if (threadCount == 1) {
+            Callable<List<String[]>> chunk;
+            while ((chunk = chunks.next()) != null) {
+                for (String[] record : getResult(chunk)) {
+                    handler.handleRecord(record);
+                }
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            // only a few chunks ahead of the one being handled are parsed to limit the memory used
+            Deque<Future<List<String[]>>> parsed = new ArrayDeque<>();
+            Callable<List<String[]>> next = chunks.next();
+            while (next != null || !parsed.isEmpty()) {
+                while (next != null && parsed.size() < threadCount * 2) {
+                    parsed.add(executor.submit(next));
+                    next = chunks.next();
+                }
+                for (String[] record : getResult(parsed.removeFirst())) {
+                    handler.handleRecord(record);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        } else {
+            input.close();
+        }
+    }
+
+    /**
+     * The chunks of the file to parse in order
+     */
+    private interface ChunkSource {
+        /**
+         * @return the task to parse the next chunk or null if there are no more
+         */
+        Callable<List<String[]>> next() throws IOException;
+    }
+
+    private void readHeader() throws IOException {
+        int length;
+        byte[] data;
+        if (input != null) {
+            data = new byte[1 << 16];
+            length = fill(data, 0);
+        } else {
+            length = (int)Math.min(fileSize, 1 << 16);
+            data = map(0, length);
+        }
+        int start = 0;
+        if (length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF) {
+            // UTF-8 byte order mark
+            start = 3;
+        }
+        int end = findRecordEnd(data, start, length);
+        if (input != null) {
+            while (end == -1 && length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+                length = fill(data, length);
+                end = findRecordEnd(data, start, length);
+            }
+        } else {
+            while (end == -1 && length < fileSize) {
+                length = (int)Math.min(fileSize, (long)length * 2);
+                data = map(0, length);
+                end = findRecordEnd(data, start, length);
+            }
+        }
+        if (end == -1) {
+            end = length;
+        }
+
+        int tabCount = 0;
+        int commaCount = 0;
+        boolean isQuoted = false;
+        for (int i = start; i < end; i++) {
+            if (data[i] == '"') {
+                isQuoted = !isQuoted;
+            } else if (!isQuoted && data[i] == '\t') {
+                tabCount++;
+            } else if (!isQuoted && data[i] == ',') {
+                commaCount++;
+            }
+        }
+        delimiter = (byte)(tabCount > commaCount ? '\t' : ',');
+
+        List<String> names = new ArrayList<>();
+        if (end > start) {
+            FieldParser parser = new FieldParser(data, start, end, Integer.MAX_VALUE);
+            parser.nextRecord();
+            for (int i = 0; i < parser.fieldCount; i++) {
+                names.add(parser.getValue(i));
+            }
+        }
+        headerNames = Collections.unmodifiableList(names);
+        if (input != null) {
+            // the rest of what was read is the start of the first chunk
+            pendingLength = Math.max(length - (end + 1), 0);
+            pending = Arrays.copyOfRange(data, Math.min(end + 1, length), Math.min(end + 1, length) + pendingLength);
+            isInputFinished = (length < data.length);
+        } else {
+            dataStart = Math.min(end + 1, fileSize);
+        }
+    }
+
+    /**
+     * Reads the next chunk from the input stream. This is the bytes left over from the last chunk and the next
+     * block of the stream up to the last new line that ends a record.
+     * @return the chunk or null at the end of the stream
+     */
+    private byte[] readNextChunk() throws IOException {
+        if (pending == null) {
+            return null;
+        }
+        byte[] data = new byte[Math.max(CHUNK_SIZE, pendingLength * 2)];
+        System.arraycopy(pending, 0, data, 0, pendingLength);
+        int length = pendingLength;
+        int end = -1;
+        while (true) {
+            if (!isInputFinished) {
+                length = fill(data, length);
+                isInputFinished = (length < data.length);
+            }
+            if (isInputFinished) {
+                end = length;
+                break;
+            }
+            end = findLastRecordEnd(data, length) + 1;
+            if (end > 0) {
+                break;
+            }
+            // a record longer than the chunk
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        if (end < length) {
+            pendingLength = length - end;
+            pending = Arrays.copyOfRange(data, end, length);
+        } else {
+            pending = null;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return end == data.length ? data : Arrays.copyOf(data, end);
+    }
+
+    /**
+     * Reads from the input stream until the array is full or the end of the stream
+     * @return the length of the data in the array
+     */
+    private int fill(byte[] data, int length) throws IOException {
+        int n;
+        while (length < data.length && (n = input.read(data, length, data.length - length)) != -1) {
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * @return the position of the last new line that isn't in a quoted field (the data starts at a record) or -1
+     */
+    private static int findLastRecordEnd(byte[] data, int length) {
+        boolean isQuoted = false;
+        int end = -1;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '"') {
+                isQuoted = !isQuoted;
+            } else if (!isQuoted && data[i] == '\n') {
+                end = i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the end of the record starting at start (the position of the new line) or -1 if it isn't
+     * within the data
+     */
+    private static int findRecordEnd(byte[] data, int start, int end) {
+        boolean isQuoted = false;
+        for (int i = start; i < end; i++) {
+            if (data[i] == '"') {
+                isQuoted = !isQuoted;
+            } else if (!isQuoted && data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits the records into chunks of about CHUNK_SIZE bytes
+     * @return the start of each chunk and the end of the file
+     */
+    private long[] findRecordBoundaries() throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        for (long start = dataStart; start < fileSize; start += CHUNK_SIZE) {
+            ranges.add(new long[] { start, Math.min(start + CHUNK_SIZE, fileSize) });
+        }
+
+        List<long[]> scans = new ArrayList<>();
+        if (ranges.size() <= 1 || threadCount == 1) {
+            for (long[] range : ranges) {
+                scans.add(scanChunk(range[0], range[1]));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                List<Future<long[]>> futures = new ArrayList<>();
+                for (long[] range : ranges) {
+                    futures.add(executor.submit(() -> scanChunk(range[0], range[1])));
+                }
+                for (Future<long[]> future : futures) {
+                    scans.add(getResult(future));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(dataStart);
+        boolean isQuoted = false;
+        for (int i = 0; i < scans.size(); i++) {
+            long[] scan = scans.get(i);
+            if (i > 0) {
+                // a record starts after the first new line that isn't in a quoted field
+                long newLine = scan[isQuoted ? 2 : 1];
+                if (newLine != -1 && newLine + 1 < fileSize) {
+                    boundaries.add(newLine + 1);
+                }
+            }
+            if ((scan[0] & 1) == 1) {
+                isQuoted = !isQuoted;
+            }
+        }
+        boundaries.add(fileSize);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of quotes and the positions of the first new line after an even and after an odd
+     * number of quotes (or -1)
+     */
+    private long[] scanChunk(long start, long end) throws IOException {
+        byte[] data = map(start, (int)(end - start));
+        long quoteCount = 0;
+        long evenNewLine = -1;
+        long oddNewLine = -1;
+        for (int i = 0; i < data.length; i++) {
+            byte b = data[i];
+            if (b == '"') {
+                quoteCount++;
+            } else if (b == '\n') {
+                if ((quoteCount & 1) == 0) {
+                    if (evenNewLine == -1) {
+                        evenNewLine = start + i;
+                    }
+                } else if (oddNewLine == -1) {
+                    oddNewLine = start + i;
+                }
+            }
+        }
+        return new long[] { quoteCount, evenNewLine, oddNewLine };
+    }
+
+    private List<String[]> parseChunk(byte[] data, int[] columns, int keyColumn, Set<String> keys) throws IOException {
+        int lastColumn = keyColumn;
+        for (int column : columns) {
+            lastColumn = Math.max(lastColumn, column);
+        }
+
+        List<String[]> records = new ArrayList<>();
+        FieldParser parser = new FieldParser(data, 0, data.length, lastColumn + 1);
+        while (parser.nextRecord()) {
+            if (keyColumn >= parser.fieldCount) {
+                continue;
+            }
+            if (keys != null && !keys.contains(parser.getValue(keyColumn))) {
+                continue;
+            }
+            String[] values = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = (columns[i] < parser.fieldCount ? parser.getValue(columns[i]) : "");
+            }
+            records.add(values);
+        }
+        if (parser.isUnterminated) {
+            throw new IOException("end of file reached before the end of a quoted field");
+        }
+        return records;
+    }
+
+    private byte[] map(long start, int length) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    private static <T> T getResult(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Finds the fields of one record at a time. Only the positions of the fields are found so Strings are only
+     * made for the values asked for.
+     */
+    private class FieldParser {
+        FieldParser(byte[] data, int start, int end, int maxFieldCount) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+            this.maxFieldCount = maxFieldCount;
+        }
+
+        /**
+         * @return false if there are no more records
+         */
+        boolean nextRecord() {
+            if (position >= end) {
+                return false;
+            }
+            fieldCount = 0;
+            boolean isRecordEnd = false;
+            while (!isRecordEnd) {
+                int fieldStart = position;
+                boolean isQuoted = false;
+                boolean hasEscapes = false;
+                if (position < end && data[position] == '"') {
+                    isQuoted = true;
+                    position++;
+                    fieldStart = position;
+                    while (position < end) {
+                        if (data[position] == '"') {
+                            if (position + 1 < end && data[position + 1] == '"') {
+                                hasEscapes = true;
+                                position += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        position++;
+                    }
+                    if (position >= end) {
+                        isUnterminated = true;
+                    }
+                }
+                int fieldEnd = position;
+                if (isQuoted && position < end) {
+                    // skip the closing quote
+                    position++;
+                }
+                while (position < end && data[position] != delimiter && data[position] != '\n') {
+                    position++;
+                }
+                if (!isQuoted) {
+                    fieldEnd = position;
+                }
+                if (position >= end || data[position] == '\n') {
+                    isRecordEnd = true;
+                    if (!isQuoted && fieldEnd > fieldStart && data[fieldEnd - 1] == '\r') {
+                        fieldEnd--;
+                    }
+                }
+                position++;
+
+                if (fieldCount < maxFieldCount) {
+                    addField(fieldStart, fieldEnd, hasEscapes);
+                }
+            }
+            return true;
+        }
+
+        String getValue(int field) {
+            int start = starts[field];
+            int length = ends[field] - start;
+            if (!escapes[field]) {
+                return new String(data, start, length, StandardCharsets.UTF_8);
+            }
+            byte[] value = new byte[length];
+            int j = 0;
+            for (int i = start; i < ends[field]; i++) {
+                value[j++] = data[i];
+                if (data[i] == '"') {
+                    // a doubled quote
+                    i++;
+                }
+            }
+            return new String(value, 0, j, StandardCharsets.UTF_8);
+        }
+
+        private void addField(int start, int end, boolean hasEscapes) {
+            if (fieldCount == starts.length) {
+                starts = Arrays.copyOf(starts, fieldCount * 2);
+                ends = Arrays.copyOf(ends, fieldCount * 2);
+                escapes = Arrays.copyOf(escapes, fieldCount * 2);
+            }
+            starts[fieldCount] = start;
+            ends[fieldCount] = end;
+            escapes[fieldCount] = hasEscapes;
+            fieldCount++;
+        }
+
+        private final byte[] data;
+        private final int end;
+        private final int maxFieldCount;
+        private int position;
+
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private boolean[] escapes = new boolean[16];
+
+        int fieldCount;
+        boolean isUnterminated = false;
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final InputStream input;
+    private final int threadCount;
+
+    private List<String> headerNames;
+    private byte delimiter;
+    private long dataStart;
+
+    private byte[] pending = null;
+    private int pendingLength = 0;
+    private boolean isInputFinished = false;
+}
@@ -0,0 +1,173 @@
+package network.artic.clusterfunk.io;
+
+/**
+ * Formats doubles as ASCII bytes without creating a String for each number. Numbers can be written either to a
+ * number of significant digits (exactly as String.format("%.6g") would, which is how jebl writes branch lengths)
+ * or in full (as Double.toString would). This isn't thread safe - each thread should have its own.
+ */
+public class DoubleFormatter {
+
+    /**
+     * The most bytes written for one number with up to this many significant digits
+     */
+    public static int getMaxLength(int significantDigits) {
+        // sign, digits, point, up to 4 leading zeros or an exponent ('e', sign and 3 digits)
+        return Math.max(significantDigits, 17) + 12;
+    }
+
+    /**
+     * Writes a number in full - the same characters as Double.toString
+     * @return the offset after the number
+     */
+    public int format(double value, byte[] bytes, int offset) {
+        text.setLength(0);
+        text.append(value);
+        for (int i = 0; i < text.length(); i++) {
+            bytes[offset++] = (byte)text.charAt(i);
+        }
+        return offset;
+    }
+
+    /**
+     * Writes a number rounded to a number of significant digits - the same characters as
+     * String.format("%.<significantDigits>g", value) in an English locale
+     * @return the offset after the number
+     */
+    public int format(double value, int significantDigits, byte[] bytes, int offset) {
+        if (Double.isNaN(value)) {
+            return write("NaN", bytes, offset);
+        }
+        if (Double.compare(value, 0.0) < 0) {
+            // includes -0.0
+            bytes[offset++] = '-';
+            value = -value;
+        }
+        if (Double.isInfinite(value)) {
+            return write("Infinity", bytes, offset);
+        }
+
+        int precision = Math.max(significantDigits, 1);
+        int digitCount;
+        int exponent;
+        if (value == 0.0) {
+            digits[0] = '0';
+            digitCount = 1;
+            exponent = 0;
+        } else {
+            digitCount = getDigits(value);
+            exponent = decimalExponent;
+            if (digitCount > precision) {
+                exponent += round(precision);
+                digitCount = precision;
+            }
+        }
+
+        if (value != 0.0 && (exponent < -4 || exponent >= precision)) {
+            // scientific: d.ddddde+xx
+            bytes[offset++] = digits[0];
+            if (precision > 1) {
+                bytes[offset++] = '.';
+                for (int i = 1; i < precision; i++) {
+                    bytes[offset++] = (i < digitCount ? digits[i] : (byte)'0');
+                }
+            }
+            bytes[offset++] = 'e';
+            bytes[offset++] = (byte)(exponent < 0 ? '-' : '+');
+            int e = Math.abs(exponent);
+            if (e >= 100) {
+                bytes[offset++] = (byte)('0' + e / 100);
+            }
+            bytes[offset++] = (byte)('0' + (e / 10) % 10);
+            bytes[offset++] = (byte)('0' + e % 10);
+        } else {
+            // decimal with precision - (exponent + 1) digits after the point
+            int decimals = precision - (exponent + 1);
+            if (exponent < 0) {
+                bytes[offset++] = '0';
+            } else {
+                for (int i = 0; i <= exponent; i++) {
+                    bytes[offset++] = (i < digitCount ? digits[i] : (byte)'0');
+                }
+            }
+            if (decimals > 0) {
+                bytes[offset++] = '.';
+                for (int i = 0; i < decimals; i++) {
+                    int position = exponent + 1 + i;
+                    bytes[offset++] = (position >= 0 && position < digitCount ? digits[position] : (byte)'0');
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Gets the significant digits of a positive number from Double.toString (which Formatter also rounds from)
+     * @return the number of digits (the exponent of the first digit is put in decimalExponent)
+     */
+    private int getDigits(double value) {
+        text.setLength(0);
+        text.append(value);
+        int length = text.length();
+        int count = 0;
+        int point = -1;
+        int leadingZeros = 0;
+        int exponent = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                point = count + leadingZeros;
+            } else if (c == 'E') {
+                boolean isNegative = text.charAt(i + 1) == '-';
+                for (int j = (isNegative ? i + 2 : i + 1); j < length; j++) {
+                    exponent = exponent * 10 + (text.charAt(j) - '0');
+                }
+                if (isNegative) {
+                    exponent = -exponent;
+                }
+                break;
+            } else if (c == '0' && count == 0) {
+                leadingZeros++;
+            } else {
+                digits[count++] = (byte)c;
+            }
+        }
+        // drop trailing zeros
+        while (count > 1 && digits[count - 1] == '0') {
+            count--;
+        }
+        decimalExponent = exponent + point - 1 - leadingZeros;
+        return count;
+    }
+
+    /**
+     * Rounds the digits half up to a number of digits
+     * @return 1 if the rounding carried into a new leading digit (the exponent goes up by one) otherwise 0
+     */
+    private int round(int precision) {
+        if (digits[precision] < '5') {
+            return 0;
+        }
+        int i = precision - 1;
+        while (i >= 0 && digits[i] == '9') {
+            digits[i] = '0';
+            i--;
+        }
+        if (i < 0) {
+            digits[0] = '1';
+            return 1;
+        }
+        digits[i]++;
+        return 0;
+    }
+
+    private static int write(String text, byte[] bytes, int offset) {
+        for (int i = 0; i < text.length(); i++) {
+            bytes[offset++] = (byte)text.charAt(i);
+        }
+        return offset;
+    }
+
+    private final StringBuilder text = new StringBuilder(32);
+    private final byte[] digits = new byte[32];
+    private int decimalExponent;
+}
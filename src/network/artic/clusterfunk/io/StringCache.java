@@ -0,0 +1,94 @@
+package network.artic.clusterfunk.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps runs of UTF-8 bytes to shared String objects without creating a String to do the lookup. Used for
+ * attribute keys and values which are repeated at most nodes of a tree. Once full, new strings are still
+ * returned but are no longer cached.
+ */
+public class StringCache {
+    private static final int MAX_LENGTH = 64;
+    private static final int MAX_SIZE = 1 << 16;
+
+    public StringCache() {
+    }
+
+    /**
+     * @return a String for the bytes between start (inclusive) and end (exclusive)
+     */
+    public String get(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (length > MAX_LENGTH) {
+            return new String(bytes, start, length, StandardCharsets.UTF_8);
+        }
+
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        hash ^= (hash >>> 16);
+
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && equals(keys[slot], bytes, start, end)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String value = new String(bytes, start, length, StandardCharsets.UTF_8);
+        if (size < MAX_SIZE) {
+            keys[slot] = Arrays.copyOfRange(bytes, start, end);
+            hashes[slot] = hash;
+            values[slot] = value;
+            size++;
+            if (size * 2 > keys.length) {
+                rehash();
+            }
+        }
+        return value;
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int start, int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        String[] oldValues = values;
+
+        keys = new byte[oldKeys.length * 2][];
+        hashes = new int[keys.length];
+        values = new String[keys.length];
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private byte[][] keys = new byte[256][];
+    private int[] hashes = new int[256];
+    private String[] values = new String[256];
+    private int size = 0;
+}
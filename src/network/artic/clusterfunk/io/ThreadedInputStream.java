@@ -0,0 +1,151 @@
+package network.artic.clusterfunk.io;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream on a separate thread (e.g., to decompress a file while the data is being parsed). The
+ * thread reads blocks ahead into a small queue so the memory used is bounded.
+ */
+public class ThreadedInputStream extends InputStream {
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int QUEUE_LENGTH = 4;
+
+    private static final byte[] END = new byte[0];
+
+    public ThreadedInputStream(InputStream source) {
+        this.source = source;
+        this.reader = new Thread(this::readSource, "ThreadedInputStream");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(length, block.length - position);
+        System.arraycopy(block, position, bytes, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block != null ? block.length - position : 0;
+    }
+
+    /**
+     * Stops the reading thread and then closes the source (so it is never closed while it is being read)
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        reader.interrupt();
+        // make room so the reading thread can't block on a full queue while it stops
+        blocks.clear();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Makes sure there are bytes left in the current block
+     * @return false if the end of the stream has been reached
+     */
+    private boolean nextBlock() throws IOException {
+        while (block == null || position == block.length) {
+            if (block == END) {
+                return false;
+            }
+            try {
+                block = blocks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            position = 0;
+            if (block == END && error != null) {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                }
+                if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                }
+                throw (Error) error;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the source into blocks until the end, an error or the stream is closed. END is always queued last
+     * so the reading side never waits forever. Once closed nothing waits on the queue (nobody will take from it).
+     */
+    private void readSource() {
+        try {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int length = 0;
+            int n;
+            while ((n = source.read(buffer, length, buffer.length - length)) != -1) {
+                if (closed || Thread.currentThread().isInterrupted()) {
+                    // closed
+                    return;
+                }
+                length += n;
+                if (length == buffer.length) {
+                    blocks.put(buffer);
+                    buffer = new byte[BLOCK_SIZE];
+                    length = 0;
+                }
+            }
+            if (length > 0) {
+                blocks.put(Arrays.copyOf(buffer, length));
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            if (closed) {
+                blocks.offer(END);
+            } else {
+                try {
+                    blocks.put(END);
+                } catch (InterruptedException e) {
+                    // closed
+                    blocks.offer(END);
+                }
+            }
+        }
+    }
+
+    private final InputStream source;
+    private final Thread reader;
+    private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+
+    private volatile Throwable error = null;
+    private volatile boolean closed = false;
+
+    private byte[] block = null;
+    private int position = 0;
+}
@@ -0,0 +1,94 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * The translation of the taxon labels in the trees of a NEXUS file (from the TRANSLATE command or the TAXA
+ * block). Labels that are numbers (as written by TRANSLATE commands) are kept in an array indexed by the number
+ * so the tips can be looked up without creating a String. Any other labels are kept in a map.
+ */
+class TranslationTable {
+
+    TranslationTable() {
+    }
+
+    /**
+     * A copy of another table that can be added to without changing it
+     */
+    TranslationTable(TranslationTable table) {
+        this.taxa = table.taxa.clone();
+        this.taxonMap.putAll(table.taxonMap);
+        this.size = table.size;
+    }
+
+    void put(String label, Taxon taxon) {
+        int index = getIndex(label);
+        // numbers are only put in the array if it doesn't need to grow much
+        if (index >= 0 && index < Math.max(taxa.length * 2, size * 2 + 1024)) {
+            if (index >= taxa.length) {
+                taxa = Arrays.copyOf(taxa, Math.max(index + 1, taxa.length * 2));
+            }
+            if (taxa[index] == null) {
+                size++;
+            }
+            taxa[index] = taxon;
+        } else if (taxonMap.put(label, taxon) == null) {
+            size++;
+        }
+    }
+
+    /**
+     * @return the taxon for the current token of the tokenizer or null if the label is unknown
+     */
+    Taxon get(TreeTokenizer tokenizer) {
+        int index = tokenizer.getTokenAsIndex();
+        // a number with leading zeros is a different label
+        if (index >= 0 && index < taxa.length && taxa[index] != null &&
+                (tokenizer.getTokenLength() == 1 || tokenizer.getTokenBytes()[0] != '0')) {
+            return taxa[index];
+        }
+        return taxonMap.isEmpty() ? null : taxonMap.get(tokenizer.getToken());
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return all the taxa in the table
+     */
+    List<Taxon> getTaxa() {
+        List<Taxon> taxonList = new ArrayList<>(size);
+        for (Taxon taxon : taxa) {
+            if (taxon != null) {
+                taxonList.add(taxon);
+            }
+        }
+        taxonList.addAll(taxonMap.values());
+        return taxonList;
+    }
+
+    /**
+     * @return the number a label is or -1 if it isn't one (including numbers with leading zeros)
+     */
+    private static int getIndex(String label) {
+        if (label.isEmpty() || label.length() > 9 || (label.charAt(0) == '0' && label.length() > 1)) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < label.length(); i++) {
+            int d = label.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private Taxon[] taxa = new Taxon[0];
+    private final Map<String, Taxon> taxonMap = new HashMap<>();
+    private int size = 0;
+}
@@ -0,0 +1,607 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.io.TreeExporter;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import jebl.evolution.trees.Utils;
+import jebl.util.Attributable;
+import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.*;
+
+import java.awt.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+
+/**
+ * A tree exporter for Newick and NEXUS files that writes the same bytes as jebl's NewickExporter and
+ * NexusExporter but straight into a large buffer and without creating a String per number. Branch lengths are
+ * written to 6 significant digits (as jebl's "%.6g") unless another number of significant digits is given, and
+ * 0 digits writes them in full. Attribute values of ArrayRootedTrees are written from their columns without
+ * boxing. The text is written as UTF-8.
+ *
+ * TreeExporter's methods don't throw IOExceptions so any are thrown as UncheckedIOExceptions.
+ */
+public class TreeFileExporter implements TreeExporter {
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 6;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final String[] TREE_EXCLUDE_KEYS = { "name", "R", "U" };
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    public TreeFileExporter(OutputStream out, FormatType format) {
+        this(out, format, DEFAULT_SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * @param out
+     * @param format NEXUS or NEWICK
+     * @param significantDigits the number of significant digits for branch lengths or 0 to write them in full
+     */
+    public TreeFileExporter(OutputStream out, FormatType format, int significantDigits) {
+        if (format != FormatType.NEXUS && format != FormatType.NEWICK) {
+            throw new IllegalArgumentException("TreeFileExporter only writes NEXUS and Newick files");
+        }
+        if (significantDigits < 0) {
+            throw new IllegalArgumentException("The number of significant digits must be 0 or more");
+        }
+        this.out = out;
+        this.format = format;
+        this.significantDigits = significantDigits;
+        if (format == FormatType.NEXUS) {
+            writeLine("#NEXUS");
+        }
+    }
+
+    /**
+     * Sets whether a NEXUS file has a TRANSLATE command with a number for each taxon which is then written at
+     * the tips instead of the taxon name. The table has the taxa given to setTranslateTaxa or otherwise those of
+     * the trees given to the first call to exportTree or exportTrees (so any trees exported after that can't
+     * have other taxa). This must be set before any trees are exported and has no effect on Newick files.
+     * @param isUsingTranslateTable
+     */
+    public void setUsingTranslateTable(boolean isUsingTranslateTable) {
+        if (isTreesBlockOpen) {
+            throw new IllegalStateException("Trees have already been written");
+        }
+        this.isUsingTranslateTable = isUsingTranslateTable;
+    }
+
+    /**
+     * Sets the taxa in the translate table (e.g., those of all the trees that will be exported when they are
+     * exported one at a time). This must be set before any trees are exported.
+     * @param taxa
+     */
+    public void setTranslateTaxa(Collection<Taxon> taxa) {
+        if (isTreesBlockOpen) {
+            throw new IllegalStateException("Trees have already been written");
+        }
+        taxonCodes = new LinkedHashMap<>();
+        for (Taxon taxon : taxa) {
+            taxonCodes.putIfAbsent(taxon, taxonCodes.size() + 1);
+        }
+    }
+
+    /**
+     * @return true if this is writing a NEXUS file with a translate table
+     */
+    public boolean isUsingTranslateTable() {
+        return isUsingTranslateTable && format == FormatType.NEXUS;
+    }
+
+    @Override
+    public void exportTree(Tree tree) {
+        exportTrees(Collections.singletonList(tree));
+    }
+
+    @Override
+    public void exportTrees(Collection<? extends Tree> trees) {
+        if (isUsingTranslateTable() && taxonCodes == null) {
+            taxonCodes = new LinkedHashMap<>();
+            for (Tree tree : trees) {
+                for (Node tip : tree.getExternalNodes()) {
+                    taxonCodes.putIfAbsent(tree.getTaxon(tip), taxonCodes.size() + 1);
+                }
+            }
+        }
+        for (Tree tree : trees) {
+            writeTree(tree);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isTreesBlockOpen) {
+            writeLine("end;");
+            isTreesBlockOpen = false;
+        }
+        try {
+            flushBuffer();
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeTree(Tree tree) {
+        RootedTree rootedTree = Utils.rootTheTree(tree);
+        TreeNodes nodes = (rootedTree instanceof ArrayRootedTree ?
+                new ArrayTreeNodes((ArrayRootedTree)rootedTree) :
+                new RootedTreeNodes(rootedTree));
+
+        startTree(tree.getAttribute("name"), tree instanceof RootedTree && !rootedTree.conceptuallyUnrooted(), rootedTree);
+        writeNodes(rootedTree, nodes);
+        endTree();
+    }
+
+    /**
+     * Starts a tree - for NEXUS the TREE command up to the Newick text
+     * @param name the tree name or null
+     * @param isRooted
+     * @param attributes the tree attributes
+     */
+    void startTree(Object name, boolean isRooted, Attributable attributes) {
+        if (format == FormatType.NEXUS) {
+            if (!isTreesBlockOpen) {
+                writeLine("begin trees;");
+                if (taxonCodes != null) {
+                    writeTranslateTable();
+                }
+                isTreesBlockOpen = true;
+            }
+            write("\ttree ");
+            write(name != null ? NexusImporter.makeIntoAllowableIdentifier(name.toString()) : "tree_1");
+            write(" = ");
+            write(isRooted ? "[&R] " : "[&U] ");
+            writeAttributes(attributes, TREE_EXCLUDE_KEYS);
+        }
+    }
+
+    void endTree() {
+        write(";");
+        write(LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes the TRANSLATE command in the same layout as jebl's NexusExporter
+     */
+    private void writeTranslateTable() {
+        writeLine("\ttranslate");
+        boolean isFirst = true;
+        for (Map.Entry<Taxon, Integer> entry : taxonCodes.entrySet()) {
+            if (!isFirst) {
+                writeLine(",");
+            }
+            isFirst = false;
+            write("\t\t");
+            writeInt(entry.getValue());
+            write(' ');
+            writeName(entry.getKey().getName());
+        }
+        write(LINE_SEPARATOR);
+        writeLine("\t;");
+    }
+
+    /**
+     * @return true if node attributes are written (they are in NEXUS but not in Newick)
+     */
+    boolean isWritingAttributes() {
+        return format == FormatType.NEXUS;
+    }
+
+    /**
+     * Writes the nodes in Newick order without recursion
+     */
+    private void writeNodes(RootedTree tree, TreeNodes nodes) {
+        boolean hasLengths = tree.hasLengths();
+        int root = nodes.getRoot();
+        int node = root;
+        while (true) {
+            // down to the first tip
+            int child;
+            while ((child = nodes.getFirstChild(node)) != -1) {
+                write('(');
+                node = child;
+            }
+            writeTaxon(nodes.getTaxon(node));
+            writeNodeAttributes(nodes, node);
+            if (hasLengths) {
+                writeLength(nodes.getLength(node));
+            }
+
+            // back up to the next node with a sibling closing the internal nodes on the way
+            while (node != root && nodes.getNextSibling(node) == -1) {
+                node = nodes.getParent(node);
+                write(')');
+                writeNodeAttributes(nodes, node);
+                if (node != root && hasLengths) {
+                    writeLength(nodes.getLength(node));
+                }
+            }
+            if (node == root) {
+                return;
+            }
+            write(',');
+            node = nodes.getNextSibling(node);
+        }
+    }
+
+    void writeLength(double length) {
+        ensureSpace(DoubleFormatter.getMaxLength(significantDigits) + 1);
+        buffer[position++] = ':';
+        position = (significantDigits > 0 ?
+                formatter.format(length, significantDigits, buffer, position) :
+                formatter.format(length, buffer, position));
+    }
+
+    /**
+     * Writes the number of a taxon in the translate table or otherwise its name
+     */
+    private void writeTaxon(Taxon taxon) {
+        if (taxonCodes != null) {
+            Integer code = taxonCodes.get(taxon);
+            if (code == null) {
+                throw new IllegalArgumentException("Taxon, " + taxon.getName() + ", is not in the translate table");
+            }
+            writeInt(code);
+        } else {
+            writeName(taxon.getName());
+        }
+    }
+
+    /**
+     * Writes a taxon name, quoted if it has anything other than letters, digits, '_' and '-'
+     */
+    void writeName(String name) {
+        boolean isPlain = !name.isEmpty();
+        for (int i = 0; i < name.length() && isPlain; i++) {
+            isPlain = isWordCharacter(name.charAt(i)) || name.charAt(i) == '-';
+        }
+        if (isPlain) {
+            write(name);
+        } else {
+            // jebl's NewickExporter doesn't double quotes within names
+            write('\'');
+            write(format == FormatType.NEXUS ? name.replace("'", "''") : name);
+            write('\'');
+        }
+    }
+
+    /**
+     * Writes a taxon name given as UTF-8 bytes (quoted in the same way as writeName(String))
+     */
+    void writeName(byte[] name, int length) {
+        boolean isPlain = length > 0;
+        for (int i = 0; i < length && isPlain; i++) {
+            isPlain = isWordCharacter((char)name[i]) || name[i] == '-';
+        }
+        if (!isPlain) {
+            write('\'');
+        }
+        for (int i = 0; i < length; i++) {
+            if (!isPlain && name[i] == '\'' && format == FormatType.NEXUS) {
+                write('\'');
+            }
+            write((char)(name[i] & 0xFF));
+        }
+        if (!isPlain) {
+            write('\'');
+        }
+    }
+
+    private void writeNodeAttributes(TreeNodes nodes, int node) {
+        if (format == FormatType.NEXUS) {
+            nodes.writeAttributes(node);
+        }
+    }
+
+    /**
+     * Writes the attributes of a tree or a node as a meta comment in the same way as jebl's NexusExporter
+     */
+    private void writeAttributes(Attributable item, String[] excludeKeys) {
+        boolean isFirst = true;
+        for (String key : item.getAttributeNames()) {
+            Object value = item.getAttribute(key);
+            if (value == null || key.startsWith("&") || (excludeKeys != null && Arrays.asList(excludeKeys).contains(key))) {
+                continue;
+            }
+            writeAttribute(key, value, isFirst);
+            isFirst = false;
+        }
+        if (!isFirst) {
+            write(']');
+        }
+    }
+
+    /**
+     * Writes one attribute of a meta comment - the comment is closed with write(']') after the last one
+     * @param key
+     * @param value
+     * @param isFirst true to open the comment
+     */
+    void writeAttribute(String key, Object value, boolean isFirst) {
+        write(isFirst ? "[&" : ",");
+        writeKey(key);
+        writeValue(value);
+    }
+
+    /**
+     * Writes the attributes of a node of an ArrayRootedTree from its columns
+     */
+    private void writeAttributes(NodeAttributes attributes, int node) {
+        if (columnBuffer.length < attributes.getColumns().size()) {
+            columnBuffer = new AttributeColumn[attributes.getColumns().size()];
+        }
+        int count = attributes.getColumns(node, columnBuffer);
+        boolean isFirst = true;
+        for (int i = 0; i < count; i++) {
+            AttributeColumn column = columnBuffer[i];
+            if (column.getName().startsWith("&")) {
+                continue;
+            }
+            write(isFirst ? "[&" : ",");
+            isFirst = false;
+            writeKey(column.getName());
+            if (column instanceof DoubleColumn) {
+                writeDouble(((DoubleColumn)column).getDouble(node, 0.0));
+            } else if (column instanceof IntegerColumn) {
+                writeInt(((IntegerColumn)column).getInt(node, 0));
+            } else if (column instanceof BooleanColumn) {
+                write(((BooleanColumn)column).getBoolean(node, false) ? "true" : "false");
+            } else {
+                writeValue(column.get(node));
+            }
+        }
+        if (!isFirst) {
+            write(']');
+        }
+    }
+
+    /**
+     * Writes an attribute name (quoted if it has a non-word character other than at the start or end) and '='
+     */
+    private void writeKey(String key) {
+        byte[] bytes = keys.get(key);
+        if (bytes == null) {
+            boolean isQuoted = false;
+            for (int i = 1; i < key.length() - 1; i++) {
+                if (!isWordCharacter(key.charAt(i))) {
+                    isQuoted = true;
+                    break;
+                }
+            }
+            bytes = ((isQuoted ? "\"" + key + "\"" : key) + "=").getBytes(StandardCharsets.UTF_8);
+            keys.put(key, bytes);
+        }
+        write(bytes);
+    }
+
+    private void writeValue(Object value) {
+        if (value instanceof Object[]) {
+            write('{');
+            Object[] elements = (Object[])value;
+            for (int i = 0; i < elements.length; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeValue(elements[i]);
+            }
+            write('}');
+        } else if (value instanceof Color) {
+            write("#");
+            write(Integer.toHexString(((Color)value).getRGB()).substring(2));
+        } else if (value instanceof String) {
+            write('"');
+            write((String)value);
+            write('"');
+        } else if (value instanceof Double) {
+            writeDouble((Double)value);
+        } else if (value instanceof Integer) {
+            writeInt((Integer)value);
+        } else {
+            write(String.valueOf(value));
+        }
+    }
+
+    private void writeDouble(double value) {
+        ensureSpace(DoubleFormatter.getMaxLength(0));
+        position = formatter.format(value, buffer, position);
+    }
+
+    private void writeInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            write(Integer.toString(value));
+            return;
+        }
+        ensureSpace(11);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // the digits were written backwards
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private void writeLine(String text) {
+        write(text);
+        write(LINE_SEPARATOR);
+    }
+
+    void write(char c) {
+        ensureSpace(1);
+        buffer[position++] = (byte)c;
+    }
+
+    /**
+     * Writes a string as UTF-8 (copying ASCII characters straight into the buffer)
+     */
+    private void write(String text) {
+        int length = text.length();
+        ensureSpace(Math.min(length, BUFFER_SIZE));
+        if (length > buffer.length - position) {
+            write(text.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                write(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[position++] = (byte)c;
+        }
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                try {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void ensureSpace(int length) {
+        if (length > buffer.length - position) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            out.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+
+    /**
+     * The nodes of a tree by index
+     */
+    private interface TreeNodes {
+        int getRoot();
+        int getFirstChild(int node);
+        int getNextSibling(int node);
+        int getParent(int node);
+        double getLength(int node);
+        Taxon getTaxon(int node);
+        void writeAttributes(int node);
+    }
+
+    private class ArrayTreeNodes implements TreeNodes {
+        ArrayTreeNodes(ArrayRootedTree tree) {
+            this.tree = tree;
+        }
+
+        public int getRoot() {
+            return tree.getRootIndex();
+        }
+
+        public int getFirstChild(int node) {
+            return tree.getFirstChildIndex(node);
+        }
+
+        public int getNextSibling(int node) {
+            return tree.getNextSiblingIndex(node);
+        }
+
+        public int getParent(int node) {
+            return tree.getParentIndex(node);
+        }
+
+        public double getLength(int node) {
+            return tree.getLength(node);
+        }
+
+        public Taxon getTaxon(int node) {
+            return tree.getTaxon(node);
+        }
+
+        public void writeAttributes(int node) {
+            TreeFileExporter.this.writeAttributes(tree.getNodeAttributes(), node);
+        }
+
+        private final ArrayRootedTree tree;
+    }
+
+    /**
+     * Numbers the nodes of any rooted tree in pre-order
+     */
+    private class RootedTreeNodes implements TreeNodes {
+        RootedTreeNodes(RootedTree tree) {
+            this.tree = tree;
+            this.nodes = new TreeTraversal(tree);
+        }
+
+        public int getRoot() {
+            return 0;
+        }
+
+        public int getFirstChild(int node) {
+            return nodes.getFirstChild(node);
+        }
+
+        public int getNextSibling(int node) {
+            return nodes.getNextSibling(node);
+        }
+
+        public int getParent(int node) {
+            return nodes.getParent(node);
+        }
+
+        public double getLength(int node) {
+            return tree.getLength(nodes.getNode(node));
+        }
+
+        public Taxon getTaxon(int node) {
+            return tree.getTaxon(nodes.getNode(node));
+        }
+
+        public void writeAttributes(int node) {
+            TreeFileExporter.this.writeAttributes(nodes.getNode(node), null);
+        }
+
+        private final RootedTree tree;
+        private final TreeTraversal nodes;
+    }
+
+    private final OutputStream out;
+    private final FormatType format;
+    private final int significantDigits;
+    private boolean isUsingTranslateTable = false;
+    private Map<Taxon, Integer> taxonCodes = null;
+    private final DoubleFormatter formatter = new DoubleFormatter();
+    private final Map<String, byte[]> keys = new HashMap<>();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private AttributeColumn[] columnBuffer = new AttributeColumn[0];
+    private boolean isTreesBlockOpen = false;
+}
@@ -0,0 +1,1054 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import jebl.util.Attributable;
+import jebl.util.AttributableHelper;
+import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.ArrayRootedTree;
+import network.artic.clusterfunk.trees.TaxonPool;
+import network.artic.clusterfunk.trees.TreeBuilder;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * A tree importer for Newick and NEXUS files that parses a large buffered byte stream and builds the nodes
+ * directly. Produces the same trees (taxa, branch lengths, attributes and tree names) as jebl's NewickImporter
+ * and NexusImporter but without creating a String per token and without recursion so very deep (caterpillar)
+ * trees can be read with the default stack size. The trees are ArrayRootedTrees.
+ */
+public class TreeFileImporter implements CloseableTreeImporter {
+
+    public TreeFileImporter(InputStream in, FormatType format) {
+        if (format == FormatType.BINARY) {
+            throw new IllegalArgumentException("Binary tree files are read by BinaryTreeImporter");
+        }
+        this.tokenizer = new TreeTokenizer(in);
+        this.format = format;
+        this.taxonPool = new TaxonPool();
+    }
+
+    /**
+     * Creates an importer to parse the text of a single tree read by readNextUnparsedTree
+     */
+    private TreeFileImporter(byte[] text, FormatType format, TranslationTable translationTable, Set<String> attributeNames,
+                             TaxonPool taxonPool) {
+        this.tokenizer = new TreeTokenizer(new ByteArrayInputStream(text), Math.max(text.length, 1));
+        this.format = format;
+        this.translationTable = translationTable;
+        this.attributeNames = attributeNames;
+        this.taxonPool = taxonPool;
+        this.isReadingTreesBlock = true;
+    }
+
+    /**
+     * Sets the node attributes to read. By default all the node annotations are kept as text and each attribute
+     * is parsed when it is first used. If the names are given then the annotations are parsed as the trees are
+     * read but all the other attributes are skipped.
+     * @param attributeNames the names of the attributes to read (an internal node label is 'label') or null
+     *                       for all of them
+     */
+    public void setAttributeNames(Collection<String> attributeNames) {
+        this.attributeNames = (attributeNames != null ? new HashSet<>(attributeNames) : null);
+    }
+
+    /**
+     * Opens a tree file and detects its format. Compressed files are decompressed as they are read.
+     * @param fileName
+     * @return the importer (a BinaryTreeImporter for binary tree files) or null if the file is not a recognised
+     * tree format
+     * @throws IOException
+     */
+    public static CloseableTreeImporter open(String fileName) throws IOException {
+        FormatType format = getFormatType(fileName);
+        if (format == null) {
+            return null;
+        }
+        Path path = Paths.get(fileName);
+        boolean isCompressed = CompressedFiles.getCompression(path) != CompressedFiles.Compression.NONE;
+        if (format == FormatType.BINARY) {
+            // uncompressed binary files are memory mapped
+            return isCompressed ?
+                    new BinaryTreeImporter(CompressedFiles.openInputStream(path)) :
+                    new BinaryTreeImporter(path);
+        }
+        return new TreeFileImporter(CompressedFiles.openInputStream(path), format);
+    }
+
+    /**
+     * Looks at the start of a file to see if it is a NEXUS, Newick or binary tree file
+     * @param fileName
+     * @return the format or null if none of these
+     * @throws IOException
+     */
+    public static FormatType getFormatType(String fileName) throws IOException {
+        byte[] head = new byte[1024];
+        int length = 0;
+        try (InputStream in = CompressedFiles.openInputStream(Paths.get(fileName))) {
+            int n;
+            while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+                length += n;
+            }
+        }
+        return getFormatType(head, length);
+    }
+
+    /**
+     * Looks at the start of a file to see if it is a NEXUS, Newick or binary tree file
+     * @param head the first bytes of the file
+     * @param length
+     * @return the format or null if none of these
+     */
+    public static FormatType getFormatType(byte[] head, int length) {
+        if (BinaryTreeImporter.isBinaryTreeFile(head, length)) {
+            return FormatType.BINARY;
+        }
+        int i = 0;
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            // UTF-8 byte order mark
+            i = 3;
+        }
+        while (i < length && (head[i] & 0xFF) <= ' ') {
+            i++;
+        }
+        if (i < length && head[i] == '(') {
+            return FormatType.NEWICK;
+        }
+        String nexus = "#NEXUS";
+        if (length - i >= nexus.length()) {
+            for (int j = 0; j < nexus.length(); j++) {
+                if (Character.toUpperCase((char)head[i + j]) != nexus.charAt(j)) {
+                    return null;
+                }
+            }
+            return FormatType.NEXUS;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasTree() throws IOException, ImportException {
+        if (nextTree == null && !finished) {
+            nextTree = (format == FormatType.NEXUS ? readNextNexusTree() : readNextNewickTree());
+            if (nextTree == null) {
+                finished = true;
+            }
+        }
+        return nextTree != null;
+    }
+
+    @Override
+    public Tree importNextTree() throws IOException, ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = nextTree;
+        nextTree = null;
+        return tree;
+    }
+
+    @Override
+    public List<Tree> importTrees() throws IOException, ImportException {
+        List<Tree> trees = new ArrayList<>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        return trees;
+    }
+
+    @Override
+    public Iterator<Tree> iterator() {
+        return new Iterator<Tree>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return hasTree();
+                } catch (IOException | ImportException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public Tree next() {
+                try {
+                    Tree tree = importNextTree();
+                    if (tree != null) {
+                        return tree;
+                    }
+                } catch (IOException | ImportException e) {
+                    // fall through
+                }
+                throw new NoSuchElementException("No more trees in this file");
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        tokenizer.close();
+    }
+
+    /**
+     * Reads the text of the next tree without parsing it so the trees can be parsed on other threads. This
+     * shouldn't be mixed with calls to importNextTree.
+     * @return a task that parses the tree (and can be run on any thread) or null if there are no more trees
+     */
+    public Callable<RootedTree> readNextUnparsedTree() throws IOException, ImportException {
+        if (nextTree != null) {
+            final RootedTree tree = (RootedTree)nextTree;
+            nextTree = null;
+            return () -> tree;
+        }
+        if (finished) {
+            return null;
+        }
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        if (format == FormatType.NEXUS) {
+            if (!findNextNexusTree()) {
+                finished = true;
+                return null;
+            }
+            // the keyword and any comments after it have been read
+            text.write(tokenizer.getTokenBytes(), 0, tokenizer.getTokenLength());
+            for (int i = 0; i < tokenizer.getMetaCommentCount(); i++) {
+                text.write(' ');
+                text.write('[');
+                text.write('&');
+                text.write(tokenizer.getMetaCommentBytes(), tokenizer.getMetaCommentStart(i),
+                        tokenizer.getMetaCommentEnd(i) - tokenizer.getMetaCommentStart(i));
+                text.write(']');
+            }
+            text.write(' ');
+        } else {
+            if (!findNextNewickTree()) {
+                finished = true;
+                return null;
+            }
+            text.write('(');
+        }
+        byte[] statement = tokenizer.readStatement();
+        if (statement != null) {
+            text.write(statement);
+        }
+        tokenizer.clearMetaComments();
+
+        final byte[] bytes = text.toByteArray();
+        final FormatType format = this.format;
+        final TranslationTable translationTable = this.translationTable;
+        final Set<String> attributeNames = this.attributeNames;
+        final TaxonPool taxonPool = this.taxonPool;
+        return () -> parseTree(bytes, format, translationTable, attributeNames, taxonPool);
+    }
+
+    /**
+     * Copies the rest of the trees to an exporter a token at a time without building them so the memory used
+     * doesn't depend on the size of the trees. The output is the same as reading the trees and writing them with
+     * the exporter except that the attributes of a node are written in the order they are on that node (rather
+     * than the order they were first seen in the tree) and, in a NEXUS file with only some branch lengths, the
+     * missing lengths before the first given one are left out rather than written as 0. If the attribute names
+     * have been set only those node attributes are written. The exporter can't be using a translate table as
+     * the taxa aren't known before the trees are copied.
+     * @param exporter
+     * @return the number of trees
+     */
+    public int transcodeTrees(TreeFileExporter exporter) throws IOException, ImportException {
+        if (exporter.isUsingTranslateTable()) {
+            throw new IllegalArgumentException("Trees can't be transcoded to a file with a translate table");
+        }
+        int count = 0;
+        if (nextTree != null) {
+            exporter.exportTree(nextTree);
+            nextTree = null;
+            count++;
+        }
+        while (!finished) {
+            if (format == FormatType.NEXUS) {
+                if (!findNextNexusTree()) {
+                    break;
+                }
+                transcodeNexusTree(exporter, tokenizer.tokenEquals("UTREE"));
+            } else {
+                if (!findNextNewickTree()) {
+                    break;
+                }
+                tokenizer.clearMetaComments();
+                exporter.startTree(null, true, new AttributableHelper());
+                transcodeTree(exporter, true);
+                exporter.endTree();
+            }
+            count++;
+        }
+        finished = true;
+        return count;
+    }
+
+    /**
+     * Reads just the taxon names without building a tree. If a NEXUS file has a TAXA block or a TRANSLATE command
+     * then the names are read from these, otherwise they are the tip labels of the first tree. This shouldn't be
+     * mixed with reading the trees.
+     * @param handler given each name
+     * @return false if there were no trees or taxa
+     */
+    public boolean readTaxonNames(Consumer<String> handler) throws IOException, ImportException {
+        return readTaxonNames(handler, false);
+    }
+
+    /**
+     * Reads just the taxon names of all the trees without building them. If a NEXUS file has a TAXA block or a
+     * TRANSLATE command then the names are read from these, otherwise they are the tip labels of every tree (so
+     * the same name will be given once for each tree it is in). This shouldn't be mixed with reading the trees.
+     * @param handler given each name
+     * @return false if there were no trees or taxa
+     */
+    public boolean readAllTaxonNames(Consumer<String> handler) throws IOException, ImportException {
+        return readTaxonNames(handler, true);
+    }
+
+    private boolean readTaxonNames(Consumer<String> handler, boolean isReadingAllTrees) throws IOException, ImportException {
+        boolean hasTree = (format == FormatType.NEXUS ? findNextNexusTree() : findNextNewickTree());
+        finished = true;
+        if (taxonList != null) {
+            for (Taxon taxon : taxonList) {
+                handler.accept(taxon.getName());
+            }
+            return true;
+        }
+        if (!hasTree) {
+            return false;
+        }
+        do {
+            if (format == FormatType.NEXUS) {
+                readNexusTreeHeader(new ArrayList<>());
+            }
+            scanTipLabels(handler);
+        } while (isReadingAllTrees && (format == FormatType.NEXUS ? findNextNexusTree() : findNextNewickTree()));
+        return true;
+    }
+
+    /**
+     * Skips the next tree without parsing it
+     * @return the offsets in the file of the start and end of the tree's text or null if there are no more trees
+     */
+    long[] skipNextTree() throws IOException, ImportException {
+        if (finished) {
+            return null;
+        }
+        if (!(format == FormatType.NEXUS ? findNextNexusTree() : findNextNewickTree())) {
+            finished = true;
+            return null;
+        }
+        tokenizer.skipStatement();
+        tokenizer.clearMetaComments();
+        return new long[] { statementStart, tokenizer.getOffset() };
+    }
+
+    /**
+     * @return the translation of the taxon labels in the trees (the same map until a TRANSLATE command is read)
+     */
+    TranslationTable getTranslationTable() {
+        return translationTable;
+    }
+
+    /**
+     * Parses the text of a single tree
+     * @param text the text from the start of the TREE command (NEXUS) or the tree (Newick)
+     * @param format
+     * @param translationTable the translation of the taxon labels or null
+     * @param attributeNames the node attributes to read or null for all of them (see setAttributeNames)
+     * @param taxonPool the taxa of the file's trees (shared by the threads parsing them)
+     * @return the tree
+     */
+    static RootedTree parseTree(byte[] text, FormatType format, TranslationTable translationTable, Set<String> attributeNames,
+                                TaxonPool taxonPool) throws IOException, ImportException {
+        TreeFileImporter parser = new TreeFileImporter(text, format, translationTable, attributeNames, taxonPool);
+        RootedTree tree = (format == FormatType.NEXUS ? parser.readNextNexusTree() : parser.readNextNewickTree());
+        if (tree == null) {
+            throw new ImportException.BadFormatException("Missing tree definition");
+        }
+        return tree;
+    }
+
+    /**
+     * @return the taxa from the taxa block or translate table of a NEXUS file (available after the first call
+     * to hasTree) or null if there were none.
+     */
+    public List<Taxon> getTaxonList() {
+        return taxonList;
+    }
+
+    private RootedTree readNextNewickTree() throws IOException, ImportException {
+        if (!findNextNewickTree()) {
+            return null;
+        }
+        tokenizer.clearMetaComments();
+
+        TreeBuilder builder = new TreeBuilder(lastNodeCount);
+        builder.setAnnotationParser(AttributeParser::new);
+        readTree(builder, true);
+        return buildTree(builder);
+    }
+
+    private RootedTree readNextNexusTree() throws IOException, ImportException {
+        if (!findNextNexusTree()) {
+            return null;
+        }
+        return readNexusTree(tokenizer.tokenEquals("UTREE"));
+    }
+
+    /**
+     * Reads up to the next TREE or UTREE command in the trees block
+     * @return false if there are no more trees
+     */
+    private boolean findNextNexusTree() throws IOException, ImportException {
+        if (!isReadingTreesBlock) {
+            if (!startReadingTrees()) {
+                return false;
+            }
+            isReadingTreesBlock = true;
+        }
+
+        while (true) {
+            tokenizer.clearMetaComments();
+            statementStart = tokenizer.getOffset();
+            int delimiter = tokenizer.readToken(SEMICOLON);
+            if (delimiter == TreeTokenizer.EOF && tokenizer.getTokenLength() == 0) {
+                return false;
+            }
+
+            if (tokenizer.tokenEquals("TREE") || tokenizer.tokenEquals("UTREE")) {
+                return true;
+            } else if (tokenizer.tokenEquals("TRANSLATE")) {
+                readTranslateTable();
+            } else if (tokenizer.tokenEquals("END") || tokenizer.tokenEquals("ENDBLOCK")) {
+                return false;
+            } else if (delimiter != ';') {
+                // some other command - skip it
+                tokenizer.skipUntil(SEMICOLON);
+            }
+        }
+    }
+
+    /**
+     * Reads up to and including the opening bracket of the next Newick tree
+     * @return false if there are no more trees
+     */
+    private boolean findNextNewickTree() throws IOException {
+        statementStart = tokenizer.getOffset();
+        return tokenizer.skipUntil(OPEN_BRACKET) != TreeTokenizer.EOF;
+    }
+
+    /**
+     * Finds the trees block, reading any taxa block on the way.
+     * @return false if there is no trees block
+     */
+    private boolean startReadingTrees() throws IOException, ImportException {
+        while (true) {
+            int delimiter = tokenizer.readToken(SEMICOLON);
+            if (delimiter == TreeTokenizer.EOF && tokenizer.getTokenLength() == 0) {
+                return false;
+            }
+            if (tokenizer.tokenEquals("BEGIN")) {
+                if (delimiter != ';') {
+                    tokenizer.readToken(SEMICOLON);
+                }
+                if (tokenizer.tokenEquals("TREES")) {
+                    tokenizer.clearMetaComments();
+                    return true;
+                } else if (tokenizer.tokenEquals("TAXA")) {
+                    readTaxaBlock();
+                } else {
+                    skipBlock();
+                }
+            }
+        }
+    }
+
+    private void readTaxaBlock() throws IOException, ImportException {
+        int taxonCount = 0;
+        taxonList = new ArrayList<>();
+        while (true) {
+            int delimiter = tokenizer.readToken(SEMICOLON);
+            if (delimiter == TreeTokenizer.EOF) {
+                throw new EOFException("Unexpected end of file in TAXA block");
+            }
+            if (tokenizer.tokenEquals("DIMENSIONS")) {
+                while (delimiter != ';') {
+                    delimiter = tokenizer.readToken(EQUALS_SEMICOLON);
+                    if (tokenizer.tokenEquals("NTAX") && delimiter == '=') {
+                        delimiter = tokenizer.readToken(SEMICOLON);
+                        taxonCount = tokenizer.getTokenAsIndex();
+                    }
+                    if (delimiter == TreeTokenizer.EOF) {
+                        throw new EOFException("Unexpected end of file in TAXA block");
+                    }
+                }
+            } else if (tokenizer.tokenEquals("TAXLABELS")) {
+                while (delimiter != ';') {
+                    delimiter = tokenizer.readToken(SEMICOLON);
+                    if (tokenizer.getTokenLength() > 0) {
+                        taxonList.add(taxonPool.getTaxon(tokenizer.getToken()));
+                    } else if (delimiter != ';') {
+                        throw new ImportException.UnknownTaxonException("Expected nonempty taxon name, got empty string");
+                    }
+                }
+                tokenizer.clearMetaComments();
+            } else if (tokenizer.tokenEquals("END") || tokenizer.tokenEquals("ENDBLOCK")) {
+                break;
+            } else if (delimiter != ';') {
+                tokenizer.skipUntil(SEMICOLON);
+            }
+        }
+
+        if (taxonCount == 0) {
+            throw new ImportException.MissingFieldException("NTAXA");
+        }
+        if (taxonList.size() != taxonCount) {
+            throw new ImportException.BadFormatException("Number of taxa doesn't match NTAXA field");
+        }
+
+        translationTable = new TranslationTable();
+        for (Taxon taxon : taxonList) {
+            translationTable.put(taxon.getName(), taxon);
+        }
+    }
+
+    private void skipBlock() throws IOException {
+        while (true) {
+            int delimiter = tokenizer.readToken(SEMICOLON);
+            if (delimiter == TreeTokenizer.EOF) {
+                return;
+            }
+            if (tokenizer.tokenEquals("END") || tokenizer.tokenEquals("ENDBLOCK")) {
+                if (delimiter != ';') {
+                    tokenizer.skipUntil(SEMICOLON);
+                }
+                return;
+            }
+            if (delimiter != ';') {
+                tokenizer.skipUntil(SEMICOLON);
+            }
+        }
+    }
+
+    private void readTranslateTable() throws IOException, ImportException {
+        Set<Taxon> taxa = (taxonList != null ? new HashSet<>(taxonList) : null);
+        // a new map as trees read before this may still be being parsed with the old one
+        translationTable = (translationTable != null ? new TranslationTable(translationTable) : new TranslationTable());
+        while (true) {
+            int delimiter = tokenizer.readToken(COMMA_SEMICOLON);
+            if (delimiter == ',' || delimiter == ';') {
+                if (tokenizer.getTokenLength() == 0 && delimiter == ';') {
+                    break;
+                }
+                throw new ImportException.BadFormatException("Missing taxon label in TRANSLATE command of TREES block");
+            }
+            if (delimiter == TreeTokenizer.EOF) {
+                throw new EOFException("Unexpected end of file in TRANSLATE command");
+            }
+            String key = tokenizer.getToken();
+
+            delimiter = tokenizer.readToken(COMMA_SEMICOLON);
+            if (delimiter != ',' && delimiter != ';') {
+                throw new ImportException.BadFormatException("Expecting ',' or ';' after taxon label in TRANSLATE command of TREES block");
+            }
+            Taxon taxon = taxonPool.getTaxon(tokenizer.getToken());
+            if (taxa != null && !taxa.contains(taxon)) {
+                throw new ImportException.UnknownTaxonException("Taxon in TRANSLATE command, '" + taxon.getName() + "', is not in the TAXA block");
+            }
+            translationTable.put(key, taxon);
+            if (delimiter == ';') {
+                break;
+            }
+        }
+        tokenizer.clearMetaComments();
+
+        if (taxonList == null) {
+            taxonList = translationTable.getTaxa();
+        }
+    }
+
+    private RootedTree readNexusTree(boolean isUnrooted) throws IOException, ImportException {
+        List<String> comments = new ArrayList<>();
+        String treeName = readNexusTreeHeader(comments);
+
+        TreeBuilder builder = new TreeBuilder(lastNodeCount);
+        builder.setAnnotationParser(AttributeParser::new);
+        int delimiter = readTree(builder, false);
+
+        if (delimiter != ';') {
+            throw new ImportException.BadFormatException("Expecting ';' after tree, '" + treeName + "', TREE command of TREES block");
+        }
+
+        ArrayRootedTree tree = buildTree(builder);
+        if (!treeName.matches("tree_[0-9]+")) {
+            tree.setAttribute("name", treeName);
+        }
+        tree.setConceptuallyUnrooted(parseTreeComments(comments, tree) || isUnrooted);
+
+        return tree;
+    }
+
+    /**
+     * Reads a TREE command up to and including the opening bracket of the tree
+     * @param comments given the meta comments before the tree (and a 'U' if there was one before the name)
+     * @return the tree name
+     */
+    private String readNexusTreeHeader(List<String> comments) throws IOException, ImportException {
+        if (tokenizer.skipSpace() == '*') {
+            tokenizer.read();
+        }
+        for (int i = 0; i < tokenizer.getMetaCommentCount(); i++) {
+            if (tokenizer.getMetaComment(i).equalsIgnoreCase("U")) {
+                comments.add("U");
+            }
+        }
+        tokenizer.clearMetaComments();
+
+        int delimiter = tokenizer.readToken(EQUALS_SEMICOLON);
+        if (tokenizer.getTokenLength() == 0) {
+            throw new ImportException("At least one tree has no name");
+        }
+        String treeName = NexusImporter.makeIntoAllowableIdentifier(tokenizer.getToken());
+        if (delimiter != '=') {
+            throw new ImportException.BadFormatException("Missing label for tree '" + treeName + "' or missing '=' in TREE command of TREES block");
+        }
+
+        if (tokenizer.skipSpace() != '(') {
+            throw new ImportException.BadFormatException("Missing tree definition in TREE command of TREES block");
+        }
+        tokenizer.read();
+
+        for (int i = 0; i < tokenizer.getMetaCommentCount(); i++) {
+            comments.add(tokenizer.getMetaComment(i));
+        }
+        tokenizer.clearMetaComments();
+        return treeName;
+    }
+
+    /**
+     * Sets the tree attributes from the meta comments before a tree ([&R], [&U], [&W weight] or attributes)
+     * @return true if the tree is unrooted
+     */
+    private boolean parseTreeComments(List<String> comments, Attributable tree) throws UnsupportedEncodingException {
+        boolean isUnrooted = false;
+        for (String comment : comments) {
+            String commentName = comment;
+            if (commentName.contains("=")) {
+                commentName = commentName.substring(0, commentName.indexOf("="));
+            }
+            if (commentName.equalsIgnoreCase("U")) {
+                isUnrooted = true;
+            } else if (comment.matches("^W\\s+[\\+\\-]?[\\d\\.]+")) {
+                tree.setAttribute("weight", Float.valueOf(comment.substring(2)));
+            } else if (!commentName.equalsIgnoreCase("R")) {
+                byte[] bytes = comment.getBytes("UTF-8");
+                attributeParser.parseMetaComment(bytes, 0, bytes.length, tree);
+            }
+        }
+        return isUnrooted;
+    }
+
+    private ArrayRootedTree buildTree(TreeBuilder builder) throws ImportException {
+        lastNodeCount = builder.getNodeCount();
+        try {
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new ImportException.DuplicateTaxaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the tree (the opening bracket of the root has been consumed) keeping a stack of the children of
+     * each open internal node.
+     * @param builder the builder for the tree
+     * @param isNewick Newick branches without a length get 1.0 (as jebl's NewickImporter)
+     * @return the delimiter after the root
+     */
+    private int readTree(TreeBuilder builder, boolean isNewick) throws IOException, ImportException {
+        int depth = 0;
+        int top = 0;
+        frameStarts[0] = 0;
+
+        while (true) {
+            // start of a branch - any comments here are dropped
+            tokenizer.clearMetaComments();
+            int c = tokenizer.skipSpace();
+            tokenizer.clearMetaComments();
+
+            if (c == '(') {
+                tokenizer.read();
+                depth++;
+                if (depth == frameStarts.length) {
+                    frameStarts = Arrays.copyOf(frameStarts, depth * 2);
+                }
+                frameStarts[depth] = top;
+                continue;
+            }
+
+            int node = readExternalNode(builder);
+            int delimiter = nodeDelimiter;
+
+            while (true) {
+                delimiter = readBranchLength(builder, node, delimiter, isNewick);
+                if (top == childStack.length) {
+                    childStack = Arrays.copyOf(childStack, top * 2);
+                }
+                childStack[top] = node;
+                top++;
+
+                if (delimiter == ',') {
+                    break;
+                }
+                if (delimiter != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree");
+                }
+
+                node = builder.createInternalNode(childStack, frameStarts[depth], top);
+                top = frameStarts[depth];
+                delimiter = readInternalNodeLabel(builder, node);
+
+                if (depth == 0) {
+                    // the root
+                    if (delimiter == ':') {
+                        tokenizer.readDouble(BRANCH_DELIMITERS);
+                        delimiter = tokenizer.getLastDelimiter();
+                    }
+                    tokenizer.clearMetaComments();
+                    return delimiter;
+                }
+                depth--;
+            }
+        }
+    }
+
+    private int readExternalNode(TreeBuilder builder) throws IOException, ImportException {
+        int delimiter = tokenizer.readToken(NODE_DELIMITERS);
+        if (tokenizer.getTokenLength() == 0) {
+            throw new ImportException.UnknownTaxonException("Empty node names are not allowed.");
+        }
+
+        Taxon taxon;
+        if (translationTable != null && translationTable.size() > 0) {
+            taxon = getTranslatedTaxon();
+        } else {
+            taxon = taxonPool.getTaxon(tokenizer.getToken());
+        }
+
+        int node = builder.createExternalNode(taxon);
+        parseMetaComments(builder, node);
+
+        nodeDelimiter = delimiter;
+        return node;
+    }
+
+    /**
+     * @return the taxon for the label in the current token from the translate table
+     */
+    private Taxon getTranslatedTaxon() throws ImportException {
+        Taxon taxon = translationTable.get(tokenizer);
+        if (taxon == null) {
+            throw new ImportException.UnknownTaxonException("Taxon in tree, '" + tokenizer.getToken() + "' is unknown");
+        }
+        return taxon;
+    }
+
+    private int readInternalNodeLabel(TreeBuilder builder, int node) throws IOException {
+        int delimiter = tokenizer.readToken(NODE_DELIMITERS);
+        if (tokenizer.getTokenLength() > 0) {
+            if (attributeNames == null) {
+                builder.setAttributeText(node, "label", tokenizer.getTokenBytes(), 0, tokenizer.getTokenLength());
+            } else if (attributeNames.contains("label")) {
+                builder.setAttribute(node, "label", attributeParser.parseValue(tokenizer.getTokenBytes(), 0, tokenizer.getTokenLength()));
+            }
+        }
+        parseMetaComments(builder, node);
+        return delimiter;
+    }
+
+    private int readBranchLength(TreeBuilder builder, int node, int delimiter, boolean isNewick) throws IOException, ImportException {
+        if (delimiter == ':') {
+            double length;
+            try {
+                length = tokenizer.readDouble(BRANCH_DELIMITERS);
+            } catch (IOException ioe) {
+                throw new ImportException(ioe.getMessage());
+            }
+            builder.setLength(node, length);
+            // comments after the branch length are on the branch which jebl stores on the child node
+            parseMetaComments(builder, node);
+            return tokenizer.getLastDelimiter();
+        }
+        if (isNewick) {
+            builder.setLength(node, 1.0);
+        }
+        return delimiter;
+    }
+
+    /**
+     * Reads the tip labels of a tree (the opening bracket of the root has been consumed) skipping everything else
+     */
+    private void scanTipLabels(Consumer<String> handler) throws IOException, ImportException {
+        int depth = 0;
+        while (true) {
+            tokenizer.clearMetaComments();
+            int c = tokenizer.skipSpace();
+            if (c == '(') {
+                tokenizer.read();
+                depth++;
+                continue;
+            }
+
+            int delimiter = tokenizer.readToken(NODE_DELIMITERS);
+            if (tokenizer.getTokenLength() == 0) {
+                throw new ImportException.UnknownTaxonException("Empty node names are not allowed.");
+            }
+            handler.accept(tokenizer.getToken());
+
+            while (true) {
+                if (delimiter == ':') {
+                    delimiter = tokenizer.readToken(BRANCH_DELIMITERS);
+                }
+                if (delimiter == ',') {
+                    break;
+                }
+                if (delimiter != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree");
+                }
+                // the internal node label
+                delimiter = tokenizer.readToken(NODE_DELIMITERS);
+                tokenizer.clearMetaComments();
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+            }
+        }
+    }
+
+    private void transcodeNexusTree(TreeFileExporter exporter, boolean isUnrooted) throws IOException, ImportException {
+        List<String> comments = new ArrayList<>();
+        String treeName = readNexusTreeHeader(comments);
+
+        AttributableHelper attributes = new AttributableHelper();
+        isUnrooted = parseTreeComments(comments, attributes) || isUnrooted;
+        exporter.startTree(treeName.matches("tree_[0-9]+") ? null : treeName, !isUnrooted, attributes);
+
+        if (transcodeTree(exporter, false) != ';') {
+            throw new ImportException.BadFormatException("Expecting ';' after tree, '" + treeName + "', TREE command of TREES block");
+        }
+        exporter.endTree();
+    }
+
+    /**
+     * Copies a tree (the opening bracket of the root has been consumed) to the exporter in the same way that
+     * readTree reads it. Only the depth is kept so the tree can be any size.
+     * @param exporter
+     * @param isNewick Newick branches without a length get 1.0 (as jebl's NewickImporter)
+     * @return the delimiter after the root
+     */
+    private int transcodeTree(TreeFileExporter exporter, boolean isNewick) throws IOException, ImportException {
+        int depth = 0;
+        hasTranscodedLength = false;
+        exporter.write('(');
+
+        while (true) {
+            // start of a branch - any comments here are dropped
+            tokenizer.clearMetaComments();
+            int c = tokenizer.skipSpace();
+            tokenizer.clearMetaComments();
+
+            if (c == '(') {
+                tokenizer.read();
+                depth++;
+                exporter.write('(');
+                continue;
+            }
+
+            int delimiter = tokenizer.readToken(NODE_DELIMITERS);
+            if (tokenizer.getTokenLength() == 0) {
+                throw new ImportException.UnknownTaxonException("Empty node names are not allowed.");
+            }
+            if (translationTable != null && translationTable.size() > 0) {
+                exporter.writeName(getTranslatedTaxon().getName());
+            } else {
+                exporter.writeName(tokenizer.getTokenBytes(), tokenizer.getTokenLength());
+            }
+            Object label = null;
+
+            while (true) {
+                delimiter = transcodeBranch(exporter, label, delimiter, isNewick);
+
+                if (delimiter == ',') {
+                    exporter.write(',');
+                    break;
+                }
+                if (delimiter != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree");
+                }
+                exporter.write(')');
+
+                delimiter = tokenizer.readToken(NODE_DELIMITERS);
+                label = null;
+                if (tokenizer.getTokenLength() > 0 && exporter.isWritingAttributes() &&
+                        (attributeNames == null || attributeNames.contains("label"))) {
+                    label = attributeParser.parseValue(tokenizer.getTokenBytes(), 0, tokenizer.getTokenLength());
+                }
+
+                if (depth == 0) {
+                    // the root - its branch length and any comments after that are dropped
+                    transcodeAttributes(exporter, label);
+                    if (delimiter == ':') {
+                        tokenizer.readDouble(BRANCH_DELIMITERS);
+                        delimiter = tokenizer.getLastDelimiter();
+                    }
+                    tokenizer.clearMetaComments();
+                    return delimiter;
+                }
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads the branch length of a node whose label has been written then writes its attributes and length
+     * @return the delimiter after the branch
+     */
+    private int transcodeBranch(TreeFileExporter exporter, Object label, int delimiter, boolean isNewick) throws ImportException {
+        double length = 0.0;
+        boolean hasLength = false;
+        if (delimiter == ':') {
+            try {
+                length = tokenizer.readDouble(BRANCH_DELIMITERS);
+            } catch (IOException ioe) {
+                throw new ImportException(ioe.getMessage());
+            }
+            hasLength = true;
+            delimiter = tokenizer.getLastDelimiter();
+        } else if (isNewick) {
+            length = 1.0;
+            hasLength = true;
+        }
+
+        // the comments both before and after the branch length are on the node
+        transcodeAttributes(exporter, label);
+
+        if (hasLength || hasTranscodedLength) {
+            exporter.writeLength(length);
+            hasTranscodedLength = true;
+        }
+        return delimiter;
+    }
+
+    /**
+     * Writes the internal node label (if any) and the attributes in the meta comments read since the last node.
+     * A later value for the same attribute replaces an earlier one.
+     */
+    private void transcodeAttributes(TreeFileExporter exporter, Object label) {
+        if (!exporter.isWritingAttributes()) {
+            tokenizer.clearMetaComments();
+            return;
+        }
+        transcodedCount = 0;
+        if (label != null) {
+            addTranscodedAttribute("label", label);
+        }
+        byte[] bytes = tokenizer.getMetaCommentBytes();
+        for (int i = 0; i < tokenizer.getMetaCommentCount(); i++) {
+            attributeParser.scanMetaComment(bytes, tokenizer.getMetaCommentStart(i), tokenizer.getMetaCommentEnd(i),
+                    (key, valueStart, valueEnd) -> {
+                        if (!key.startsWith("&") && (attributeNames == null || attributeNames.contains(key))) {
+                            addTranscodedAttribute(key,
+                                    valueEnd > valueStart ? attributeParser.parseValue(bytes, valueStart, valueEnd) : Boolean.TRUE);
+                        }
+                    });
+        }
+        tokenizer.clearMetaComments();
+
+        for (int i = 0; i < transcodedCount; i++) {
+            exporter.writeAttribute(transcodedKeys[i], transcodedValues[i], i == 0);
+        }
+        if (transcodedCount > 0) {
+            exporter.write(']');
+        }
+    }
+
+    private void addTranscodedAttribute(String key, Object value) {
+        for (int i = 0; i < transcodedCount; i++) {
+            if (transcodedKeys[i].equals(key)) {
+                transcodedValues[i] = value;
+                return;
+            }
+        }
+        if (transcodedCount == transcodedKeys.length) {
+            transcodedKeys = Arrays.copyOf(transcodedKeys, transcodedCount * 2);
+            transcodedValues = Arrays.copyOf(transcodedValues, transcodedCount * 2);
+        }
+        transcodedKeys[transcodedCount] = key;
+        transcodedValues[transcodedCount] = value;
+        transcodedCount++;
+    }
+
+    /**
+     * Gives the meta comments read since the last node to the builder to be parsed later or, if only some
+     * attributes are being read, parses those attributes now
+     */
+    private void parseMetaComments(TreeBuilder builder, int node) {
+        byte[] bytes = tokenizer.getMetaCommentBytes();
+        for (int i = 0; i < tokenizer.getMetaCommentCount(); i++) {
+            if (attributeNames == null) {
+                builder.addMetaComment(node, bytes, tokenizer.getMetaCommentStart(i), tokenizer.getMetaCommentEnd(i));
+            } else {
+                attributeParser.scanMetaComment(bytes, tokenizer.getMetaCommentStart(i), tokenizer.getMetaCommentEnd(i),
+                        (key, valueStart, valueEnd) -> {
+                            if (attributeNames.contains(key)) {
+                                builder.setAttribute(node, key,
+                                        valueEnd > valueStart ? attributeParser.parseValue(bytes, valueStart, valueEnd) : Boolean.TRUE);
+                            }
+                        });
+            }
+        }
+        tokenizer.clearMetaComments();
+    }
+
+    private static final boolean[] OPEN_BRACKET = TreeTokenizer.delimiters("(");
+    private static final boolean[] SEMICOLON = TreeTokenizer.delimiters(";");
+    private static final boolean[] EQUALS_SEMICOLON = TreeTokenizer.delimiters("=;");
+    private static final boolean[] COMMA_SEMICOLON = TreeTokenizer.delimiters(",;");
+    private static final boolean[] NODE_DELIMITERS = TreeTokenizer.delimiters(":(),;");
+    private static final boolean[] BRANCH_DELIMITERS = TreeTokenizer.delimiters(",():;");
+
+    private final TreeTokenizer tokenizer;
+    private final FormatType format;
+    private final AttributeParser attributeParser = new AttributeParser();
+
+    private int[] childStack = new int[1024];
+    private int[] frameStarts = new int[256];
+    private int lastNodeCount = 1024;
+
+    private boolean isReadingTreesBlock = false;
+    // the taxa of the trees read (so each tip name only goes to jebl's taxon registry once), shared with the
+    // importers parsing the trees from readNextUnparsedTree
+    private final TaxonPool taxonPool;
+    private List<Taxon> taxonList = null;
+    private TranslationTable translationTable = null;
+    private Set<String> attributeNames = null;
+
+    private String[] transcodedKeys = new String[16];
+    private Object[] transcodedValues = new Object[16];
+    private int transcodedCount = 0;
+    private boolean hasTranscodedLength = false;
+
+    private Tree nextTree = null;
+    private boolean finished = false;
+    private int nodeDelimiter;
+    private long statementStart = 0;
+}
@@ -0,0 +1,221 @@
+package network.artic.clusterfunk.io;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.trees.RootedTree;
+import network.artic.clusterfunk.FormatType;
+import network.artic.clusterfunk.trees.TaxonPool;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * An index of the position of each tree in an (uncompressed) NEXUS or Newick tree file so that some of the trees
+ * (e.g., after a burn-in) can be parsed without reading the rest. The trees are found by a scan that doesn't parse
+ * them and the index is written to a file next to the tree file (with the extension '.cfindex') which is used for
+ * as long as the tree file is unchanged. The text of each tree is memory mapped when the tree is parsed.
+ */
+public class TreeIndex implements Closeable {
+    private static final long MAGIC = 0x4A43465449445831L; // "JCFTIDX1"
+
+    /**
+     * Opens the index for a tree file, scanning the file (and writing the index file) if there isn't a current
+     * index file.
+     * @param treeFile
+     * @return the index or null if the file can't be indexed (it is compressed, binary or has a TRANSLATE command
+     * after the first tree)
+     * @throws IOException
+     * @throws ImportException
+     */
+    public static TreeIndex open(Path treeFile) throws IOException, ImportException {
+        if (CompressedFiles.getCompression(treeFile) != CompressedFiles.Compression.NONE) {
+            return null;
+        }
+        FormatType format = TreeFileImporter.getFormatType(treeFile.toString());
+        if (format != FormatType.NEXUS && format != FormatType.NEWICK) {
+            return null;
+        }
+
+        Path indexFile = getIndexFile(treeFile);
+        long[][] offsets = readIndexFile(treeFile, indexFile, format);
+        boolean isFromIndexFile = offsets != null;
+        if (offsets == null) {
+            offsets = scan(treeFile, format);
+            if (offsets == null) {
+                return null;
+            }
+            try {
+                writeIndexFile(treeFile, indexFile, format, offsets);
+            } catch (IOException ioe) {
+                // the index can still be used if it can't be written (e.g., the directory is read only)
+            }
+        }
+        return new TreeIndex(treeFile, format, offsets[0], offsets[1], isFromIndexFile);
+    }
+
+    /**
+     * @return the index file for a tree file
+     */
+    public static Path getIndexFile(Path treeFile) {
+        return treeFile.resolveSibling(treeFile.getFileName() + ".cfindex");
+    }
+
+    private TreeIndex(Path treeFile, FormatType format, long[] starts, long[] ends, boolean isFromIndexFile) throws IOException, ImportException {
+        this.channel = FileChannel.open(treeFile, StandardOpenOption.READ);
+        this.format = format;
+        this.starts = starts;
+        this.ends = ends;
+        this.isFromIndexFile = isFromIndexFile;
+
+        // the translate table is read from the header (everything before the first tree)
+        if (starts.length > 0 && starts[0] > 0) {
+            TreeFileImporter header = new TreeFileImporter(new ByteArrayInputStream(map(0, starts[0])), format);
+            header.skipNextTree();
+            this.translationTable = header.getTranslationTable();
+        } else {
+            this.translationTable = null;
+        }
+    }
+
+    /**
+     * @return true if the index was read from an index file rather than by scanning the tree file
+     */
+    public boolean isFromIndexFile() {
+        return isFromIndexFile;
+    }
+
+    /**
+     * Sets the node attributes to read from the trees (see TreeFileImporter.setAttributeNames)
+     * @param attributeNames the names or null for all of them
+     */
+    public void setAttributeNames(Collection<String> attributeNames) {
+        this.attributeNames = (attributeNames != null ? new HashSet<>(attributeNames) : null);
+    }
+
+    public int getTreeCount() {
+        return starts.length;
+    }
+
+    /**
+     * @param index
+     * @return a task that parses the tree (and can be run on any thread)
+     */
+    public Callable<RootedTree> getTree(int index) {
+        final long start = starts[index];
+        final long end = ends[index];
+        final Set<String> attributeNames = this.attributeNames;
+        return () -> TreeFileImporter.parseTree(map(start, end), format, translationTable, attributeNames, taxonPool);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte[] map(long start, long end) throws IOException {
+        byte[] bytes = new byte[(int)(end - start)];
+        channel.map(FileChannel.MapMode.READ_ONLY, start, bytes.length).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Finds the trees without parsing them
+     * @return the start and end offsets of each tree or null if the file can't be indexed
+     */
+    private static long[][] scan(Path treeFile, FormatType format) throws IOException, ImportException {
+        long[] starts = new long[1024];
+        long[] ends = new long[1024];
+        int count = 0;
+        try (InputStream in = Files.newInputStream(treeFile)) {
+            TreeFileImporter importer = new TreeFileImporter(in, format);
+            TranslationTable translationTable = null;
+            long[] offsets;
+            while ((offsets = importer.skipNextTree()) != null) {
+                if (count == 0) {
+                    translationTable = importer.getTranslationTable();
+                } else if (importer.getTranslationTable() != translationTable) {
+                    // the trees after this would need a different translate table
+                    return null;
+                }
+                if (offsets[1] - offsets[0] > Integer.MAX_VALUE) {
+                    return null;
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = offsets[0];
+                ends[count] = offsets[1];
+                count++;
+            }
+        }
+        return new long[][] { Arrays.copyOf(starts, count), Arrays.copyOf(ends, count) };
+    }
+
+    /**
+     * @return the offsets in the index file or null if there isn't one or it doesn't match the tree file
+     */
+    private static long[][] readIndexFile(Path treeFile, Path indexFile, FormatType format) throws IOException {
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+            if (in.readLong() != MAGIC ||
+                    in.readLong() != Files.size(treeFile) ||
+                    in.readLong() != Files.getLastModifiedTime(treeFile).toMillis() ||
+                    in.readInt() != format.ordinal()) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > Files.size(treeFile)) {
+                return null;
+            }
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = in.readLong();
+                ends[i] = in.readLong();
+            }
+            return new long[][] { starts, ends };
+        } catch (EOFException eofe) {
+            // a truncated index file is just ignored
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index file. It is written to a temporary file and then moved so that another process never sees
+     * a partly written index file.
+     */
+    private static void writeIndexFile(Path treeFile, Path indexFile, FormatType format, long[][] offsets) throws IOException {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16))) {
+                out.writeLong(MAGIC);
+                out.writeLong(Files.size(treeFile));
+                out.writeLong(Files.getLastModifiedTime(treeFile).toMillis());
+                out.writeInt(format.ordinal());
+                out.writeInt(offsets[0].length);
+                for (int i = 0; i < offsets[0].length; i++) {
+                    out.writeLong(offsets[0][i]);
+                    out.writeLong(offsets[1][i]);
+                }
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private final FileChannel channel;
+    private final FormatType format;
+    private final long[] starts;
+    private final long[] ends;
+    private final TranslationTable translationTable;
+    // the taxa of the trees parsed (shared by the threads parsing them)
+    private final TaxonPool taxonPool = new TaxonPool();
+    private final boolean isFromIndexFile;
+    private Set<String> attributeNames = null;
+}
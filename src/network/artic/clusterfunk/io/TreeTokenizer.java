@@ -0,0 +1,596 @@
+package network.artic.clusterfunk.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A byte level tokenizer for Newick and NEXUS tree files. Reads the stream through a single large buffer
+ * and returns tokens in a reusable byte array so no String is created unless the caller asks for one.
+ * Comments are skipped along with white space but the contents of meta comments ([&...]) are kept until
+ * cleared so they can be attached to whatever they follow.
+ */
+public class TreeTokenizer {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    public static final int EOF = -1;
+
+    /**
+     * The delimiter returned by readToken when the token was ended by white space or a comment
+     */
+    public static final int SPACE = ' ';
+
+    public TreeTokenizer(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public TreeTokenizer(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Creates a delimiter table for use with readToken
+     * @param characters
+     * @return
+     */
+    public static boolean[] delimiters(String characters) {
+        boolean[] table = new boolean[128];
+        for (char c : characters.toCharArray()) {
+            table[c] = true;
+        }
+        return table;
+    }
+
+    /**
+     * @return the next byte (0-255) or EOF
+     */
+    public int read() throws IOException {
+        if (position >= limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * @return the next byte (0-255) or EOF without consuming it
+     */
+    public int peek() throws IOException {
+        if (position >= limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    /**
+     * @return the offset in the stream of the next byte to be read
+     */
+    public long getOffset() {
+        return bufferOffset + position;
+    }
+
+    /**
+     * Skips white space and comments, keeping the contents of any meta comments.
+     * @return the next character (not consumed) or EOF
+     */
+    public int skipSpace() throws IOException {
+        while (true) {
+            if (position >= limit && !fill()) {
+                return EOF;
+            }
+            int c = buffer[position] & 0xFF;
+            if (c <= ' ') {
+                position++;
+            } else if (c == '[') {
+                position++;
+                skipComment();
+            } else {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Skips bytes until one of the given characters is found (outside of comments) and consumes it.
+     * @param characters
+     * @return the character found or EOF
+     */
+    public int skipUntil(boolean[] characters) throws IOException {
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                return EOF;
+            }
+            if (c == '[') {
+                skipComment();
+            } else if (c < 128 && characters[c]) {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes up to and including the next ';' that isn't in a comment or a quoted label without
+     * tokenizing them. As in readToken, a quote only starts a label at the start of a token.
+     * @return the bytes (which may not end in ';' at the end of the stream) or null if there were none
+     */
+    public byte[] readStatement() throws IOException {
+        scanStatement(true);
+        return statementLength > 0 ? Arrays.copyOf(statement, statementLength) : null;
+    }
+
+    /**
+     * Skips the bytes up to and including the next ';' that isn't in a comment or a quoted label (as
+     * readStatement)
+     * @return false if there were none
+     */
+    public boolean skipStatement() throws IOException {
+        return scanStatement(false) > 0;
+    }
+
+    /**
+     * @param isKept whether to keep the bytes in the statement buffer
+     * @return the number of bytes in the statement
+     */
+    private long scanStatement(boolean isKept) throws IOException {
+        statementLength = 0;
+        long start = getOffset();
+        isStatementKept = isKept;
+        int previous = SPACE;
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                break;
+            }
+            appendStatement(c);
+            if (c == ';') {
+                break;
+            }
+            if (c == '[') {
+                copyComment();
+                c = ']';
+            } else if ((c == '\'' || c == '"') && isTokenStart(previous)) {
+                copyQuotedLabel(c);
+            }
+            previous = c;
+        }
+        return getOffset() - start;
+    }
+
+    /**
+     * Reads a token into the token buffer. A token is either quoted (with ' or ") in which case a doubled quote
+     * is an escaped quote, or runs until white space, a comment or one of the delimiters. Following white space
+     * and comments are then skipped and if the next character is a delimiter it is consumed.
+     * @param delimiters a table made with delimiters()
+     * @return the delimiter that ended the token, SPACE if there was none or EOF.
+     */
+    public int readToken(boolean[] delimiters) throws IOException {
+        tokenLength = 0;
+        tokenQuoted = false;
+
+        int c = skipSpace();
+        if (c == EOF) {
+            return EOF;
+        }
+
+        if (c == '\'' || c == '"') {
+            position++;
+            tokenQuoted = true;
+            int quote = c;
+            while (true) {
+                c = read();
+                if (c == EOF) {
+                    throw new EOFException("Unterminated quoted label");
+                }
+                if (c == quote) {
+                    if (peek() == quote) {
+                        position++;
+                    } else {
+                        break;
+                    }
+                }
+                appendToken(c);
+            }
+        } else {
+            while (true) {
+                if (position >= limit && !fill()) {
+                    return EOF;
+                }
+                c = buffer[position] & 0xFF;
+                if (c <= ' ' || c == '[') {
+                    break;
+                }
+                if (c < 128 && delimiters[c]) {
+                    position++;
+                    return c;
+                }
+                appendToken(c);
+                position++;
+            }
+        }
+
+        c = skipSpace();
+        if (c != EOF && c < 128 && delimiters[c]) {
+            position++;
+            return c;
+        }
+        return c == EOF ? EOF : SPACE;
+    }
+
+    /**
+     * Reads a token and parses it as a double
+     * @param delimiters
+     * @return
+     */
+    public double readDouble(boolean[] delimiters) throws IOException {
+        lastDelimiter = readToken(delimiters);
+        return getTokenAsDouble();
+    }
+
+    /**
+     * @return the delimiter found by the last call to readDouble
+     */
+    public int getLastDelimiter() {
+        return lastDelimiter;
+    }
+
+    public int getTokenLength() {
+        return tokenLength;
+    }
+
+    public boolean isTokenQuoted() {
+        return tokenQuoted;
+    }
+
+    public byte[] getTokenBytes() {
+        return token;
+    }
+
+    public String getToken() {
+        return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the current token to a (ASCII) keyword ignoring case
+     * @param keyword
+     * @return
+     */
+    public boolean tokenEquals(String keyword) {
+        if (tokenLength != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            int c = token[i];
+            if (c >= 'a' && c <= 'z') {
+                c -= 32;
+            }
+            int k = keyword.charAt(i);
+            if (k >= 'a' && k <= 'z') {
+                k -= 32;
+            }
+            if (c != k) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the current token as a double without creating a String. Short decimals (up to 15 significant
+     * digits and small exponents) are converted exactly, anything else is passed to Double.parseDouble
+     * so the result is always the same as that method.
+     * @return
+     * @throws IOException if the token is not a number
+     */
+    public double getTokenAsDouble() throws IOException {
+        double value = parseDouble(token, 0, tokenLength);
+        if (Double.isNaN(value)) {
+            try {
+                return Double.parseDouble(getToken());
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Number format error: " + nfe.getMessage());
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the current token as a positive integer or -1 if it is not one.
+     */
+    public int getTokenAsIndex() {
+        if (tokenLength == 0 || tokenLength > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < tokenLength; i++) {
+            int d = token[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Converts a plain decimal number in a byte array to a double. This is exact (i.e., the same as
+     * Double.parseDouble) because the digits and the power of ten are both exactly representable and the
+     * single multiplication or division is correctly rounded.
+     * @return the value or NaN if the number couldn't be converted exactly this way
+     */
+    static double parseDouble(byte[] bytes, int start, int end) {
+        int i = start;
+        if (i >= end) {
+            return Double.NaN;
+        }
+        boolean negative = false;
+        if (bytes[i] == '-' || bytes[i] == '+') {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            int c = bytes[i];
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    // leading zeros aren't significant
+                    if (seenPoint) {
+                        scale--;
+                    }
+                    continue;
+                }
+                if (digits >= 15) {
+                    return Double.NaN;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (seenPoint) {
+                    scale--;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return Double.NaN;
+        }
+        if (i < end) {
+            if (bytes[i] != 'e' && bytes[i] != 'E') {
+                return Double.NaN;
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            if (i >= end) {
+                return Double.NaN;
+            }
+            int exponent = 0;
+            for (; i < end; i++) {
+                int d = bytes[i] - '0';
+                if (d < 0 || d > 9 || exponent > 1000) {
+                    return Double.NaN;
+                }
+                exponent = exponent * 10 + d;
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (scale >= 0 && scale <= 22) {
+            value = (double)mantissa * POWERS_OF_TEN[scale];
+        } else if (scale < 0 && scale >= -22) {
+            value = (double)mantissa / POWERS_OF_TEN[-scale];
+        } else {
+            return Double.NaN;
+        }
+        return negative ? -value : value;
+    }
+
+    public int getMetaCommentCount() {
+        return metaCommentCount;
+    }
+
+    public byte[] getMetaCommentBytes() {
+        return metaComments;
+    }
+
+    public int getMetaCommentStart(int index) {
+        return metaCommentBounds[index * 2];
+    }
+
+    public int getMetaCommentEnd(int index) {
+        return metaCommentBounds[index * 2 + 1];
+    }
+
+    public String getMetaComment(int index) {
+        int start = getMetaCommentStart(index);
+        return new String(metaComments, start, getMetaCommentEnd(index) - start, StandardCharsets.UTF_8);
+    }
+
+    public void clearMetaComments() {
+        metaCommentCount = 0;
+        metaCommentsLength = 0;
+    }
+
+    /**
+     * Skips a (possibly nested) comment - the opening '[' has been read. Brackets within quotes are ignored.
+     */
+    private void skipComment() throws IOException {
+        boolean isMeta = peek() == '&';
+        if (isMeta) {
+            position++;
+            if (metaCommentCount * 2 >= metaCommentBounds.length) {
+                metaCommentBounds = Arrays.copyOf(metaCommentBounds, metaCommentBounds.length * 2);
+            }
+            metaCommentBounds[metaCommentCount * 2] = metaCommentsLength;
+        }
+        int depth = 1;
+        int inString = 0;
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new EOFException("Unterminated comment");
+            }
+            if (c == '"' || c == '\'') {
+                if (inString == 0) {
+                    inString = c;
+                } else if (inString == c) {
+                    inString = 0;
+                }
+            }
+            if (inString == 0) {
+                if (c == '[') {
+                    depth++;
+                    continue;
+                }
+                if (c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            if (isMeta) {
+                if (metaCommentsLength == metaComments.length) {
+                    metaComments = Arrays.copyOf(metaComments, metaComments.length * 2);
+                }
+                metaComments[metaCommentsLength++] = (byte)c;
+            }
+        }
+        if (isMeta) {
+            metaCommentBounds[metaCommentCount * 2 + 1] = metaCommentsLength;
+            metaCommentCount++;
+        }
+    }
+
+    /**
+     * Copies a (possibly nested) comment into the statement - the opening '[' has been read.
+     */
+    private void copyComment() throws IOException {
+        int depth = 1;
+        int inString = 0;
+        while (depth > 0) {
+            int c = read();
+            if (c == EOF) {
+                throw new EOFException("Unterminated comment");
+            }
+            appendStatement(c);
+            if (c == '"' || c == '\'') {
+                if (inString == 0) {
+                    inString = c;
+                } else if (inString == c) {
+                    inString = 0;
+                }
+            } else if (inString == 0) {
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a quoted label into the statement - the opening quote has been read.
+     */
+    private void copyQuotedLabel(int quote) throws IOException {
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new EOFException("Unterminated quoted label");
+            }
+            appendStatement(c);
+            if (c == quote) {
+                if (peek() != quote) {
+                    return;
+                }
+                appendStatement(read());
+            }
+        }
+    }
+
+    private static boolean isTokenStart(int previous) {
+        return previous <= ' ' || previous == '(' || previous == ')' || previous == ',' || previous == ':' ||
+                previous == '=' || previous == ']';
+    }
+
+    private void appendStatement(int c) {
+        if (!isStatementKept) {
+            return;
+        }
+        if (statementLength == statement.length) {
+            statement = Arrays.copyOf(statement, statement.length * 2);
+        }
+        statement[statementLength++] = (byte)c;
+    }
+
+    private void appendToken(int c) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = (byte)c;
+    }
+
+    /**
+     * Closes the stream being read
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        bufferOffset += limit;
+        position = 0;
+        limit = 0;
+        int n;
+        do {
+            n = in.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private long bufferOffset = 0;
+
+    private byte[] token = new byte[256];
+    private int tokenLength = 0;
+    private boolean tokenQuoted = false;
+    private int lastDelimiter = EOF;
+
+    private byte[] statement = new byte[1024];
+    private int statementLength = 0;
+    private boolean isStatementKept = true;
+
+    private byte[] metaComments = new byte[1024];
+    private int metaCommentsLength = 0;
+    private int[] metaCommentBounds = new int[16];
+    private int metaCommentCount = 0;
+}
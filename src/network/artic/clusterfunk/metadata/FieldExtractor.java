@@ -0,0 +1,122 @@
+package network.artic.clusterfunk.metadata;
+
+import java.util.regex.Pattern;
+
+/**
+ * Gets an index value from one or more fields of a delimited name (e.g., the EPI_ISL number from
+ * 'England/CAMB-1B2C3D/2020|EPI_ISL_601443|2020-12-01'). The fields are the same as String.split would give
+ * (including dropping empty fields at the end) but a literal delimiter is found by scanning the name so no
+ * regular expression or array of fields is made for each name.
+ */
+public class FieldExtractor {
+    private static final String REGEX_CHARACTERS = ".$|()[]{}^?*+\\";
+
+    /**
+     * @param delimiter the delimiter as given to String.split (a regular expression)
+     * @param fields the field numbers (from 1) - the values of more than one field are joined by the delimiter
+     */
+    public FieldExtractor(String delimiter, int... fields) {
+        this(delimiter, null, fields);
+    }
+
+    /**
+     * @param delimiter the delimiter as given to String.split (a regular expression)
+     * @param separator the text to join the values of more than one field with (null for the delimiter)
+     * @param fields the field numbers (from 1)
+     */
+    public FieldExtractor(String delimiter, String separator, int... fields) {
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("At least one field is needed");
+        }
+        for (int field : fields) {
+            if (field < 1) {
+                throw new IllegalArgumentException("Field numbers start at 1");
+            }
+        }
+        this.literal = getLiteral(delimiter);
+        this.pattern = (literal == null ? Pattern.compile(delimiter) : null);
+        this.separator = (separator != null ? separator : (literal != null ? literal : delimiter));
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @param name
+     * @return the value of the field(s) or null if the name doesn't have enough fields
+     */
+    public String getKey(String name) {
+        if (fields.length == 1) {
+            return getField(name, fields[0]);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            String value = getField(name, fields[i]);
+            if (value == null) {
+                return null;
+            }
+            if (i > 0) {
+                key.append(separator);
+            }
+            key.append(value);
+        }
+        return key.toString();
+    }
+
+    private String getField(String name, int field) {
+        if (pattern != null) {
+            String[] values = pattern.split(name);
+            return field <= values.length ? values[field - 1] : null;
+        }
+
+        int start = 0;
+        for (int i = 1; i < field; i++) {
+            int next = name.indexOf(literal, start);
+            if (next == -1) {
+                return null;
+            }
+            start = next + literal.length();
+        }
+        int end = name.indexOf(literal, start);
+        if (end == -1) {
+            end = name.length();
+        }
+        if (start == end && (start > 0 || end < name.length()) && isOnlyDelimiters(name, end)) {
+            // String.split drops the empty fields at the end (unless there is no delimiter at all)
+            return null;
+        }
+        return name.substring(start, end);
+    }
+
+    private boolean isOnlyDelimiters(String name, int start) {
+        while (start < name.length()) {
+            if (!name.startsWith(literal, start)) {
+                return false;
+            }
+            start += literal.length();
+        }
+        return true;
+    }
+
+    /**
+     * @return the text a delimiter matches if it is a literal (no regular expression characters other than an
+     * escaped character) or null
+     */
+    private static String getLiteral(String delimiter) {
+        if (delimiter.length() == 2 && delimiter.charAt(0) == '\\' && !Character.isLetterOrDigit(delimiter.charAt(1))) {
+            return delimiter.substring(1);
+        }
+        if (delimiter.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < delimiter.length(); i++) {
+            if (REGEX_CHARACTERS.indexOf(delimiter.charAt(i)) != -1) {
+                return null;
+            }
+        }
+        return delimiter;
+    }
+
+    private final String literal;
+    private final Pattern pattern;
+    private final String separator;
+    private final int[] fields;
+}
@@ -0,0 +1,336 @@
+package network.artic.clusterfunk.metadata;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps parsed metadata tables in binary files so that the same metadata file doesn't have to be parsed on every
+ * run. The cache file is stored next to the metadata file (with the extension '.cfcache' added) or in a cache
+ * directory and is only used if the size, modification time and CRC32 of the metadata file match those it was
+ * made from.
+ *
+ * The cache file has a header (the metadata file's details, the column names and the positions of the columns in
+ * the cache file) followed by the row hash table and each column as a block. The blocks are memory mapped so
+ * only the columns that are asked for are read.
+ */
+public class MetadataCache {
+    private static final String EXTENSION = ".cfcache";
+    private static final long MAGIC = 0x4A43464D45544131L; // "JCFMETA1"
+
+    /**
+     * @param cacheDirectory the directory to keep cache files in or null to keep them next to the metadata files
+     */
+    public MetadataCache(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @return the cache file for a metadata file
+     */
+    public Path getCacheFile(Path metadataFile) {
+        if (cacheDirectory == null) {
+            return metadataFile.resolveSibling(metadataFile.getFileName() + EXTENSION);
+        }
+        // include a hash of the full path so files with the same name in different directories don't collide
+        String path = metadataFile.toAbsolutePath().normalize().toString();
+        return cacheDirectory.resolve(metadataFile.getFileName() + "-" +
+                String.format("%08x", path.hashCode()) + EXTENSION);
+    }
+
+    /**
+     * Opens the cache file for a metadata file.
+     * @param metadataFile
+     * @return the cached table or null if there is no cache file or it doesn't match the metadata file
+     * @throws IOException
+     */
+    public CachedTable open(Path metadataFile) throws IOException {
+        Path cacheFile = getCacheFile(metadataFile);
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            long cacheSize = channel.size();
+            if (cacheSize < 40) {
+                return null;
+            }
+            // the header is small but can't be bigger than the file
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(cacheSize, 1 << 20));
+            if (head.getLong() != MAGIC) {
+                return null;
+            }
+            long fileSize = head.getLong();
+            long modifiedTime = head.getLong();
+            long crc = head.getLong();
+            if (fileSize != Files.size(metadataFile) ||
+                    modifiedTime != Files.getLastModifiedTime(metadataFile).toMillis() ||
+                    crc != getCRC(metadataFile)) {
+                return null;
+            }
+            int headerLength = head.getInt();
+            if (headerLength > head.limit()) {
+                head = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerLength);
+                for (int i = 0; i < 4; i++) {
+                    head.getLong();
+                }
+                head.getInt();
+            }
+            int indexColumn = head.getInt();
+            int rowCount = head.getInt();
+            int columnCount = head.getInt();
+            List<String> headerNames = new ArrayList<>();
+            for (int i = 0; i < columnCount; i++) {
+                headerNames.add(readString(head));
+            }
+            long[] offsets = new long[columnCount + 2];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = head.getLong();
+            }
+            return new CachedTable(cacheFile, headerNames, indexColumn, rowCount, offsets);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // a truncated or corrupt cache file is just ignored
+            return null;
+        }
+    }
+
+    /**
+     * Writes a table to the cache file for a metadata file. It is written to a temporary file and then moved so
+     * that another process never sees a partly written cache file.
+     * @param metadataFile
+     * @param table
+     * @throws IOException
+     */
+    public void write(Path metadataFile, MetadataTable table) throws IOException {
+        Path cacheFile = getCacheFile(metadataFile);
+        if (cacheDirectory != null) {
+            Files.createDirectories(cacheDirectory);
+        }
+
+        // the header is written to a byte array first to find its length
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeLong(MAGIC);
+        header.writeLong(Files.size(metadataFile));
+        header.writeLong(Files.getLastModifiedTime(metadataFile).toMillis());
+        header.writeLong(getCRC(metadataFile));
+        header.writeInt(0); // header length - filled in below
+        header.writeInt(table.getIndexColumn());
+        header.writeInt(table.getRowCount());
+        header.writeInt(table.getColumnCount());
+        for (String name : table.getHeaderNames()) {
+            writeString(header, name);
+        }
+        header.flush();
+        int headerLength = headerBytes.size() + (table.getColumnCount() + 2) * 8;
+
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            // the blocks are written after space for the header and then the header is written with their positions
+            long[] offsets = new long[table.getColumnCount() + 2];
+            try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16))) {
+                DataOutputStream out = new DataOutputStream(counter);
+                out.write(new byte[headerLength]);
+                offsets[0] = counter.count;
+                for (int entry : table.getRowTable()) {
+                    out.writeInt(entry);
+                }
+                for (int i = 0; i < table.getColumnCount(); i++) {
+                    offsets[i + 1] = counter.count;
+                    writeColumn(out, table.getColumn(i), table.getRowCount());
+                }
+                out.flush();
+                offsets[offsets.length - 1] = counter.count;
+            }
+
+            for (long offset : offsets) {
+                header.writeLong(offset);
+            }
+            header.flush();
+            ByteBuffer buffer = ByteBuffer.wrap(headerBytes.toByteArray());
+            buffer.putInt(32, headerLength);
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position());
+                }
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * A table in a cache file. Only the header has been read - the columns are read by getTable().
+     */
+    public static class CachedTable {
+        private CachedTable(Path cacheFile, List<String> headerNames, int indexColumn, int rowCount, long[] offsets) {
+            this.cacheFile = cacheFile;
+            this.headerNames = Collections.unmodifiableList(headerNames);
+            this.indexColumn = indexColumn;
+            this.rowCount = rowCount;
+            this.offsets = offsets;
+        }
+
+        public List<String> getHeaderNames() {
+            return headerNames;
+        }
+
+        public int getIndexColumn() {
+            return indexColumn;
+        }
+
+        /**
+         * Reads some of the columns and rows of the table
+         * @param columns the column numbers to read (in order and including the index column)
+         * @param keys the index values of the rows to keep or null for all of them
+         * @return the table
+         * @throws IOException
+         */
+        public MetadataTable getTable(int[] columns, Set<String> keys) throws IOException {
+            List<String> names = new ArrayList<>();
+            MetadataColumn[] tableColumns = new MetadataColumn[columns.length];
+            int tableIndexColumn = -1;
+            int[] rowTable;
+            try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = map(channel, 0);
+                rowTable = new int[buffer.remaining() / 4];
+                buffer.asIntBuffer().get(rowTable);
+
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i] == indexColumn) {
+                        tableIndexColumn = i;
+                    }
+                    names.add(headerNames.get(columns[i]));
+                    tableColumns[i] = readColumn(map(channel, columns[i] + 1), headerNames.get(columns[i]), rowCount);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("corrupt metadata cache file, " + cacheFile);
+            }
+            if (tableIndexColumn == -1) {
+                throw new IllegalArgumentException("the index column must be read");
+            }
+
+            // the rows are the same as the full table so the hash table of rows is too
+            MetadataTable table = new MetadataTable(names, tableIndexColumn, tableColumns, rowCount, rowTable);
+            if (keys == null) {
+                return table;
+            }
+
+            MetadataTable keptTable = new MetadataTable(names, tableIndexColumn);
+            String[] values = new String[columns.length];
+            for (int row = 0; row < rowCount; row++) {
+                if (keys.contains(table.getKey(row))) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = table.get(row, i);
+                    }
+                    keptTable.addRow(values);
+                }
+            }
+            return keptTable;
+        }
+
+        private ByteBuffer map(FileChannel channel, int block) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offsets[block], offsets[block + 1] - offsets[block]);
+        }
+
+        private final Path cacheFile;
+        private final List<String> headerNames;
+        private final int indexColumn;
+        private final int rowCount;
+        private final long[] offsets;
+    }
+
+    private static void writeColumn(DataOutputStream out, MetadataColumn column, int rowCount) throws IOException {
+        if (column.isDictionaryEncoded()) {
+            out.writeByte(0);
+            out.writeInt(column.getValueCount());
+            for (int code = 0; code < column.getValueCount(); code++) {
+                writeString(out, column.getValue(code));
+            }
+            for (int row = 0; row < rowCount; row++) {
+                out.writeInt(column.getCode(row));
+            }
+        } else {
+            out.writeByte(1);
+            for (int row = 0; row < rowCount; row++) {
+                writeString(out, column.get(row));
+            }
+        }
+    }
+
+    private static MetadataColumn readColumn(ByteBuffer buffer, String name, int rowCount) {
+        if (buffer.get() == 0) {
+            int valueCount = buffer.getInt();
+            List<String> values = new ArrayList<>(valueCount);
+            for (int i = 0; i < valueCount; i++) {
+                values.add(readString(buffer));
+            }
+            int[] codes = new int[rowCount];
+            buffer.asIntBuffer().get(codes);
+            return new MetadataColumn(name, codes, values, rowCount);
+        }
+        // copy the whole block out of the mapped buffer at once rather than a value at a time
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        String[] values = new String[rowCount];
+        int position = 0;
+        for (int row = 0; row < rowCount; row++) {
+            int length = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16) |
+                    ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+            values[row] = new String(data, position + 4, length, StandardCharsets.UTF_8);
+            position += 4 + length;
+        }
+        return new MetadataColumn(name, values, rowCount);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long getCRC(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count = 0;
+    }
+
+    private final Path cacheDirectory;
+}
@@ -0,0 +1,157 @@
+package network.artic.clusterfunk.metadata;
+
+import java.util.*;
+
+/**
+ * The values of one column of a metadata table. Values are dictionary encoded (an int code per row and a table
+ * of the distinct values) unless most of them are distinct (e.g., the sequence names or dates) in which case the
+ * Strings are stored directly.
+ */
+public class MetadataColumn {
+    /**
+     * The column stops dictionary encoding if it has more than this many distinct values and they are more
+     * than half the rows
+     */
+    private static final int MIN_PLAIN_VALUE_COUNT = 4096;
+
+    MetadataColumn(String name) {
+        this.name = name;
+        values.add("");
+        valueCodes.put("", 0);
+    }
+
+    /**
+     * Makes a dictionary encoded column from its codes and values (the first value must be the empty string)
+     */
+    MetadataColumn(String name, int[] codes, List<String> values, int rowCount) {
+        this.name = name;
+        this.codes = codes;
+        this.capacity = codes.length;
+        this.rowCount = rowCount;
+        for (int i = 0; i < values.size(); i++) {
+            this.values.add(values.get(i));
+            this.valueCodes.put(values.get(i), i);
+        }
+    }
+
+    /**
+     * Makes a column that is not dictionary encoded from its values
+     */
+    MetadataColumn(String name, String[] plainValues, int rowCount) {
+        this.name = name;
+        this.plainValues = plainValues;
+        this.capacity = plainValues.length;
+        this.rowCount = rowCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value in a row (an empty string if the row has no value)
+     */
+    public String get(int row) {
+        if (plainValues != null) {
+            String value = plainValues[row];
+            return value != null ? value : "";
+        }
+        return values.get(codes[row]);
+    }
+
+    /**
+     * @return true if the values are dictionary encoded so getCode() can be used
+     */
+    public boolean isDictionaryEncoded() {
+        return plainValues == null;
+    }
+
+    /**
+     * @return the code of the value in a row (0 is an empty value) or -1 if the column is not dictionary encoded
+     */
+    public int getCode(int row) {
+        return plainValues == null ? codes[row] : -1;
+    }
+
+    /**
+     * @return the code of a value, 0 for an empty value or -1 if no row has the value or the column is not
+     * dictionary encoded
+     */
+    public int getCode(String value) {
+        if (plainValues != null) {
+            return -1;
+        }
+        Integer code = valueCodes.get(value);
+        return code != null ? code : -1;
+    }
+
+    /**
+     * @return the value for a code
+     */
+    public String getValue(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * @return the number of distinct values (including the empty value) or -1 if the column is not dictionary
+     * encoded
+     */
+    public int getValueCount() {
+        return plainValues == null ? values.size() : -1;
+    }
+
+    void set(int row, String value) {
+        if (value == null) {
+            value = "";
+        }
+        if (row >= capacity) {
+            grow(row + 1);
+        }
+        if (plainValues != null) {
+            plainValues[row] = value;
+            return;
+        }
+        Integer code = valueCodes.get(value);
+        if (code == null) {
+            code = values.size();
+            values.add(value);
+            valueCodes.put(value, code);
+        }
+        codes[row] = code;
+        rowCount = Math.max(rowCount, row + 1);
+
+        if (values.size() > MIN_PLAIN_VALUE_COUNT && values.size() > rowCount / 2) {
+            toPlain();
+        }
+    }
+
+    private void grow(int size) {
+        capacity = Math.max(size, capacity * 2);
+        if (plainValues != null) {
+            plainValues = Arrays.copyOf(plainValues, capacity);
+        } else {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+    }
+
+    private void toPlain() {
+        plainValues = new String[capacity];
+        for (int i = 0; i < rowCount; i++) {
+            plainValues[i] = values.get(codes[i]);
+        }
+        codes = null;
+        values.clear();
+        valueCodes.clear();
+    }
+
+    private final String name;
+
+    private int capacity = 0;
+    private int rowCount = 0;
+
+    private int[] codes = new int[0];
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> valueCodes = new HashMap<>();
+
+    private String[] plainValues = null;
+}
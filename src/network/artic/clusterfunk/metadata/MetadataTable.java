@@ -0,0 +1,200 @@
+package network.artic.clusterfunk.metadata;
+
+import java.util.*;
+
+/**
+ * A table of metadata stored by column (see MetadataColumn) with int row numbers and an index on one column
+ * (usually the sequence names). Only rows with a value in the index column are kept and if more than one row
+ * has the same index value the later one replaces the earlier (but keeps its place in the order of rows).
+ */
+public class MetadataTable {
+
+    /**
+     * @param headerNames the names of the columns
+     * @param indexColumn the column number of the index column
+     */
+    public MetadataTable(List<String> headerNames, int indexColumn) {
+        this.headerNames = Collections.unmodifiableList(new ArrayList<>(headerNames));
+        this.indexColumn = indexColumn;
+        this.columns = new MetadataColumn[headerNames.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new MetadataColumn(headerNames.get(i));
+        }
+    }
+
+    /**
+     * Makes a table from columns that have already been filled (e.g., from a MetadataCache)
+     * @param rowTable the hash table of rows by index value (as built by addRow)
+     */
+    MetadataTable(List<String> headerNames, int indexColumn, MetadataColumn[] columns, int rowCount, int[] rowTable) {
+        this.headerNames = Collections.unmodifiableList(new ArrayList<>(headerNames));
+        this.indexColumn = indexColumn;
+        this.columns = columns;
+        this.rowCount = rowCount;
+        this.rowTable = rowTable;
+    }
+
+    public List<String> getHeaderNames() {
+        return headerNames;
+    }
+
+    /**
+     * @return the column number for a header name or -1 if there is no such column
+     */
+    public int getColumnIndex(String name) {
+        return headerNames.indexOf(name);
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public MetadataColumn getColumn(int column) {
+        return columns[column];
+    }
+
+    /**
+     * @return the column number of the index column
+     */
+    public int getIndexColumn() {
+        return indexColumn;
+    }
+
+    public String getIndexColumnName() {
+        return headerNames.get(indexColumn);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the value in a row and column
+     */
+    public String get(int row, int column) {
+        return columns[column].get(row);
+    }
+
+    /**
+     * @return the index value of a row
+     */
+    public String getKey(int row) {
+        return columns[indexColumn].get(row);
+    }
+
+    /**
+     * @return the row with the given index value or -1 if there isn't one
+     */
+    public int getRow(String key) {
+        int mask = rowTable.length - 1;
+        int slot = hash(key) & mask;
+        while (rowTable[slot] != 0) {
+            int row = rowTable[slot] - 1;
+            if (getKey(row).equals(key)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index values as a set in the order of the rows
+     */
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return row < rowCount;
+                    }
+
+                    @Override
+                    public String next() {
+                        if (row >= rowCount) {
+                            throw new NoSuchElementException();
+                        }
+                        return getKey(row++);
+                    }
+
+                    private int row = 0;
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && getRow((String)o) != -1;
+            }
+
+            @Override
+            public int size() {
+                return rowCount;
+            }
+        };
+    }
+
+    /**
+     * Adds a row. If a row with the same index value exists then its values are replaced.
+     * @param values the values for each column (may be shorter than the number of columns)
+     * @return the row number
+     */
+    public int addRow(String[] values) {
+        String key = values[indexColumn];
+        int row = getRow(key);
+        if (row == -1) {
+            row = rowCount;
+            rowCount++;
+            columns[indexColumn].set(row, key);
+            insertRow(row);
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (i != indexColumn) {
+                columns[i].set(row, i < values.length ? values[i] : "");
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @return the hash table of rows by index value (for writing to a MetadataCache)
+     */
+    int[] getRowTable() {
+        return rowTable;
+    }
+
+    private void insertRow(int row) {
+        if (rowCount * 2 > rowTable.length) {
+            int[] oldTable = rowTable;
+            rowTable = new int[oldTable.length * 2];
+            for (int entry : oldTable) {
+                if (entry != 0) {
+                    insertSlot(entry - 1);
+                }
+            }
+        }
+        insertSlot(row);
+    }
+
+    private void insertSlot(int row) {
+        int mask = rowTable.length - 1;
+        int slot = hash(getKey(row)) & mask;
+        while (rowTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        rowTable[slot] = row + 1;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private final List<String> headerNames;
+    private final int indexColumn;
+    private final MetadataColumn[] columns;
+
+    private int rowCount = 0;
+    private int[] rowTable = new int[1024];
+}
@@ -0,0 +1,107 @@
+package network.artic.clusterfunk.metadata;
+
+import java.util.*;
+
+/**
+ * A compact set of names (e.g., taxon names or index values) kept in the order they were added. The names are in
+ * an array with an open addressing hash table of positions in it (as MetadataTable indexes its rows) so there is
+ * no entry object per name. Names can't be removed.
+ */
+public class NameSet extends AbstractSet<String> {
+
+    public NameSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of names expected
+     */
+    public NameSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+        names = new String[capacity / 2];
+        table = new int[capacity];
+    }
+
+    @Override
+    public boolean add(String name) {
+        if (contains(name)) {
+            return false;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = name;
+        size++;
+        if (size * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int i = 0; i < size; i++) {
+                insertSlot(i);
+            }
+        } else {
+            insertSlot(size - 1);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int slot = hash((String)o) & mask;
+        while (table[slot] != 0) {
+            if (names[table[slot] - 1].equals(o)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public String next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return names[index++];
+            }
+
+            private int index = 0;
+        };
+    }
+
+    private void insertSlot(int index) {
+        int mask = table.length - 1;
+        int slot = hash(names[index]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private String[] names;
+    private int[] table;
+    private int size = 0;
+}
@@ -0,0 +1,30 @@
+package network.artic.clusterfunk.trees;
+
+/**
+ * Parses the text of node annotations (the contents of NEXUS [&key=value,...] comments). NodeAttributes uses
+ * this to parse annotations that were kept as text when the tree was read.
+ */
+public interface AnnotationParser {
+
+    /**
+     * Finds the key/value pairs in an annotation without parsing the values
+     * @param bytes
+     * @param start
+     * @param end
+     * @param handler given each key and the range of its value (an empty range for a key without a value)
+     */
+    void scanMetaComment(byte[] bytes, int start, int end, KeyHandler handler);
+
+    /**
+     * Parses a single value
+     * @param bytes
+     * @param start
+     * @param end
+     * @return the value (Integer, Double, Boolean, String, Color or Object[])
+     */
+    Object parseValue(byte[] bytes, int start, int end);
+
+    interface KeyHandler {
+        void key(String key, int valueStart, int valueEnd);
+    }
+}
@@ -0,0 +1,768 @@
+package network.artic.clusterfunk.trees;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.util.AttributableHelper;
+
+import java.util.*;
+
+/**
+ * A rooted tree stored as arrays indexed by node rather than as an object per node. Nodes are numbered in
+ * post-order (children before their parents, the root last) and linked by parent, first child and next
+ * sibling indices. Node attributes are stored in columns (see NodeAttributes) and the Node objects passed
+ * through the jebl RootedTree interface are created on demand and just hold the index. The topology can't be
+ * changed once built (use jebl's MutableRootedTree to edit a copy), only the branch lengths, attributes and
+ * taxa.
+ *
+ * Behaves the same as jebl's SimpleRootedTree: heights are calculated from the lengths when first asked for
+ * and, once they have been, getEdgeLength() gives the difference in heights.
+ */
+public class ArrayRootedTree implements RootedTree {
+
+    ArrayRootedTree(int nodeCount, int[] parents, int[] firstChildren, int[] nextSiblings, double[] lengths,
+                    Taxon[] taxa, int[] tips, boolean hasLengths, NodeAttributes attributes) {
+        this.nodeCount = nodeCount;
+        this.parents = parents;
+        this.firstChildren = firstChildren;
+        this.nextSiblings = nextSiblings;
+        this.lengths = lengths;
+        this.taxa = taxa;
+        this.tips = tips;
+        this.hasLengths = hasLengths;
+        this.attributes = attributes;
+
+        buildTaxonTable();
+    }
+
+    // Index based access
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getExternalNodeCount() {
+        return tips.length;
+    }
+
+    public int getRootIndex() {
+        return nodeCount - 1;
+    }
+
+    /**
+     * @return the index of the parent or -1 for the root
+     */
+    public int getParentIndex(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @return the index of the first child or -1 for a tip
+     */
+    public int getFirstChildIndex(int node) {
+        return firstChildren[node];
+    }
+
+    /**
+     * @return the index of the next child of this node's parent or -1 if it is the last
+     */
+    public int getNextSiblingIndex(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * @return the index of the i'th tip in the order they were created
+     */
+    public int getExternalNodeIndex(int i) {
+        return tips[i];
+    }
+
+    public boolean isExternal(int node) {
+        return firstChildren[node] == -1;
+    }
+
+    public int getChildCount(int node) {
+        int count = 0;
+        for (int child = firstChildren[node]; child != -1; child = nextSiblings[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of tips below the node
+     */
+    public int getExternalNodeCount(int node) {
+        if (tipCounts == null) {
+            tipCounts = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                if (firstChildren[i] == -1) {
+                    tipCounts[i] += 1;
+                }
+                if (parents[i] != -1) {
+                    tipCounts[parents[i]] += tipCounts[i];
+                }
+            }
+        }
+        return tipCounts[node];
+    }
+
+    /**
+     * @return the index of the lowest numbered node in the subtree (the subtree is all the nodes from this up to
+     * the given node)
+     */
+    public int getFirstDescendantIndex(int node) {
+        while (firstChildren[node] != -1) {
+            node = firstChildren[node];
+        }
+        return node;
+    }
+
+    public double getLength(int node) {
+        if (!hasLengths) {
+            throw new IllegalArgumentException("This tree has no branch lengths");
+        }
+        return lengths[node];
+    }
+
+    public double getHeight(int node) {
+        if (!hasLengths) {
+            throw new IllegalArgumentException("This tree has no node heights");
+        }
+        if (!heightsKnown) {
+            calculateNodeHeights();
+        }
+        return heights[node];
+    }
+
+    public Taxon getTaxon(int node) {
+        return taxa[node];
+    }
+
+    /**
+     * @return the index of the tip with the taxon or -1 if not in the tree
+     */
+    public int getIndex(Taxon taxon) {
+        int mask = taxonTable.length - 1;
+        int slot = hash(taxon) & mask;
+        while (taxonTable[slot] != EMPTY) {
+            int node = taxonTable[slot] - 1;
+            if (node >= 0 && taxa[node] == taxon) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the Node object for an index
+     */
+    public Node getNode(int node) {
+        if (nodes == null) {
+            nodes = new TreeNode[nodeCount];
+        }
+        TreeNode n = nodes[node];
+        if (n == null) {
+            n = new TreeNode(node);
+            nodes[node] = n;
+        }
+        return n;
+    }
+
+    /**
+     * @return the index of a node of this tree
+     */
+    public int getIndex(Node node) {
+        if (node instanceof TreeNode && ((TreeNode) node).getTree() == this) {
+            return ((TreeNode) node).index;
+        }
+        throw new IllegalArgumentException("Node is not in this tree");
+    }
+
+    /**
+     * @return the column store of the node attributes
+     */
+    public NodeAttributes getNodeAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the value of a numeric node attribute (unboxed if it is stored in a DoubleColumn) or the default
+     * value if the node doesn't have it
+     */
+    public double getDoubleAttribute(Node node, String name, double defaultValue) {
+        return attributes.getDouble(getIndex(node), name, defaultValue);
+    }
+
+    public void setDoubleAttribute(Node node, String name, double value) {
+        attributes.setDouble(getIndex(node), name, value);
+    }
+
+    /**
+     * @return the value of an Integer node attribute or the default value if the node doesn't have it
+     */
+    public int getIntAttribute(Node node, String name, int defaultValue) {
+        return attributes.getInt(getIndex(node), name, defaultValue);
+    }
+
+    public void setIntAttribute(Node node, String name, int value) {
+        attributes.setInt(getIndex(node), name, value);
+    }
+
+    /**
+     * @return the value of a Boolean node attribute or the default value if the node doesn't have it
+     */
+    public boolean getBooleanAttribute(Node node, String name, boolean defaultValue) {
+        return attributes.getBoolean(getIndex(node), name, defaultValue);
+    }
+
+    public void setBooleanAttribute(Node node, String name, boolean value) {
+        attributes.setBoolean(getIndex(node), name, value);
+    }
+
+    public void setLength(Node node, double length) {
+        lengths[getIndex(node)] = length;
+        hasLengths = true;
+        heightsKnown = false;
+    }
+
+    public void setConceptuallyUnrooted(boolean conceptuallyUnrooted) {
+        this.conceptuallyUnrooted = conceptuallyUnrooted;
+    }
+
+    // RootedTree
+
+    @Override
+    public List<Node> getChildren(Node node) {
+        int index = getIndex(node);
+        List<Node> children = new ArrayList<>();
+        for (int child = firstChildren[index]; child != -1; child = nextSiblings[child]) {
+            children.add(getNode(child));
+        }
+        return children;
+    }
+
+    @Override
+    public int getExternalNodeCount(Node node) {
+        return getExternalNodeCount(getIndex(node));
+    }
+
+    @Override
+    public List<Node> getExternalNodes(Node node) {
+        int index = getIndex(node);
+        if (isExternal(index)) {
+            return Collections.singletonList(node);
+        }
+        // in post-order the tips of a subtree are in order between its first descendant and itself
+        List<Node> externalNodes = new ArrayList<>();
+        for (int i = getFirstDescendantIndex(index); i < index; i++) {
+            if (firstChildren[i] == -1) {
+                externalNodes.add(getNode(i));
+            }
+        }
+        return externalNodes;
+    }
+
+    @Override
+    public boolean hasHeights() {
+        return hasLengths;
+    }
+
+    @Override
+    public boolean isHeightsKnown() {
+        return heightsKnown;
+    }
+
+    @Override
+    public double getHeight(Node node) {
+        return getHeight(getIndex(node));
+    }
+
+    @Override
+    public boolean hasLengths() {
+        return hasLengths;
+    }
+
+    @Override
+    public boolean isLengthsKnown() {
+        return hasLengths;
+    }
+
+    @Override
+    public double getLength(Node node) {
+        return getLength(getIndex(node));
+    }
+
+    @Override
+    public Node getParent(Node node) {
+        int parent = parents[getIndex(node)];
+        return parent != -1 ? getNode(parent) : null;
+    }
+
+    @Override
+    public Node getRootNode() {
+        return getNode(getRootIndex());
+    }
+
+    @Override
+    public boolean conceptuallyUnrooted() {
+        return conceptuallyUnrooted;
+    }
+
+    @Override
+    public boolean isRoot(Node node) {
+        return getIndex(node) == getRootIndex();
+    }
+
+    // Tree
+
+    @Override
+    public Set<Node> getExternalNodes() {
+        return new NodeSet(true, false);
+    }
+
+    @Override
+    public Set<Node> getInternalNodes() {
+        return new NodeSet(false, true);
+    }
+
+    @Override
+    public Set<Edge> getExternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (int tip : tips) {
+            edges.add(new TreeEdge(tip));
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Edge> getInternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (int i = 0; i < getRootIndex(); i++) {
+            if (firstChildren[i] != -1) {
+                edges.add(new TreeEdge(i));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Taxon> getTaxa() {
+        if (taxonSet == null) {
+            Set<Taxon> taxonSet = new LinkedHashSet<>();
+            for (int tip : tips) {
+                taxonSet.add(taxa[tip]);
+            }
+            this.taxonSet = Collections.unmodifiableSet(taxonSet);
+        }
+        return taxonSet;
+    }
+
+    @Override
+    public Taxon getTaxon(Node node) {
+        return taxa[getIndex(node)];
+    }
+
+    @Override
+    public boolean isExternal(Node node) {
+        return isExternal(getIndex(node));
+    }
+
+    @Override
+    public Node getNode(Taxon taxon) {
+        int node = getIndex(taxon);
+        return node != -1 ? getNode(node) : null;
+    }
+
+    @Override
+    public void renameTaxa(Taxon from, Taxon to) {
+        int node = getIndex(from);
+        if (node == -1) {
+            throw new IllegalArgumentException("Unknown taxon " + from + "; can't rename to " + to);
+        }
+
+        // leave a marker in the old slot so lookups of other taxa carry on past it
+        int mask = taxonTable.length - 1;
+        int slot = hash(from) & mask;
+        while (taxonTable[slot] != node + 1) {
+            slot = (slot + 1) & mask;
+        }
+        taxonTable[slot] = REMOVED;
+        removedCount++;
+
+        taxa[node] = to;
+        insertTaxon(node);
+        if ((tips.length + removedCount) * 4 > taxonTable.length * 3) {
+            buildTaxonTable();
+        }
+        taxonSet = null;
+    }
+
+    // Graph
+
+    @Override
+    public List<Edge> getEdges(Node node) {
+        int index = getIndex(node);
+        List<Edge> edges = new ArrayList<>();
+        for (int child = firstChildren[index]; child != -1; child = nextSiblings[child]) {
+            edges.add(new TreeEdge(child));
+        }
+        if (parents[index] != -1) {
+            edges.add(new TreeEdge(index));
+        }
+        return edges;
+    }
+
+    @Override
+    public List<Node> getAdjacencies(Node node) {
+        int index = getIndex(node);
+        List<Node> adjacencies = new ArrayList<>();
+        for (int child = firstChildren[index]; child != -1; child = nextSiblings[child]) {
+            adjacencies.add(getNode(child));
+        }
+        if (parents[index] != -1) {
+            adjacencies.add(getNode(parents[index]));
+        }
+        return adjacencies;
+    }
+
+    @Override
+    public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
+        int index1 = getIndex(node1);
+        int index2 = getIndex(node2);
+        if (parents[index1] == index2) {
+            return new TreeEdge(index1);
+        } else if (parents[index2] == index1) {
+            return new TreeEdge(index2);
+        }
+        throw new NoEdgeException();
+    }
+
+    @Override
+    public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
+        int index1 = getIndex(node1);
+        int index2 = getIndex(node2);
+        if (parents[index1] == index2) {
+            return heightsKnown ? heights[index2] - heights[index1] : lengths[index1];
+        } else if (parents[index2] == index1) {
+            return heightsKnown ? heights[index1] - heights[index2] : lengths[index2];
+        }
+        throw new NoEdgeException();
+    }
+
+    @Override
+    public Node[] getNodes(Edge edge) {
+        if (edge instanceof TreeEdge && ((TreeEdge) edge).getTree() == this) {
+            int node = ((TreeEdge) edge).index;
+            return new Node[] { getNode(node), getNode(parents[node]) };
+        }
+        return null;
+    }
+
+    @Override
+    public Set<Node> getNodes() {
+        return new NodeSet(true, true);
+    }
+
+    @Override
+    public Set<Edge> getEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            int index = getIndex(node);
+            if (parents[index] != -1) {
+                edges.add(new TreeEdge(index));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Node> getNodes(int degree) {
+        Set<Node> nodes = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (node.getDegree() == degree) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    // Attributable
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        helper.setAttribute(name, value);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return helper.getAttribute(name);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        helper.removeAttribute(name);
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return helper.getAttributeNames();
+    }
+
+    @Override
+    public Map<String, Object> getAttributeMap() {
+        return helper.getAttributeMap();
+    }
+
+    /**
+     * Calculates the heights from the lengths in the same way as SimpleRootedTree (negative lengths are
+     * treated as zero and the highest tip is at height 0)
+     */
+    private void calculateNodeHeights() {
+        if (heights == null) {
+            heights = new double[nodeCount];
+        }
+
+        // parents come after their children so going backwards visits each parent first
+        int root = getRootIndex();
+        heights[root] = lengths[root] > 0.0 ? lengths[root] : 0.0;
+        for (int i = root - 1; i >= 0; i--) {
+            double depth = heights[parents[i]];
+            if (lengths[i] > 0.0) {
+                depth += lengths[i];
+            }
+            heights[i] = depth;
+        }
+
+        double maxDepth = 0.0;
+        for (int tip : tips) {
+            if (heights[tip] > maxDepth) {
+                maxDepth = heights[tip];
+            }
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            heights[i] = maxDepth - heights[i];
+        }
+        heightsKnown = true;
+    }
+
+    private void buildTaxonTable() {
+        int size = 16;
+        while (size < tips.length * 2) {
+            size <<= 1;
+        }
+        taxonTable = new int[size];
+        removedCount = 0;
+        for (int tip : tips) {
+            if (getIndex(taxa[tip]) != -1) {
+                throw new IllegalArgumentException("duplicate taxon " + taxa[tip].getName());
+            }
+            insertTaxon(tip);
+        }
+    }
+
+    private void insertTaxon(int node) {
+        int mask = taxonTable.length - 1;
+        int slot = hash(taxa[node]) & mask;
+        while (taxonTable[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (taxonTable[slot] == REMOVED) {
+            removedCount--;
+        }
+        taxonTable[slot] = node + 1;
+    }
+
+    private static int hash(Taxon taxon) {
+        int h = taxon.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A node of this tree - just the index into the arrays
+     */
+    private class TreeNode implements Node {
+        TreeNode(int index) {
+            this.index = index;
+        }
+
+        ArrayRootedTree getTree() {
+            return ArrayRootedTree.this;
+        }
+
+        @Override
+        public int getDegree() {
+            return getChildCount(index) + (parents[index] == -1 ? 0 : 1);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.setAttribute(index, name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.getAttribute(index, name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.removeAttribute(index, name);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return attributes.getAttributeNames(index);
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return attributes.getAttributeMap(index);
+        }
+
+        private final int index;
+    }
+
+    /**
+     * The branch above a node. As in SimpleRootedTree, attributes of the branch are those of the node.
+     */
+    private class TreeEdge implements Edge {
+        TreeEdge(int index) {
+            this.index = index;
+        }
+
+        ArrayRootedTree getTree() {
+            return ArrayRootedTree.this;
+        }
+
+        @Override
+        public double getLength() {
+            return lengths[index];
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.setAttribute(index, name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.getAttribute(index, name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.removeAttribute(index, name);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return attributes.getAttributeNames(index);
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return attributes.getAttributeMap(index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TreeEdge && ((TreeEdge) o).getTree() == getTree() && ((TreeEdge) o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        private final int index;
+    }
+
+    /**
+     * A read only view of the internal and/or external nodes. The internal nodes come first (in post-order)
+     * followed by the tips in the order they were created, as SimpleRootedTree.getNodes().
+     */
+    private class NodeSet extends AbstractSet<Node> {
+        NodeSet(boolean external, boolean internal) {
+            this.external = external;
+            this.internal = internal;
+        }
+
+        @Override
+        public Iterator<Node> iterator() {
+            return new Iterator<Node>() {
+                @Override
+                public boolean hasNext() {
+                    if (internal && nextInternal < nodeCount) {
+                        while (nextInternal < nodeCount && firstChildren[nextInternal] == -1) {
+                            nextInternal++;
+                        }
+                        if (nextInternal < nodeCount) {
+                            return true;
+                        }
+                    }
+                    return external && nextTip < tips.length;
+                }
+
+                @Override
+                public Node next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    if (internal && nextInternal < nodeCount) {
+                        return getNode(nextInternal++);
+                    }
+                    return getNode(tips[nextTip++]);
+                }
+
+                private int nextInternal = 0;
+                private int nextTip = 0;
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof TreeNode) || ((TreeNode) o).getTree() != ArrayRootedTree.this) {
+                return false;
+            }
+            return isExternal(((TreeNode) o).index) ? external : internal;
+        }
+
+        @Override
+        public int size() {
+            return (external ? tips.length : 0) + (internal ? nodeCount - tips.length : 0);
+        }
+
+        private final boolean external;
+        private final boolean internal;
+    }
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private final int nodeCount;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final double[] lengths;
+    private final Taxon[] taxa;
+    private final int[] tips;
+    private final NodeAttributes attributes;
+
+    private final AttributableHelper helper = new AttributableHelper();
+
+    private boolean hasLengths;
+    private boolean heightsKnown = false;
+    private boolean conceptuallyUnrooted = false;
+
+    private double[] heights = null;
+    private int[] tipCounts = null;
+    private TreeNode[] nodes = null;
+
+    private int[] taxonTable;
+    private int removedCount = 0;
+    private Set<Taxon> taxonSet = null;
+}
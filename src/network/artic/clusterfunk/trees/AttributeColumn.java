@@ -0,0 +1,45 @@
+package network.artic.clusterfunk.trees;
+
+/**
+ * The values of one attribute for every node of a tree, indexed by node index.
+ */
+public abstract class AttributeColumn {
+
+    AttributeColumn(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value at a node or null if the node doesn't have one
+     */
+    public abstract Object get(int node);
+
+    /**
+     * @return true if the node has a value
+     */
+    public abstract boolean has(int node);
+
+    /**
+     * Sets the value at a node.
+     * @return false if this type of column can't hold the value (the caller should replace it with a more general one)
+     */
+    abstract boolean set(int node, Object value);
+
+    abstract void remove(int node);
+
+    /**
+     * @return the number of nodes the column has room for
+     */
+    abstract int capacity();
+
+    /**
+     * Makes room for at least the given number of nodes
+     */
+    abstract void ensureCapacity(int capacity);
+
+    private final String name;
+}
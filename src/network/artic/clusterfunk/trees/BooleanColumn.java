@@ -0,0 +1,66 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.BitSet;
+
+/**
+ * An attribute column for Boolean values stored as two bit sets (which nodes have a value and which values are
+ * true).
+ */
+public class BooleanColumn extends AttributeColumn {
+
+    BooleanColumn(String name, int capacity) {
+        super(name);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public Object get(int node) {
+        return has(node) ? (Boolean)values.get(node) : null;
+    }
+
+    @Override
+    public boolean has(int node) {
+        return present.get(node);
+    }
+
+    /**
+     * @return the value at a node or the default value if it doesn't have one
+     */
+    public boolean getBoolean(int node, boolean defaultValue) {
+        return has(node) ? values.get(node) : defaultValue;
+    }
+
+    @Override
+    boolean set(int node, Object value) {
+        if (!(value instanceof Boolean)) {
+            return false;
+        }
+        setBoolean(node, (Boolean)value);
+        return true;
+    }
+
+    void setBoolean(int node, boolean value) {
+        values.set(node, value);
+        present.set(node);
+    }
+
+    @Override
+    void remove(int node) {
+        present.clear(node);
+        values.clear(node);
+    }
+
+    @Override
+    int capacity() {
+        return capacity;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        this.capacity = Math.max(capacity, this.capacity);
+    }
+
+    private final BitSet present = new BitSet();
+    private final BitSet values = new BitSet();
+    private int capacity;
+}
@@ -0,0 +1,100 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.*;
+
+/**
+ * An attribute column for String values that stores an int code per node and each distinct value once. The
+ * codes start at 1 (0 is no value) so two nodes have the same value if they have the same code.
+ */
+public class DictionaryColumn extends AttributeColumn {
+    /**
+     * The most distinct values before the column gives up (and is replaced by an ObjectColumn)
+     */
+    private static final int MAX_VALUE_COUNT = 1 << 16;
+
+    DictionaryColumn(String name, int capacity) {
+        super(name);
+        codes = new int[capacity];
+        values.add(null);
+    }
+
+    @Override
+    public Object get(int node) {
+        return node < codes.length ? values.get(codes[node]) : null;
+    }
+
+    @Override
+    public boolean has(int node) {
+        return node < codes.length && codes[node] != 0;
+    }
+
+    /**
+     * @return the code of the value at a node or 0 if it doesn't have one
+     */
+    public int getCode(int node) {
+        return node < codes.length ? codes[node] : 0;
+    }
+
+    /**
+     * @return the code for a value or 0 if no node has this value
+     */
+    public int getCode(Object value) {
+        Integer code = valueCodes.get(value);
+        return code != null ? code : 0;
+    }
+
+    /**
+     * @return the value for a code
+     */
+    public Object getValue(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * @return the number of distinct values (the codes are 1 to this)
+     */
+    public int getValueCount() {
+        return values.size() - 1;
+    }
+
+    @Override
+    boolean set(int node, Object value) {
+        if (!(value instanceof String)) {
+            return false;
+        }
+        Integer code = valueCodes.get(value);
+        if (code == null) {
+            if (values.size() > MAX_VALUE_COUNT) {
+                return false;
+            }
+            code = values.size();
+            values.add(value);
+            valueCodes.put(value, code);
+        }
+        codes[node] = code;
+        return true;
+    }
+
+    @Override
+    void remove(int node) {
+        if (node < codes.length) {
+            codes[node] = 0;
+        }
+    }
+
+    @Override
+    int capacity() {
+        return codes.length;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity > codes.length) {
+            codes = Arrays.copyOf(codes, Math.max(capacity, codes.length * 2));
+        }
+    }
+
+    private int[] codes;
+    private final List<Object> values = new ArrayList<>();
+    private final Map<Object, Integer> valueCodes = new HashMap<>();
+}
@@ -0,0 +1,66 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An attribute column for Double values stored unboxed in a double array.
+ */
+public class DoubleColumn extends AttributeColumn {
+
+    DoubleColumn(String name, int capacity) {
+        super(name);
+        values = new double[capacity];
+    }
+
+    @Override
+    public Object get(int node) {
+        return has(node) ? values[node] : null;
+    }
+
+    @Override
+    public boolean has(int node) {
+        return present.get(node);
+    }
+
+    /**
+     * @return the value at a node or the default value if it doesn't have one
+     */
+    public double getDouble(int node, double defaultValue) {
+        return has(node) ? values[node] : defaultValue;
+    }
+
+    @Override
+    boolean set(int node, Object value) {
+        if (!(value instanceof Double)) {
+            return false;
+        }
+        setDouble(node, (Double)value);
+        return true;
+    }
+
+    void setDouble(int node, double value) {
+        values[node] = value;
+        present.set(node);
+    }
+
+    @Override
+    void remove(int node) {
+        present.clear(node);
+    }
+
+    @Override
+    int capacity() {
+        return values.length;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    private double[] values;
+    private final BitSet present = new BitSet();
+}
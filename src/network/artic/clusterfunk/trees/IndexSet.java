@@ -0,0 +1,725 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.*;
+
+/**
+ * A compressed set of non-negative ints (e.g., the numbers of nodes in a TreeTraversal or coded states) for fast
+ * unions and intersections. The indices are split into chunks of 65536 by their top 16 bits and each chunk is kept
+ * in whichever is smallest of a sorted array (up to 4096 indices), a bitmap or a list of runs (as in Roaring
+ * bitmaps). As the nodes below a node are a range of the pre-order numbers, a clade is a single run. Indices can't
+ * be removed except by retainAll.
+ */
+public class IndexSet extends AbstractSet<Integer> {
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORD_COUNT = 1024;
+
+    public IndexSet() {
+        keys = new char[4];
+        containers = new Container[4];
+    }
+
+    /**
+     * @return a set of the indices from start up to (but not including) end
+     */
+    public static IndexSet range(int start, int end) {
+        IndexSet set = new IndexSet();
+        set.addRange(start, end);
+        return set;
+    }
+
+    @Override
+    public boolean add(Integer index) {
+        return add(index.intValue());
+    }
+
+    public boolean add(int index) {
+        checkIndex(index);
+        int i = getContainerIndex(index >>> 16);
+        if (i < 0) {
+            insertContainer(-i - 1, (char)(index >>> 16), new ArrayContainer(new char[] { (char)index }, 1));
+            return true;
+        }
+        Container container = containers[i];
+        if (container.contains(index & 0xFFFF)) {
+            return false;
+        }
+        containers[i] = container.add(index & 0xFFFF);
+        return true;
+    }
+
+    /**
+     * Adds the indices from start up to (but not including) end
+     */
+    public void addRange(int start, int end) {
+        checkIndex(start);
+        if (end <= start) {
+            return;
+        }
+        int last = end - 1;
+        for (int high = start >>> 16; high <= last >>> 16; high++) {
+            int from = (high == start >>> 16 ? start & 0xFFFF : 0);
+            int to = (high == last >>> 16 ? last & 0xFFFF : 0xFFFF);
+            Container run = new RunContainer(new char[] { (char)from }, new char[] { (char)to }, 1);
+            int i = getContainerIndex(high);
+            if (i < 0) {
+                insertContainer(-i - 1, (char)high, run);
+            } else {
+                containers[i] = or(containers[i], run);
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer && contains(((Integer)o).intValue());
+    }
+
+    public boolean contains(int index) {
+        if (index < 0) {
+            return false;
+        }
+        int i = getContainerIndex(index >>> 16);
+        return i >= 0 && containers[i].contains(index & 0xFFFF);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size += containers[i].getCardinality();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return a new set of the indices in either set
+     */
+    public IndexSet or(IndexSet other) {
+        IndexSet union = new IndexSet();
+        int i = 0;
+        int j = 0;
+        while (i < count || j < other.count) {
+            if (j == other.count || (i < count && keys[i] < other.keys[j])) {
+                union.appendContainer(keys[i], containers[i].copy());
+                i++;
+            } else if (i == count || other.keys[j] < keys[i]) {
+                union.appendContainer(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                union.appendContainer(keys[i], or(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return union;
+    }
+
+    /**
+     * @return a new set of the indices in both sets
+     */
+    public IndexSet and(IndexSet other) {
+        IndexSet intersection = new IndexSet();
+        int i = 0;
+        int j = 0;
+        while (i < count && j < other.count) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (other.keys[j] < keys[i]) {
+                j++;
+            } else {
+                Container container = and(containers[i], other.containers[j]);
+                if (container.getCardinality() > 0) {
+                    intersection.appendContainer(keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return intersection;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> c) {
+        if (!(c instanceof IndexSet)) {
+            return super.addAll(c);
+        }
+        int size = size();
+        replaceWith(or((IndexSet)c));
+        return size() != size;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        IndexSet other;
+        if (c instanceof IndexSet) {
+            other = (IndexSet)c;
+        } else {
+            other = new IndexSet();
+            for (Object o : c) {
+                if (o instanceof Integer && (Integer)o >= 0) {
+                    other.add(((Integer)o).intValue());
+                }
+            }
+        }
+        int size = size();
+        replaceWith(and(other));
+        return size() != size;
+    }
+
+    /**
+     * @return the indices in ascending order
+     */
+    public PrimitiveIterator.OfInt intIterator() {
+        return new PrimitiveIterator.OfInt() {
+            @Override
+            public boolean hasNext() {
+                return position < valueCount || container < count;
+            }
+
+            @Override
+            public int nextInt() {
+                if (position == valueCount) {
+                    if (container == count) {
+                        throw new NoSuchElementException();
+                    }
+                    if (values.length < containers[container].getCardinality()) {
+                        values = new char[containers[container].getCardinality()];
+                    }
+                    valueCount = containers[container].getValues(values);
+                    high = keys[container] << 16;
+                    position = 0;
+                    container++;
+                }
+                return high | values[position++];
+            }
+
+            private char[] values = new char[0];
+            private int valueCount = 0;
+            private int position = 0;
+            private int container = 0;
+            private int high = 0;
+        };
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    private static void checkIndex(int index) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Indices must not be negative: " + index);
+        }
+    }
+
+    private int getContainerIndex(int high) {
+        int low = 0;
+        int top = count - 1;
+        while (low <= top) {
+            int mid = (low + top) >>> 1;
+            if (keys[mid] < high) {
+                low = mid + 1;
+            } else if (keys[mid] > high) {
+                top = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insertContainer(int i, char key, Container container) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            containers = Arrays.copyOf(containers, count * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, count - i);
+        System.arraycopy(containers, i, containers, i + 1, count - i);
+        keys[i] = key;
+        containers[i] = container;
+        count++;
+    }
+
+    private void appendContainer(char key, Container container) {
+        insertContainer(count, key, container);
+    }
+
+    private void replaceWith(IndexSet other) {
+        keys = other.keys;
+        containers = other.containers;
+        count = other.count;
+    }
+
+    private static Container or(Container container1, Container container2) {
+        if (container1 instanceof ArrayContainer && container2 instanceof ArrayContainer) {
+            ArrayContainer array1 = (ArrayContainer)container1;
+            ArrayContainer array2 = (ArrayContainer)container2;
+            if (array1.size + array2.size <= ARRAY_MAX) {
+                return array1.or(array2);
+            }
+        } else if (container1 instanceof RunContainer && container2 instanceof RunContainer) {
+            return optimize(((RunContainer)container1).or((RunContainer)container2));
+        }
+        long[] words = new long[WORD_COUNT];
+        container1.setBits(words);
+        container2.setBits(words);
+        return optimize(new BitmapContainer(words));
+    }
+
+    private static Container and(Container container1, Container container2) {
+        if (container1 instanceof ArrayContainer) {
+            return ((ArrayContainer)container1).and(container2);
+        }
+        if (container2 instanceof ArrayContainer) {
+            return ((ArrayContainer)container2).and(container1);
+        }
+        if (container1 instanceof RunContainer && container2 instanceof RunContainer) {
+            return optimize(((RunContainer)container1).and((RunContainer)container2));
+        }
+        long[] words1 = new long[WORD_COUNT];
+        long[] words2 = new long[WORD_COUNT];
+        container1.setBits(words1);
+        container2.setBits(words2);
+        for (int i = 0; i < WORD_COUNT; i++) {
+            words1[i] &= words2[i];
+        }
+        return optimize(new BitmapContainer(words1));
+    }
+
+    /**
+     * @return the container (or a copy of it) in whichever form is smallest
+     */
+    private static Container optimize(Container container) {
+        int cardinality = container.getCardinality();
+        int runCount = container.getRunCount();
+        int arraySize = (cardinality <= ARRAY_MAX ? cardinality * 2 : Integer.MAX_VALUE);
+        int runSize = runCount * 4;
+        int bitmapSize = WORD_COUNT * 8;
+
+        if (runSize < arraySize && runSize < bitmapSize) {
+            if (container instanceof RunContainer) {
+                return container;
+            }
+            char[] values = new char[cardinality];
+            container.getValues(values);
+            return RunContainer.fromValues(values, cardinality, runCount);
+        }
+        if (arraySize <= bitmapSize) {
+            if (container instanceof ArrayContainer) {
+                return container;
+            }
+            char[] values = new char[cardinality];
+            container.getValues(values);
+            return new ArrayContainer(values, cardinality);
+        }
+        if (container instanceof BitmapContainer) {
+            return container;
+        }
+        long[] words = new long[WORD_COUNT];
+        container.setBits(words);
+        return new BitmapContainer(words);
+    }
+
+    /**
+     * The indices in a chunk of 65536 (as the lower 16 bits in chars). Each container belongs to a single set.
+     */
+    private abstract static class Container {
+        abstract Container copy();
+
+        abstract int getCardinality();
+
+        abstract int getRunCount();
+
+        abstract boolean contains(int value);
+
+        /**
+         * @return the container with the value added (which may be a different type of container)
+         */
+        abstract Container add(int value);
+
+        /**
+         * Sets the bits of the values in a bitmap
+         */
+        abstract void setBits(long[] words);
+
+        /**
+         * Puts the values in an array in ascending order
+         * @return the number of values
+         */
+        abstract int getValues(char[] values);
+    }
+
+    private static class ArrayContainer extends Container {
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, size), size);
+        }
+
+        @Override
+        int getCardinality() {
+            return size;
+        }
+
+        @Override
+        int getRunCount() {
+            int runCount = (size > 0 ? 1 : 0);
+            for (int i = 1; i < size; i++) {
+                if (values[i] != values[i - 1] + 1) {
+                    runCount++;
+                }
+            }
+            return runCount;
+        }
+
+        @Override
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, 0, size, (char)value) >= 0;
+        }
+
+        @Override
+        Container add(int value) {
+            if (size == ARRAY_MAX) {
+                long[] words = new long[WORD_COUNT];
+                setBits(words);
+                return new BitmapContainer(words).add(value);
+            }
+            int i = -Arrays.binarySearch(values, 0, size, (char)value) - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(Math.max(size * 2, 4), ARRAY_MAX));
+            }
+            System.arraycopy(values, i, values, i + 1, size - i);
+            values[i] = (char)value;
+            size++;
+            return this;
+        }
+
+        ArrayContainer or(ArrayContainer other) {
+            char[] union = new char[size + other.size];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < size || j < other.size) {
+                if (j == other.size || (i < size && values[i] < other.values[j])) {
+                    union[k++] = values[i++];
+                } else if (i == size || other.values[j] < values[i]) {
+                    union[k++] = other.values[j++];
+                } else {
+                    union[k++] = values[i++];
+                    j++;
+                }
+            }
+            return new ArrayContainer(union, k);
+        }
+
+        ArrayContainer and(Container other) {
+            char[] intersection = new char[size];
+            int k = 0;
+            for (int i = 0; i < size; i++) {
+                if (other.contains(values[i])) {
+                    intersection[k++] = values[i];
+                }
+            }
+            return new ArrayContainer(intersection, k);
+        }
+
+        @Override
+        void setBits(long[] words) {
+            for (int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        @Override
+        int getValues(char[] values) {
+            System.arraycopy(this.values, 0, values, 0, size);
+            return size;
+        }
+
+        private char[] values;
+        private int size;
+    }
+
+    private static class BitmapContainer extends Container {
+        BitmapContainer(long[] words) {
+            this.words = words;
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone());
+        }
+
+        @Override
+        int getCardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int getRunCount() {
+            // a run starts at each set bit whose previous bit is clear
+            int runCount = 0;
+            long previous = 0;
+            for (long word : words) {
+                runCount += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+            return runCount;
+        }
+
+        @Override
+        boolean contains(int value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(int value) {
+            if (!contains(value)) {
+                words[value >>> 6] |= 1L << value;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        void setBits(long[] words) {
+            for (int i = 0; i < WORD_COUNT; i++) {
+                words[i] |= this.words[i];
+            }
+        }
+
+        @Override
+        int getValues(char[] values) {
+            int k = 0;
+            for (int i = 0; i < WORD_COUNT; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[k++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return k;
+        }
+
+        private final long[] words;
+        private int cardinality;
+    }
+
+    private static class RunContainer extends Container {
+        /**
+         * @param starts the first value of each run (ascending)
+         * @param lasts the last value of each run (so a run can end at 65535)
+         * @param runCount the number of runs
+         */
+        RunContainer(char[] starts, char[] lasts, int runCount) {
+            this.starts = starts;
+            this.lasts = lasts;
+            this.runCount = runCount;
+        }
+
+        @Override
+        Container copy() {
+            return new RunContainer(Arrays.copyOf(starts, runCount), Arrays.copyOf(lasts, runCount), runCount);
+        }
+
+        static RunContainer fromValues(char[] values, int size, int runCount) {
+            char[] starts = new char[runCount];
+            char[] lasts = new char[runCount];
+            int k = -1;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    k++;
+                    starts[k] = values[i];
+                }
+                lasts[k] = values[i];
+            }
+            return new RunContainer(starts, lasts, runCount);
+        }
+
+        @Override
+        int getCardinality() {
+            int cardinality = 0;
+            for (int i = 0; i < runCount; i++) {
+                cardinality += lasts[i] - starts[i] + 1;
+            }
+            return cardinality;
+        }
+
+        @Override
+        int getRunCount() {
+            return runCount;
+        }
+
+        /**
+         * @return the last run starting at or before a value or -1
+         */
+        private int findRun(int value) {
+            int low = 0;
+            int high = runCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low - 1;
+        }
+
+        @Override
+        boolean contains(int value) {
+            int i = findRun(value);
+            return i >= 0 && value <= lasts[i];
+        }
+
+        @Override
+        Container add(int value) {
+            int i = findRun(value);
+            if (i >= 0 && value <= lasts[i]) {
+                return this;
+            }
+            boolean joinsPrevious = i >= 0 && lasts[i] + 1 == value;
+            boolean joinsNext = i + 1 < runCount && starts[i + 1] - 1 == value;
+
+            char[] newStarts;
+            char[] newLasts;
+            int newCount;
+            if (joinsPrevious && joinsNext) {
+                newStarts = new char[runCount - 1];
+                newLasts = new char[runCount - 1];
+                System.arraycopy(starts, 0, newStarts, 0, i + 1);
+                System.arraycopy(lasts, 0, newLasts, 0, i);
+                newLasts[i] = lasts[i + 1];
+                System.arraycopy(starts, i + 2, newStarts, i + 1, runCount - i - 2);
+                System.arraycopy(lasts, i + 2, newLasts, i + 1, runCount - i - 2);
+                newCount = runCount - 1;
+            } else if (joinsPrevious || joinsNext) {
+                newStarts = Arrays.copyOf(starts, runCount);
+                newLasts = Arrays.copyOf(lasts, runCount);
+                if (joinsPrevious) {
+                    newLasts[i] = (char)value;
+                } else {
+                    newStarts[i + 1] = (char)value;
+                }
+                newCount = runCount;
+            } else {
+                newStarts = new char[runCount + 1];
+                newLasts = new char[runCount + 1];
+                System.arraycopy(starts, 0, newStarts, 0, i + 1);
+                System.arraycopy(lasts, 0, newLasts, 0, i + 1);
+                newStarts[i + 1] = (char)value;
+                newLasts[i + 1] = (char)value;
+                System.arraycopy(starts, i + 1, newStarts, i + 2, runCount - i - 1);
+                System.arraycopy(lasts, i + 1, newLasts, i + 2, runCount - i - 1);
+                newCount = runCount + 1;
+            }
+            return new RunContainer(newStarts, newLasts, newCount);
+        }
+
+        RunContainer or(RunContainer other) {
+            char[] newStarts = new char[runCount + other.runCount];
+            char[] newLasts = new char[runCount + other.runCount];
+            int k = -1;
+            int i = 0;
+            int j = 0;
+            while (i < runCount || j < other.runCount) {
+                int start;
+                int last;
+                if (j == other.runCount || (i < runCount && starts[i] <= other.starts[j])) {
+                    start = starts[i];
+                    last = lasts[i];
+                    i++;
+                } else {
+                    start = other.starts[j];
+                    last = other.lasts[j];
+                    j++;
+                }
+                if (k >= 0 && start <= newLasts[k] + 1) {
+                    // overlaps or touches the previous run
+                    newLasts[k] = (char)Math.max(newLasts[k], last);
+                } else {
+                    k++;
+                    newStarts[k] = (char)start;
+                    newLasts[k] = (char)last;
+                }
+            }
+            return new RunContainer(newStarts, newLasts, k + 1);
+        }
+
+        RunContainer and(RunContainer other) {
+            char[] newStarts = new char[runCount + other.runCount];
+            char[] newLasts = new char[runCount + other.runCount];
+            int k = 0;
+            int i = 0;
+            int j = 0;
+            while (i < runCount && j < other.runCount) {
+                int start = Math.max(starts[i], other.starts[j]);
+                int last = Math.min(lasts[i], other.lasts[j]);
+                if (start <= last) {
+                    newStarts[k] = (char)start;
+                    newLasts[k] = (char)last;
+                    k++;
+                }
+                if (lasts[i] < other.lasts[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return new RunContainer(newStarts, newLasts, k);
+        }
+
+        @Override
+        void setBits(long[] words) {
+            for (int i = 0; i < runCount; i++) {
+                int start = starts[i];
+                int end = lasts[i] + 1;
+                int firstWord = start >>> 6;
+                int lastWord = (end - 1) >>> 6;
+                if (firstWord == lastWord) {
+                    words[firstWord] |= (-1L << start) & (-1L >>> -end);
+                } else {
+                    words[firstWord] |= -1L << start;
+                    for (int w = firstWord + 1; w < lastWord; w++) {
+                        words[w] = -1L;
+                    }
+                    words[lastWord] |= -1L >>> -end;
+                }
+            }
+        }
+
+        @Override
+        int getValues(char[] values) {
+            int k = 0;
+            for (int i = 0; i < runCount; i++) {
+                for (int value = starts[i]; value <= lasts[i]; value++) {
+                    values[k++] = (char)value;
+                }
+            }
+            return k;
+        }
+
+        private final char[] starts;
+        private final char[] lasts;
+        private final int runCount;
+    }
+
+    private char[] keys;
+    private Container[] containers;
+    private int count = 0;
+}
@@ -0,0 +1,66 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An attribute column for Integer values (e.g., tip counts) stored unboxed in an int array.
+ */
+public class IntegerColumn extends AttributeColumn {
+
+    IntegerColumn(String name, int capacity) {
+        super(name);
+        values = new int[capacity];
+    }
+
+    @Override
+    public Object get(int node) {
+        return has(node) ? values[node] : null;
+    }
+
+    @Override
+    public boolean has(int node) {
+        return present.get(node);
+    }
+
+    /**
+     * @return the value at a node or the default value if it doesn't have one
+     */
+    public int getInt(int node, int defaultValue) {
+        return has(node) ? values[node] : defaultValue;
+    }
+
+    @Override
+    boolean set(int node, Object value) {
+        if (!(value instanceof Integer)) {
+            return false;
+        }
+        setInt(node, (Integer)value);
+        return true;
+    }
+
+    void setInt(int node, int value) {
+        values[node] = value;
+        present.set(node);
+    }
+
+    @Override
+    void remove(int node) {
+        present.clear(node);
+    }
+
+    @Override
+    int capacity() {
+        return values.length;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    private int[] values;
+    private final BitSet present = new BitSet();
+}
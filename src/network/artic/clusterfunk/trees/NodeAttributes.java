@@ -0,0 +1,481 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * The attributes of all the nodes of a tree stored as one column per attribute name rather than a map per
+ * node. The attribute names of a node are given in the order they were set on it (as they would be with a
+ * map per node). This is the order of the columns for almost all nodes so only the nodes where it differs keep
+ * their own list of names.
+ *
+ * Columns holding Strings are dictionary encoded (see DictionaryColumn) and Double, Integer and Boolean values are
+ * stored unboxed (see DoubleColumn, IntegerColumn and BooleanColumn). The type of a column is set by the first
+ * value and it changes to an ObjectColumn if a value of another type is set.
+ *
+ * The attributes can also be given as the text of the annotations read from a tree file (see addAnnotation). The
+ * text is only scanned for the attribute names when the attributes are first used and the values of an attribute
+ * are only parsed when it is first asked for, so attributes that are never used are never parsed.
+ */
+public class NodeAttributes {
+
+    public NodeAttributes(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the column for an attribute name or null if no node has had it set
+     */
+    public AttributeColumn getColumn(String name) {
+        scanAnnotations();
+        return parseColumn(columns.get(name));
+    }
+
+    /**
+     * @return the columns in the order they were created
+     */
+    public Collection<AttributeColumn> getColumns() {
+        scanAnnotations();
+        for (AttributeColumn column : new ArrayList<>(columns.values())) {
+            parseColumn(column);
+        }
+        return Collections.unmodifiableCollection(columns.values());
+    }
+
+    public Object getAttribute(int node, String name) {
+        scanAnnotations();
+        AttributeColumn column = parseColumn(columns.get(name));
+        return column != null ? column.get(node) : null;
+    }
+
+    public void setAttribute(int node, String name, Object value) {
+        scanAnnotations();
+        AttributeColumn column = parseColumn(columns.get(name));
+        if (value == null) {
+            removeAttribute(node, name);
+            return;
+        }
+        if (column == null) {
+            column = createColumn(name, value, capacity);
+            columns.put(name, column);
+        } else {
+            column.ensureCapacity(capacity);
+        }
+        if (!column.has(node)) {
+            addName(node, column);
+        }
+        if (!column.set(node, value)) {
+            column = new ObjectColumn(column);
+            columns.put(name, column);
+            column.set(node, value);
+        }
+    }
+
+    /**
+     * @return the value of a Double (or other numeric) attribute or the default value if the node doesn't have one
+     */
+    public double getDouble(int node, String name, double defaultValue) {
+        AttributeColumn column = getColumn(name);
+        if (column instanceof DoubleColumn) {
+            return ((DoubleColumn)column).getDouble(node, defaultValue);
+        }
+        Object value = (column != null ? column.get(node) : null);
+        return value instanceof Number ? ((Number)value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * @return the value of an Integer attribute or the default value if the node doesn't have one
+     */
+    public int getInt(int node, String name, int defaultValue) {
+        AttributeColumn column = getColumn(name);
+        if (column instanceof IntegerColumn) {
+            return ((IntegerColumn)column).getInt(node, defaultValue);
+        }
+        Object value = (column != null ? column.get(node) : null);
+        return value instanceof Integer ? (Integer)value : defaultValue;
+    }
+
+    /**
+     * @return the value of a Boolean attribute or the default value if the node doesn't have one
+     */
+    public boolean getBoolean(int node, String name, boolean defaultValue) {
+        AttributeColumn column = getColumn(name);
+        if (column instanceof BooleanColumn) {
+            return ((BooleanColumn)column).getBoolean(node, defaultValue);
+        }
+        Object value = (column != null ? column.get(node) : null);
+        return value instanceof Boolean ? (Boolean)value : defaultValue;
+    }
+
+    /**
+     * Sets a Double attribute without boxing it if the column holds doubles
+     */
+    public void setDouble(int node, String name, double value) {
+        AttributeColumn column = getTypedColumn(node, name, DoubleColumn.class, DoubleColumn::new);
+        if (column != null) {
+            ((DoubleColumn)column).setDouble(node, value);
+        } else {
+            setAttribute(node, name, value);
+        }
+    }
+
+    /**
+     * Sets an Integer attribute without boxing it if the column holds ints
+     */
+    public void setInt(int node, String name, int value) {
+        AttributeColumn column = getTypedColumn(node, name, IntegerColumn.class, IntegerColumn::new);
+        if (column != null) {
+            ((IntegerColumn)column).setInt(node, value);
+        } else {
+            setAttribute(node, name, value);
+        }
+    }
+
+    /**
+     * Sets a Boolean attribute without boxing it if the column holds booleans
+     */
+    public void setBoolean(int node, String name, boolean value) {
+        AttributeColumn column = getTypedColumn(node, name, BooleanColumn.class, BooleanColumn::new);
+        if (column != null) {
+            ((BooleanColumn)column).setBoolean(node, value);
+        } else {
+            setAttribute(node, name, value);
+        }
+    }
+
+    /**
+     * Gets a column of the given type ready for a value to be set at a node
+     * @return the column or null if the column exists and is of another type
+     */
+    private AttributeColumn getTypedColumn(int node, String name, Class<? extends AttributeColumn> type,
+                                           BiFunction<String, Integer, AttributeColumn> constructor) {
+        AttributeColumn column = getColumn(name);
+        if (column == null) {
+            column = constructor.apply(name, capacity);
+            columns.put(name, column);
+        } else if (column.getClass() != type) {
+            return null;
+        }
+        column.ensureCapacity(capacity);
+        if (!column.has(node)) {
+            addName(node, column);
+        }
+        return column;
+    }
+
+    /**
+     * Creates a column for the type of the first value given to it
+     */
+    private static AttributeColumn createColumn(String name, Object value, int capacity) {
+        if (value instanceof String) {
+            // String values are usually repeated across many nodes (countries, lineages) so are dictionary encoded
+            return new DictionaryColumn(name, capacity);
+        } else if (value instanceof Double) {
+            return new DoubleColumn(name, capacity);
+        } else if (value instanceof Integer) {
+            return new IntegerColumn(name, capacity);
+        } else if (value instanceof Boolean) {
+            return new BooleanColumn(name, capacity);
+        }
+        return new ObjectColumn(name, capacity);
+    }
+
+    /**
+     * Replaces a column (e.g., with a more compact representation of the same values)
+     */
+    public void setColumn(AttributeColumn column) {
+        scanAnnotations();
+        columns.put(column.getName(), column);
+    }
+
+    public void removeAttribute(int node, String name) {
+        scanAnnotations();
+        AttributeColumn column = columns.get(name);
+        if (column != null) {
+            column.remove(node);
+        }
+        List<String> names = nodeNames.get(node);
+        if (names != null) {
+            names.remove(name);
+        }
+    }
+
+    public Set<String> getAttributeNames(int node) {
+        scanAnnotations();
+        List<String> names = nodeNames.get(node);
+        if (names != null) {
+            return new LinkedHashSet<>(names);
+        }
+        Set<String> nameSet = new LinkedHashSet<>();
+        for (AttributeColumn column : columns.values()) {
+            if (column.has(node)) {
+                nameSet.add(column.getName());
+            }
+        }
+        return nameSet;
+    }
+
+    /**
+     * Gets the columns holding the attributes of a node in the order of its attribute names without making a set
+     * of the names (e.g., for writing out the attributes of every node)
+     * @param node
+     * @param buffer filled with the columns - must have room for all of them (see getColumns())
+     * @return the number of columns
+     */
+    public int getColumns(int node, AttributeColumn[] buffer) {
+        scanAnnotations();
+        int count = 0;
+        List<String> names = nodeNames.get(node);
+        if (names != null) {
+            for (String name : names) {
+                buffer[count++] = parseColumn(columns.get(name));
+            }
+        } else {
+            for (AttributeColumn column : columns.values()) {
+                if (column.has(node)) {
+                    buffer[count++] = parseColumn(column);
+                }
+            }
+        }
+        return count;
+    }
+
+    public Map<String, Object> getAttributeMap(int node) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String name : getAttributeNames(node)) {
+            map.put(name, parseColumn(columns.get(name)).get(node));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Adds the text of an annotation of a node. The annotations are scanned in the order they were added (before
+     * anything else is done with the attributes) so the names are in the same order as if they had been set.
+     * @param node
+     * @param name the attribute name if the text is a single value or null if it is a list of key/value pairs
+     * @param bytes
+     * @param start
+     * @param end
+     */
+    void addAnnotation(int node, String name, byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (annotationLength + length > annotationText.length) {
+            annotationText = Arrays.copyOf(annotationText, Math.max(annotationLength + length, annotationText.length * 2));
+        }
+        System.arraycopy(bytes, start, annotationText, annotationLength, length);
+
+        if (annotationCount == annotationNodes.length) {
+            int size = annotationCount * 2;
+            annotationNodes = Arrays.copyOf(annotationNodes, size);
+            annotationNames = Arrays.copyOf(annotationNames, size);
+            annotationStarts = Arrays.copyOf(annotationStarts, size);
+            annotationEnds = Arrays.copyOf(annotationEnds, size);
+        }
+        annotationNodes[annotationCount] = node;
+        annotationNames[annotationCount] = name;
+        annotationStarts[annotationCount] = annotationLength;
+        annotationEnds[annotationCount] = annotationLength + length;
+        annotationCount++;
+        annotationLength += length;
+    }
+
+    /**
+     * @param parserFactory creates the parser for the annotations when they are first scanned
+     */
+    void setAnnotationParser(Supplier<? extends AnnotationParser> parserFactory) {
+        this.parserFactory = parserFactory;
+    }
+
+    /**
+     * Finds the attribute names in the annotations and makes a column for each one holding where the values are
+     * in the text.
+     */
+    private void scanAnnotations() {
+        if (annotationCount == 0 || parser != null) {
+            return;
+        }
+        if (parserFactory == null) {
+            throw new IllegalStateException("No parser for the node annotations");
+        }
+        parser = parserFactory.get();
+        for (int i = 0; i < annotationCount; i++) {
+            final int node = annotationNodes[i];
+            if (annotationNames[i] != null) {
+                setAnnotationValue(node, annotationNames[i], annotationStarts[i], annotationEnds[i]);
+            } else {
+                parser.scanMetaComment(annotationText, annotationStarts[i], annotationEnds[i],
+                        (key, valueStart, valueEnd) -> setAnnotationValue(node, key, valueStart, valueEnd));
+            }
+        }
+        annotationNodes = null;
+        annotationNames = null;
+        annotationStarts = null;
+        annotationEnds = null;
+        annotationCount = 0;
+    }
+
+    private void setAnnotationValue(int node, String name, int start, int end) {
+        AttributeColumn column = columns.get(name);
+        if (column == null) {
+            column = new AnnotationColumn(name, capacity);
+            columns.put(name, column);
+            unparsedCount++;
+        } else if (!(column instanceof AnnotationColumn)) {
+            setAttribute(node, name, end > start ? parser.parseValue(annotationText, start, end) : Boolean.TRUE);
+            return;
+        }
+        column.ensureCapacity(capacity);
+        if (!column.has(node)) {
+            addName(node, column);
+        }
+        ((AnnotationColumn)column).set(node, start, end);
+    }
+
+    /**
+     * Parses the values of a column that still holds where they are in the annotation text
+     * @return the parsed column (or the column if it isn't an annotation column)
+     */
+    private AttributeColumn parseColumn(AttributeColumn column) {
+        if (!(column instanceof AnnotationColumn)) {
+            return column;
+        }
+        AnnotationColumn annotations = (AnnotationColumn)column;
+        AttributeColumn parsed = null;
+        for (int node = 0; node < annotations.capacity(); node++) {
+            if (annotations.has(node)) {
+                int start = annotations.starts[node];
+                int end = annotations.ends[node];
+                Object value = end > start ? parser.parseValue(annotationText, start, end) : Boolean.TRUE;
+                if (parsed == null) {
+                    parsed = createColumn(column.getName(), value, capacity);
+                }
+                if (!parsed.set(node, value)) {
+                    parsed = new ObjectColumn(parsed);
+                    parsed.set(node, value);
+                }
+            }
+        }
+        if (parsed == null) {
+            parsed = new ObjectColumn(column.getName(), capacity);
+        }
+        columns.put(column.getName(), parsed);
+
+        unparsedCount--;
+        if (unparsedCount == 0) {
+            // all the values have been parsed so the text isn't needed
+            annotationText = null;
+        }
+        return parsed;
+    }
+
+    /**
+     * Records a name being added to a node. If the node already has an attribute from a later column then it
+     * gets its own list of names.
+     */
+    private void addName(int node, AttributeColumn column) {
+        List<String> names = nodeNames.get(node);
+        if (names != null) {
+            names.add(column.getName());
+            return;
+        }
+        boolean isLater = false;
+        for (AttributeColumn other : columns.values()) {
+            if (other == column) {
+                isLater = true;
+            } else if (isLater && other.has(node)) {
+                names = new ArrayList<>();
+                for (AttributeColumn c : columns.values()) {
+                    if (c.has(node)) {
+                        names.add(c.getName());
+                    }
+                }
+                names.add(column.getName());
+                nodeNames.put(node, names);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes room for at least the given number of nodes in all the columns
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > this.capacity) {
+            this.capacity = Math.max(capacity, this.capacity * 2);
+        }
+    }
+
+    private final Map<String, AttributeColumn> columns = new LinkedHashMap<>();
+    private final Map<Integer, List<String>> nodeNames = new HashMap<>();
+    private int capacity;
+
+    private byte[] annotationText = new byte[0];
+    private int annotationLength = 0;
+    private int[] annotationNodes = new int[16];
+    private String[] annotationNames = new String[16];
+    private int[] annotationStarts = new int[16];
+    private int[] annotationEnds = new int[16];
+    private int annotationCount = 0;
+    private Supplier<? extends AnnotationParser> parserFactory = null;
+    private AnnotationParser parser = null;
+    private int unparsedCount = 0;
+
+    /**
+     * A column holding the range of each node's value in the annotation text. These are replaced by parsed
+     * columns before any values are asked for.
+     */
+    private static class AnnotationColumn extends AttributeColumn {
+        AnnotationColumn(String name, int capacity) {
+            super(name);
+            starts = new int[capacity];
+            ends = new int[capacity];
+            Arrays.fill(starts, -1);
+        }
+
+        @Override
+        public Object get(int node) {
+            throw new UnsupportedOperationException("Annotation columns must be parsed first");
+        }
+
+        @Override
+        public boolean has(int node) {
+            return node < starts.length && starts[node] != -1;
+        }
+
+        @Override
+        boolean set(int node, Object value) {
+            return false;
+        }
+
+        void set(int node, int start, int end) {
+            starts[node] = start;
+            ends[node] = end;
+        }
+
+        @Override
+        void remove(int node) {
+            if (node < starts.length) {
+                starts[node] = -1;
+            }
+        }
+
+        @Override
+        int capacity() {
+            return starts.length;
+        }
+
+        @Override
+        void ensureCapacity(int capacity) {
+            if (capacity > starts.length) {
+                int oldCapacity = starts.length;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                Arrays.fill(starts, oldCapacity, capacity, -1);
+            }
+        }
+
+        private int[] starts;
+        private int[] ends;
+    }
+}
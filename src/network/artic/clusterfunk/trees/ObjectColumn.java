@@ -0,0 +1,61 @@
+package network.artic.clusterfunk.trees;
+
+import java.util.Arrays;
+
+/**
+ * An attribute column that can hold values of any type.
+ */
+public class ObjectColumn extends AttributeColumn {
+
+    ObjectColumn(String name, int capacity) {
+        super(name);
+        values = new Object[capacity];
+    }
+
+    /**
+     * Creates an object column with the values of another column
+     */
+    ObjectColumn(AttributeColumn column) {
+        this(column.getName(), column.capacity());
+        for (int i = 0; i < values.length; i++) {
+            values[i] = column.get(i);
+        }
+    }
+
+    @Override
+    public Object get(int node) {
+        return node < values.length ? values[node] : null;
+    }
+
+    @Override
+    public boolean has(int node) {
+        return node < values.length && values[node] != null;
+    }
+
+    @Override
+    boolean set(int node, Object value) {
+        values[node] = value;
+        return true;
+    }
+
+    @Override
+    void remove(int node) {
+        if (node < values.length) {
+            values[node] = null;
+        }
+    }
+
+    @Override
+    int capacity() {
+        return values.length;
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+        }
+    }
+
+    private Object[] values;
+}
@@ -0,0 +1,324 @@
+package network.artic.clusterfunk.trees;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+
+import java.util.*;
+
+/**
+ * The tips below each node of a tree worked out once (in a single pass from the tips to the root) rather than by
+ * walking each subtree every time it is asked about. The tips are listed in pre-order so the tips below a node are
+ * a range of that list starting at the node's first tip. The values of a tip attribute can be indexed in the same
+ * way so the number of tips below a node with each value comes from the range rather than from walking the
+ * subtree. The tree and the tip attributes mustn't be changed after they are cached (except in subtrees that won't
+ * be asked about again).
+ */
+public class SubtreeTips {
+
+    public SubtreeTips(RootedTree tree) {
+        this(new TreeTraversal(tree));
+    }
+
+    /**
+     * @param tree the tree
+     * @param root the root of the subtree to cache
+     */
+    public SubtreeTips(RootedTree tree, Node root) {
+        this(new TreeTraversal(tree, root));
+    }
+
+    public SubtreeTips(TreeTraversal nodes) {
+        this.nodes = nodes;
+        int nodeCount = nodes.getNodeCount();
+        firstTips = new int[nodeCount];
+        tipCounts = new int[nodeCount];
+
+        int tipCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            firstTips[i] = tipCount;
+            if (nodes.isExternal(i)) {
+                tipCount++;
+            }
+        }
+        tips = new int[tipCount];
+
+        // in reverse pre-order each node comes after its children
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            if (nodes.isExternal(i)) {
+                tips[firstTips[i]] = i;
+                tipCounts[i] = 1;
+            }
+            int parent = nodes.getParent(i);
+            if (parent != -1) {
+                tipCounts[parent] += tipCounts[i];
+            }
+        }
+    }
+
+    public TreeTraversal getTraversal() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of a Node object in the traversal (throwing an exception if it isn't in the subtree)
+     */
+    public int getIndex(Node node) {
+        int index = nodes.getIndex(node);
+        if (index == -1) {
+            throw new IllegalArgumentException("Node is not in this subtree");
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of tips in the (sub)tree
+     */
+    public int getTipCount() {
+        return tips.length;
+    }
+
+    /**
+     * @return the number of tips below a node (1 for a tip)
+     */
+    public int getTipCount(int node) {
+        return tipCounts[node];
+    }
+
+    /**
+     * @return the position of the node's first tip in the pre-order list of tips
+     */
+    public int getFirstTip(int node) {
+        return firstTips[node];
+    }
+
+    /**
+     * @return the number in the traversal of the tip at a position in the pre-order list of tips
+     */
+    public int getTip(int position) {
+        return tips[position];
+    }
+
+    /**
+     * @return the tips below a node in pre-order
+     */
+    public List<Node> getTips(int node) {
+        int first = firstTips[node];
+        int count = tipCounts[node];
+        return new AbstractList<Node>() {
+            @Override
+            public Node get(int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                }
+                return nodes.getNode(tips[first + index]);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @return the value of an attribute for the tip at a position in the pre-order list of tips
+     */
+    public Object getTipValue(int position, String attributeName) {
+        AttributeValues values = getAttributeValues(attributeName);
+        int code = values.tipCodes[position];
+        return code != -1 ? values.values.get(code) : null;
+    }
+
+    /**
+     * @return the distinct values of an attribute for the tips in the order they are first found in pre-order
+     */
+    public List<Object> getValues(String attributeName) {
+        return Collections.unmodifiableList(getAttributeValues(attributeName).values);
+    }
+
+    /**
+     * @return the value shared by all the tips below a node that have the attribute or null if there is more than
+     * one value (or none)
+     */
+    public Object getUniqueValue(int node, String attributeName) {
+        Object value = getAttributeValues(attributeName).uniqueValues[node];
+        return value != MIXED ? value : null;
+    }
+
+    /**
+     * @return the number of tips below a node with each value of an attribute
+     */
+    public Map<Object, Integer> getValueCounts(int node, String attributeName) {
+        AttributeValues values = getAttributeValues(attributeName);
+        Object unique = values.uniqueValues[node];
+        if (unique == null) {
+            return Collections.emptyMap();
+        }
+        if (unique != MIXED) {
+            return Collections.singletonMap(unique, values.valueCounts[node]);
+        }
+
+        Map<Object, Integer> valueCounts = new HashMap<>();
+        int first = firstTips[node];
+        int end = first + tipCounts[node];
+        if (tipCounts[node] <= values.values.size() * 4) {
+            // a small subtree is quicker to count directly
+            for (int i = first; i < end; i++) {
+                int code = values.tipCodes[i];
+                if (code != -1) {
+                    valueCounts.merge(values.values.get(code), 1, Integer::sum);
+                }
+            }
+        } else {
+            for (int code = 0; code < values.values.size(); code++) {
+                int count = values.countPositions(code, first, end);
+                if (count > 0) {
+                    valueCounts.put(values.values.get(code), count);
+                }
+            }
+        }
+        return valueCounts;
+    }
+
+    /**
+     * @return the number of tips below a node with a value of an attribute
+     */
+    public int getValueCount(int node, String attributeName, Object value) {
+        AttributeValues values = getAttributeValues(attributeName);
+        Object unique = values.uniqueValues[node];
+        if (unique == null) {
+            return 0;
+        }
+        if (unique != MIXED) {
+            return unique.equals(value) ? values.valueCounts[node] : 0;
+        }
+
+        Integer code = values.codes.get(value);
+        if (code == null) {
+            return 0;
+        }
+        return values.countPositions(code, firstTips[node], firstTips[node] + tipCounts[node]);
+    }
+
+    private AttributeValues getAttributeValues(String attributeName) {
+        AttributeValues values = attributeValues.get(attributeName);
+        if (values == null) {
+            values = new AttributeValues(attributeName);
+            attributeValues.put(attributeName, values);
+        }
+        return values;
+    }
+
+    /**
+     * The values of an attribute for the tips, coded by the order they are first found, with the (ascending)
+     * positions in the pre-order list of the tips with each value. As the tips below a node are a range of that
+     * list, the number with a value is the difference between where the two ends of the range fall in the value's
+     * positions (found by binary search) rather than a walk of the subtree. The value shared by the tips below
+     * each node (null if none of them have the attribute and MIXED if they have more than one value) is also kept
+     * with the number of tips that have it.
+     */
+    private class AttributeValues {
+        AttributeValues(String attributeName) {
+            int nodeCount = nodes.getNodeCount();
+            tipCodes = new int[tips.length];
+            uniqueValues = new Object[nodeCount];
+            valueCounts = new int[nodeCount];
+
+            int[] positionCounts = new int[16];
+            for (int i = 0; i < tips.length; i++) {
+                Object value = nodes.getNode(tips[i]).getAttribute(attributeName);
+                int code = -1;
+                if (value != null) {
+                    Integer existing = codes.get(value);
+                    if (existing == null) {
+                        existing = values.size();
+                        codes.put(value, existing);
+                        values.add(value);
+                        if (existing == positionCounts.length) {
+                            positionCounts = Arrays.copyOf(positionCounts, existing * 2);
+                        }
+                    }
+                    code = existing;
+                    positionCounts[code]++;
+                }
+                tipCodes[i] = code;
+            }
+
+            positions = new int[values.size()][];
+            for (int code = 0; code < positions.length; code++) {
+                positions[code] = new int[positionCounts[code]];
+                positionCounts[code] = 0;
+            }
+            for (int i = 0; i < tips.length; i++) {
+                int code = tipCodes[i];
+                if (code != -1) {
+                    positions[code][positionCounts[code]] = i;
+                    positionCounts[code]++;
+                }
+            }
+
+            for (int i = nodeCount - 1; i >= 0; i--) {
+                if (nodes.isExternal(i)) {
+                    int code = tipCodes[firstTips[i]];
+                    uniqueValues[i] = (code != -1 ? values.get(code) : null);
+                    valueCounts[i] = (code != -1 ? 1 : 0);
+                }
+                int parent = nodes.getParent(i);
+                if (parent != -1 && uniqueValues[i] != null) {
+                    Object parentValue = uniqueValues[parent];
+                    if (parentValue == null) {
+                        uniqueValues[parent] = uniqueValues[i];
+                        valueCounts[parent] = valueCounts[i];
+                    } else if (parentValue != MIXED) {
+                        if (parentValue.equals(uniqueValues[i])) {
+                            valueCounts[parent] += valueCounts[i];
+                        } else {
+                            uniqueValues[parent] = MIXED;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the number of tips with a value from one position in the list of tips up to (but not including)
+         * another
+         */
+        int countPositions(int code, int start, int end) {
+            int[] valuePositions = positions[code];
+            return lowerBound(valuePositions, end) - lowerBound(valuePositions, start);
+        }
+
+        final List<Object> values = new ArrayList<>();
+        final Map<Object, Integer> codes = new HashMap<>();
+        final int[] tipCodes;
+        final int[][] positions;
+        final Object[] uniqueValues;
+        final int[] valueCounts;
+    }
+
+    /**
+     * @return the number of values in a sorted array less than a key
+     */
+    private static int lowerBound(int[] array, int key) {
+        int low = 0;
+        int high = array.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final Object MIXED = new Object();
+
+    private final TreeTraversal nodes;
+    private final int[] firstTips;
+    private final int[] tipCounts;
+    private final int[] tips;
+    private final Map<String, AttributeValues> attributeValues = new HashMap<>();
+}
@@ -0,0 +1,49 @@
+package network.artic.clusterfunk.trees;
+
+import jebl.evolution.taxa.Taxon;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The taxa used by a command (or by the trees read from a file). jebl only creates taxa through its global
+ * Taxon.getTaxon registry which takes a lock on every call and regularly scans the whole registry to purge
+ * collected taxa, so the pool asks it once for each name and looks the taxon up itself after that. Keeping the
+ * taxa here also means the registry gives the same ones to anything else asking for the names (a Taxon is only
+ * equal to itself). The pool is thread safe and finding a taxon that is already in it doesn't take a lock so one
+ * pool can be shared by the threads parsing the trees of a file.
+ */
+public class TaxonPool {
+
+    public TaxonPool() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of taxa expected
+     */
+    public TaxonPool(int expectedSize) {
+        taxa = new ConcurrentHashMap<>(expectedSize);
+    }
+
+    /**
+     * @return the taxon with the name, adding it to the pool if it isn't there
+     */
+    public Taxon getTaxon(String name) {
+        Taxon taxon = taxa.get(name);
+        if (taxon == null) {
+            // only one thread asks the registry for each new name
+            taxon = taxa.computeIfAbsent(name, Taxon::getTaxon);
+        }
+        return taxon;
+    }
+
+    /**
+     * @return the number of taxa in the pool
+     */
+    public int size() {
+        return taxa.size();
+    }
+
+    private final ConcurrentMap<String, Taxon> taxa;
+}
@@ -0,0 +1,195 @@
+package network.artic.clusterfunk.trees;
+
+import jebl.evolution.taxa.Taxon;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Builds an ArrayRootedTree bottom up. Nodes are numbered in the order they are created so the children of
+ * an internal node must be created before it and the last node created is the root.
+ */
+public class TreeBuilder {
+
+    public TreeBuilder() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity the expected number of nodes
+     */
+    public TreeBuilder(int capacity) {
+        capacity = Math.max(capacity, 16);
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        lengths = new double[capacity];
+        taxa = new Taxon[capacity];
+        tips = new int[capacity / 2 + 1];
+        attributes = new NodeAttributes(capacity);
+    }
+
+    /**
+     * Creates a tip
+     * @param taxon
+     * @return the index of the node
+     */
+    public int createExternalNode(Taxon taxon) {
+        int node = addNode();
+        taxa[node] = taxon;
+        if (tipCount == tips.length) {
+            tips = Arrays.copyOf(tips, tips.length * 2);
+        }
+        tips[tipCount] = node;
+        tipCount++;
+        return node;
+    }
+
+    /**
+     * Creates an internal node with the given children (which must not already have a parent)
+     * @param children
+     * @param from the index in children of the first child
+     * @param to the index in children after the last child
+     * @return the index of the node
+     */
+    public int createInternalNode(int[] children, int from, int to) {
+        int node = addNode();
+        int previous = -1;
+        for (int i = from; i < to; i++) {
+            int child = children[i];
+            if (parents[child] != -1) {
+                throw new IllegalArgumentException("Node " + child + " already has a parent");
+            }
+            parents[child] = node;
+            if (previous == -1) {
+                firstChildren[node] = child;
+            } else {
+                nextSiblings[previous] = child;
+            }
+            previous = child;
+        }
+        return node;
+    }
+
+    public void setLength(int node, double length) {
+        lengths[node] = length;
+        hasLengths = true;
+    }
+
+    public void setAttribute(int node, String name, Object value) {
+        attributes.setAttribute(node, name, value);
+    }
+
+    public void setDoubleAttribute(int node, String name, double value) {
+        attributes.setDouble(node, name, value);
+    }
+
+    public void setIntAttribute(int node, String name, int value) {
+        attributes.setInt(node, name, value);
+    }
+
+    public void setBooleanAttribute(int node, String name, boolean value) {
+        attributes.setBoolean(node, name, value);
+    }
+
+    /**
+     * Adds the text of a meta comment ([&key=value,...]) of a node to be parsed when the attributes are first used
+     * (see NodeAttributes). A parser must be given with setAnnotationParser.
+     * @param node
+     * @param bytes
+     * @param start the start of the text after the '&'
+     * @param end the end of the text before the ']'
+     */
+    public void addMetaComment(int node, byte[] bytes, int start, int end) {
+        attributes.addAnnotation(node, null, bytes, start, end);
+    }
+
+    /**
+     * Sets an attribute to the text of a value to be parsed when the attribute is first used
+     * @param node
+     * @param name
+     * @param bytes
+     * @param start
+     * @param end
+     */
+    public void setAttributeText(int node, String name, byte[] bytes, int start, int end) {
+        attributes.addAnnotation(node, name, bytes, start, end);
+    }
+
+    /**
+     * @param parserFactory creates the parser for the meta comments and attribute text when they are first used
+     */
+    public void setAnnotationParser(Supplier<? extends AnnotationParser> parserFactory) {
+        attributes.setAnnotationParser(parserFactory);
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Creates the tree. The builder can't be used after this.
+     * @return the tree
+     */
+    public ArrayRootedTree build() {
+        if (nodeCount == 0) {
+            throw new IllegalArgumentException("Tree has no nodes");
+        }
+        int root = nodeCount - 1;
+        for (int i = 0; i < root; i++) {
+            if (parents[i] == -1) {
+                throw new IllegalArgumentException("Node " + i + " has no parent");
+            }
+        }
+
+        ArrayRootedTree tree = new ArrayRootedTree(nodeCount,
+                trim(parents), trim(firstChildren), trim(nextSiblings),
+                lengths.length == nodeCount ? lengths : Arrays.copyOf(lengths, nodeCount),
+                taxa.length == nodeCount ? taxa : Arrays.copyOf(taxa, nodeCount),
+                Arrays.copyOf(tips, tipCount),
+                hasLengths, attributes);
+
+        parents = null;
+        firstChildren = null;
+        nextSiblings = null;
+        lengths = null;
+        taxa = null;
+        tips = null;
+        attributes = null;
+        return tree;
+    }
+
+    private int addNode() {
+        if (nodeCount == parents.length) {
+            int capacity = parents.length * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            taxa = Arrays.copyOf(taxa, capacity);
+            attributes.ensureCapacity(capacity);
+        }
+        int node = nodeCount;
+        parents[node] = -1;
+        firstChildren[node] = -1;
+        nextSiblings[node] = -1;
+        nodeCount++;
+        return node;
+    }
+
+    private int[] trim(int[] array) {
+        return array.length == nodeCount ? array : Arrays.copyOf(array, nodeCount);
+    }
+
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private double[] lengths;
+    private Taxon[] taxa;
+    private int[] tips;
+    private NodeAttributes attributes;
+
+    private int nodeCount = 0;
+    private int tipCount = 0;
+    private boolean hasLengths = false;
+}
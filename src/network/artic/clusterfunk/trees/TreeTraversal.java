@@ -0,0 +1,304 @@
+package network.artic.clusterfunk.trees;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+/**
+ * The nodes of a subtree numbered in pre-order (each node before its children and the children in order, so the
+ * root of the subtree is 0) with the parent, first child and next sibling of each node as indices. The subtree
+ * can then be walked with loops rather than by recursion which overflows the stack on the very deep (ladder like)
+ * trees of large outbreaks. The nodes below a node are the ones from it up to getSubtreeEnd() so a subtree can be
+ * skipped and values for the nodes can be kept in arrays indexed in the same way.
+ *
+ * For example, bottom up (children before parents): for (int i = getNodeCount() - 1; i >= 0; i--) or, if the
+ * order of the siblings matters, for (int i = getFirstPostOrder(); i != -1; i = getNextPostOrder(i)).
+ */
+public class TreeTraversal {
+
+    public TreeTraversal(RootedTree tree) {
+        this(tree, tree.getRootNode());
+    }
+
+    /**
+     * @param tree the tree
+     * @param root the root of the subtree to number
+     */
+    public TreeTraversal(RootedTree tree, Node root) {
+        this.tree = tree;
+        if (tree instanceof ArrayRootedTree) {
+            this.arrayTree = (ArrayRootedTree)tree;
+            this.nodes = null;
+            numberArrayTree(arrayTree.getIndex(root));
+        } else {
+            this.arrayTree = null;
+            this.arrayIndices = null;
+            this.nodes = numberTree(root);
+        }
+
+        int nodeCount = parents.length;
+        firstChildren = new int[nodeCount];
+        nextSiblings = new int[nodeCount];
+        subtreeEnds = new int[nodeCount];
+        Arrays.fill(firstChildren, -1);
+        Arrays.fill(nextSiblings, -1);
+        // in pre-order the children of a node come in order and its last child's subtree ends its own
+        int[] lastChildren = new int[nodeCount];
+        for (int i = 1; i < nodeCount; i++) {
+            int parent = parents[i];
+            if (firstChildren[parent] == -1) {
+                firstChildren[parent] = i;
+            } else {
+                nextSiblings[lastChildren[parent]] = i;
+            }
+            lastChildren[parent] = i;
+        }
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            int end = i + 1;
+            if (firstChildren[i] != -1) {
+                end = subtreeEnds[lastChildren[i]];
+            }
+            subtreeEnds[i] = end;
+        }
+    }
+
+    /**
+     * Numbers the nodes of a subtree of an ArrayRootedTree using its indices (its nodes are in post-order so the
+     * subtree is all the nodes from its first descendant up to its root)
+     */
+    private void numberArrayTree(int root) {
+        offset = arrayTree.getFirstDescendantIndex(root);
+        int nodeCount = root - offset + 1;
+        arrayIndices = new int[nodeCount];
+        parents = new int[nodeCount];
+        numbers = new int[nodeCount];
+
+        int count = 0;
+        int node = root;
+        while (true) {
+            arrayIndices[count] = node;
+            numbers[node - offset] = count;
+            parents[count] = (node == root ? -1 : numbers[arrayTree.getParentIndex(node) - offset]);
+            count++;
+
+            int child = arrayTree.getFirstChildIndex(node);
+            if (child != -1) {
+                node = child;
+            } else {
+                while (node != root && arrayTree.getNextSiblingIndex(node) == -1) {
+                    node = arrayTree.getParentIndex(node);
+                }
+                if (node == root) {
+                    return;
+                }
+                node = arrayTree.getNextSiblingIndex(node);
+            }
+        }
+    }
+
+    /**
+     * Numbers the nodes of a subtree of any tree using a stack of the nodes still to visit
+     */
+    private Node[] numberTree(Node root) {
+        Node[] nodeList = new Node[16];
+        int[] parentList = new int[16];
+        Node[] stack = new Node[16];
+        int[] parentStack = new int[16];
+        int count = 0;
+        int stackSize = 0;
+
+        stack[stackSize] = root;
+        parentStack[stackSize] = -1;
+        stackSize++;
+        while (stackSize > 0) {
+            stackSize--;
+            Node node = stack[stackSize];
+            if (count == nodeList.length) {
+                nodeList = Arrays.copyOf(nodeList, count * 2);
+                parentList = Arrays.copyOf(parentList, count * 2);
+            }
+            nodeList[count] = node;
+            parentList[count] = parentStack[stackSize];
+
+            if (!tree.isExternal(node)) {
+                List<Node> children = tree.getChildren(node);
+                if (stackSize + children.size() > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackSize + children.size()));
+                    parentStack = Arrays.copyOf(parentStack, stack.length);
+                }
+                // pushed in reverse so the first child is visited next
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    stack[stackSize] = children.get(i);
+                    parentStack[stackSize] = count;
+                    stackSize++;
+                }
+            }
+            count++;
+        }
+
+        parents = Arrays.copyOf(parentList, count);
+        return Arrays.copyOf(nodeList, count);
+    }
+
+    public RootedTree getTree() {
+        return tree;
+    }
+
+    public int getNodeCount() {
+        return parents.length;
+    }
+
+    /**
+     * @return the Node object of a node in the tree
+     */
+    public Node getNode(int node) {
+        return nodes != null ? nodes[node] : arrayTree.getNode(arrayIndices[node]);
+    }
+
+    /**
+     * @return the number of a Node object or -1 if it isn't in the subtree
+     */
+    public int getIndex(Node node) {
+        if (nodes == null) {
+            int index = arrayTree.getIndex(node) - offset;
+            return index >= 0 && index < numbers.length ? numbers[index] : -1;
+        }
+        if (indices == null) {
+            // only made if it is needed
+            indices = new HashMap<>();
+            for (int i = 0; i < nodes.length; i++) {
+                indices.put(nodes[i], i);
+            }
+        }
+        return indices.getOrDefault(node, -1);
+    }
+
+    /**
+     * @return the parent of a node or -1 for the root of the subtree
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @return the first child of a node or -1 for a tip
+     */
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    /**
+     * @return the next child of the node's parent or -1 if it is the last
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public boolean isExternal(int node) {
+        return firstChildren[node] == -1;
+    }
+
+    /**
+     * @return the node after the subtree below a node (in pre-order the subtree is all the nodes from the node up
+     * to this one)
+     */
+    public int getSubtreeEnd(int node) {
+        return subtreeEnds[node];
+    }
+
+    /**
+     * @return the first node in post-order (the first tip)
+     */
+    public int getFirstPostOrder() {
+        int node = 0;
+        while (firstChildren[node] != -1) {
+            node = firstChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * @return the next node in post-order (each node after its children and the children in order) or -1 after
+     * the root
+     */
+    public int getNextPostOrder(int node) {
+        if (node == 0) {
+            return -1;
+        }
+        int sibling = nextSiblings[node];
+        if (sibling == -1) {
+            return parents[node];
+        }
+        while (firstChildren[sibling] != -1) {
+            sibling = firstChildren[sibling];
+        }
+        return sibling;
+    }
+
+    /**
+     * @return the most recent common ancestor of a set of nodes (see getMRCA(int, int))
+     */
+    public Node getMRCA(Collection<Node> nodeSet) {
+        if (nodeSet.isEmpty()) {
+            throw new IllegalArgumentException("No leaf nodes selected");
+        }
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (Node node : nodeSet) {
+            int index = getIndex(node);
+            if (index == -1) {
+                throw new IllegalArgumentException("Node is not in this subtree");
+            }
+            first = Math.min(first, index);
+            last = Math.max(last, index);
+        }
+        return getNode(getMRCA(first, last));
+    }
+
+    /**
+     * @return the most recent common ancestor of a set of nodes given by their numbers
+     */
+    public int getMRCA(IndexSet nodeSet) {
+        if (nodeSet.isEmpty()) {
+            throw new IllegalArgumentException("No leaf nodes selected");
+        }
+        PrimitiveIterator.OfInt iterator = nodeSet.intIterator();
+        int first = iterator.nextInt();
+        int last = first;
+        while (iterator.hasNext()) {
+            last = iterator.nextInt();
+        }
+        return getMRCA(first, last);
+    }
+
+    /**
+     * @return the most recent common ancestor of the nodes from one node up to another in pre-order. This is the
+     * first node or the first of its ancestors with the last node in its subtree, so it is found by walking up
+     * from the first.
+     */
+    public int getMRCA(int first, int last) {
+        int mrca = first;
+        while (subtreeEnds[mrca] <= last) {
+            mrca = parents[mrca];
+        }
+        return mrca;
+    }
+
+    private final RootedTree tree;
+    private final ArrayRootedTree arrayTree;
+    private final Node[] nodes;
+    private int[] arrayIndices;
+    private int[] numbers;
+    private int offset;
+    private Map<Node, Integer> indices = null;
+    private int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] subtreeEnds;
+}
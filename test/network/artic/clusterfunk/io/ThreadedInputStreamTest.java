@@ -0,0 +1,108 @@
+package network.artic.clusterfunk.io;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that a ThreadedInputStream can be closed before its source has been read to the end (i.e., while the
+ * reading thread is waiting on a full queue) without hanging.
+ */
+public class ThreadedInputStreamTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        closeAfterOneByte();
+        closeAfterSomeBlocks();
+        closeAfterEnd();
+        System.out.println("ThreadedInputStreamTest: OK");
+    }
+
+    private static void closeAfterOneByte() throws Exception {
+        runWithTimeout("close after one byte", () -> {
+            ThreadedInputStream in = new ThreadedInputStream(largeSource());
+            check(in.read() != -1, "expected a byte");
+            // give the reading thread time to fill the queue
+            Thread.sleep(200);
+            in.close();
+            return null;
+        });
+    }
+
+    private static void closeAfterSomeBlocks() throws Exception {
+        runWithTimeout("close part-way through", () -> {
+            ThreadedInputStream in = new ThreadedInputStream(largeSource());
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            while (total < 3 * (1 << 20)) {
+                int n = in.read(buffer, 0, buffer.length);
+                check(n > 0, "unexpected end of stream");
+                total += n;
+            }
+            in.close();
+            return null;
+        });
+    }
+
+    private static void closeAfterEnd() throws Exception {
+        runWithTimeout("close at the end", () -> {
+            ThreadedInputStream in = new ThreadedInputStream(new ByteArrayInputStream(new byte[1000]));
+            int count = 0;
+            while (in.read() != -1) {
+                count++;
+            }
+            check(count == 1000, "expected 1000 bytes, read " + count);
+            in.close();
+            return null;
+        });
+    }
+
+    /**
+     * A source much bigger than the read-ahead queue
+     */
+    private static InputStream largeSource() {
+        return new InputStream() {
+            private long remaining = 256L * (1 << 20);
+
+            @Override
+            public int read() {
+                if (remaining == 0) {
+                    return -1;
+                }
+                remaining--;
+                return 'A';
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int n = (int) Math.min(length, remaining);
+                java.util.Arrays.fill(bytes, offset, offset + n, (byte) 'A');
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    private static void runWithTimeout(String name, Callable<Void> test) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            executor.submit(test).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new AssertionError(name + ": close() did not return within " + TIMEOUT_SECONDS + "s");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}